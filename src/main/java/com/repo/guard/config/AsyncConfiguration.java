@@ -0,0 +1,162 @@
+package com.repo.guard.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.aop.interceptor.AsyncUncaughtExceptionHandler;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.scheduling.annotation.AsyncConfigurer;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * one bounded executor per kind of background work, so a huge ingestion can't starve reviews and a burst of
+ * webhooks can't build an unbounded backlog. pool sizes, queue capacities and the thread type are configured
+ * per executor under guard.executor.<name>.*, and queue depth, active threads and rejections are published as metrics
+ */
+@Slf4j
+@Configuration
+@RequiredArgsConstructor
+public class AsyncConfiguration implements AsyncConfigurer {
+    private final Environment environment;
+    private final MeterRegistry meterRegistry;
+
+    //  full and incremental repository ingestions, few threads since every job already runs its own pipeline
+    @Bean
+    public ThreadPoolTaskExecutor ingestionExecutor() {
+        return buildExecutor("ingestion", 2, 2, 20, Rejection.ABORT);
+    }
+
+    //  delta syncs after merges, the submitting thread runs the sync itself when the queue is full so none are lost
+    @Bean
+    public ThreadPoolTaskExecutor deltaSyncExecutor() {
+        return buildExecutor("delta-sync", 2, 2, 100, Rejection.CALLER_RUNS);
+    }
+
+    //  ai reviews, dispatched by the work queue consumers that handle the webhooks. a rejected review fails its webhook
+    //  message, which is retried later
+    @Bean
+    public ThreadPoolTaskExecutor reviewExecutor() {
+        return buildExecutor("review", 4, 8, 50, Rejection.ABORT);
+    }
+
+    //  interactive chat requests
+    @Bean
+    public ThreadPoolTaskExecutor chatExecutor() {
+        return buildExecutor("chat", 4, 8, 50, Rejection.ABORT);
+    }
+
+    //  housekeeping such as purging superseded chunk generations. a purge or discard that doesn't fit is dropped rather
+    //  than run on the ingestion thread, the next purge of the repository deletes every generation but the active one
+    @Bean
+    public ThreadPoolTaskExecutor maintenanceExecutor() {
+        return buildExecutor("maintenance", 2, 2, 500, Rejection.DISCARD);
+    }
+
+    //  vector index builds, kept off the maintenance pool since one build can take hours. builds are idempotent and
+    //  skip themselves while another one runs, so requests beyond the single queued one are simply dropped
+    @Bean
+    public ThreadPoolTaskExecutor vectorIndexExecutor() {
+        return buildExecutor("vector-index", 1, 1, 1, Rejection.DISCARD);
+    }
+
+    //  @Async methods without an explicit executor fall back to the maintenance pool instead of an unbounded one
+    @Override
+    public Executor getAsyncExecutor() {
+        return maintenanceExecutor();
+    }
+
+    @Override
+    public AsyncUncaughtExceptionHandler getAsyncUncaughtExceptionHandler() {
+        return (err, method, params) -> log.error("Async method {} failed", method.getName(), err);
+    }
+
+    /**
+     * what happens to a task submitted while the executor's queue is full
+     */
+    private enum Rejection {
+        //  the submitting thread runs the task itself
+        CALLER_RUNS,
+        //  the caller gets a TaskRejectedException
+        ABORT,
+        //  the task is dropped, for work that is safe to skip because a later run catches up
+        DISCARD
+    }
+
+    /**
+     * builds and instruments a bounded executor from its guard.executor.<name>.* properties
+     *
+     * @param name
+     * @param coreSize
+     * @param maxSize
+     * @param queueCapacity
+     * @param rejection  what to do with a task when the queue is full
+     * @return
+     */
+    private ThreadPoolTaskExecutor buildExecutor(String name, int coreSize, int maxSize, int queueCapacity, Rejection rejection) {
+        String prefix = "guard.executor." + name + ".";
+        int core = environment.getProperty(prefix + "core-size", Integer.class, coreSize);
+        int max = Math.max(core, environment.getProperty(prefix + "max-size", Integer.class, maxSize));
+        int capacity = environment.getProperty(prefix + "queue-capacity", Integer.class, queueCapacity);
+        boolean virtualThreads = environment.getProperty(prefix + "virtual-threads", Boolean.class, false);
+
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix(name + "-");
+        executor.setCorePoolSize(core);
+        executor.setMaxPoolSize(max);
+        executor.setQueueCapacity(capacity);
+        //  the pool still bounds how many tasks run at once, virtual threads only make each of them cheaper to park
+        if (virtualThreads) executor.setThreadFactory(Thread.ofVirtual().name(name + "-", 1).factory());
+        executor.setRejectedExecutionHandler(countingRejections(name, rejection));
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(30);
+
+        //  gauges read through the spring executor, so they keep working once it creates its pool on initialization
+        Gauge.builder("guard.executor.queued", executor, ThreadPoolTaskExecutor::getQueueSize).tag("name", name).register(meterRegistry);
+        Gauge.builder("guard.executor.active", executor, ThreadPoolTaskExecutor::getActiveCount).tag("name", name).register(meterRegistry);
+        Gauge.builder("guard.executor.pool.size", executor, ThreadPoolTaskExecutor::getPoolSize).tag("name", name).register(meterRegistry);
+        Gauge.builder("guard.executor.queue.capacity", () -> capacity).tag("name", name).register(meterRegistry);
+        log.info("Executor {}: core={}, max={}, queue={}, virtualThreads={}", name, core, max, capacity, virtualThreads);
+        return executor;
+    }
+
+    /**
+     * counts every rejected task, then runs it on the submitting thread, rejects it, which surfaces as a
+     * TaskRejectedException to the caller, or drops it depending on the rejection policy
+     *
+     * @param name
+     * @param rejection
+     * @return
+     */
+    private RejectedExecutionHandler countingRejections(String name, Rejection rejection) {
+        Counter rejections = Counter.builder("guard.executor.rejected")
+                .tag("name", name)
+                .tag("policy", rejection.name().toLowerCase().replace('_', '-'))
+                .register(meterRegistry);
+        RejectedExecutionHandler fallback = switch (rejection) {
+            case CALLER_RUNS -> new ThreadPoolExecutor.CallerRunsPolicy();
+            case ABORT -> new ThreadPoolExecutor.AbortPolicy();
+            case DISCARD -> new ThreadPoolExecutor.DiscardPolicy();
+        };
+
+        return (task, pool) -> {
+            rejections.increment();
+            log.warn("Executor {} is saturated ({} active, {} queued), {} task.", name, pool.getActiveCount(), pool.getQueue().size(),
+                    switch (rejection) {
+                        case CALLER_RUNS -> "running caller side";
+                        case ABORT -> "rejecting";
+                        case DISCARD -> "dropping";
+                    });
+            if (pool.isShutdown()) throw new RejectedExecutionException("Executor " + name + " is shut down");
+            fallback.rejectedExecution(task, pool);
+        };
+    }
+}
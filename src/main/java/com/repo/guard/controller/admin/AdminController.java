@@ -0,0 +1,56 @@
+package com.repo.guard.controller.admin;
+
+import com.repo.guard.dto.VectorIndexStatusDto;
+import com.repo.guard.dto.VectorStorageComparisonDto;
+import com.repo.guard.service.repo.VectorIndexService;
+import com.repo.guard.service.repo.VectorStorageComparisonService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@RequestMapping(path = "/${admin.path}")
+@RequiredArgsConstructor
+public class AdminController {
+    private final VectorIndexService vectorIndexService;
+    private final VectorStorageComparisonService vectorStorageComparisonService;
+
+    /**
+     * reports whether the hnsw index on the embeddings exists and is valid, its size, and the progress of a running build
+     *
+     * @return
+     */
+    @GetMapping("/vector-index")
+    public ResponseEntity<VectorIndexStatusDto> getVectorIndexStatus() {
+        return ResponseEntity.ok(vectorIndexService.status());
+    }
+
+    /**
+     * starts a concurrent rebuild of the hnsw index with the configured parameters, follow it through GET /vector-index
+     *
+     * @return
+     */
+    @PostMapping("/vector-index/rebuild")
+    public ResponseEntity<VectorIndexStatusDto> rebuildVectorIndex() {
+        vectorIndexService.rebuild();
+        return ResponseEntity.accepted().body(vectorIndexService.status());
+    }
+
+    /**
+     * compares recall, p50 / p95 latency and index size of every vector index format that is built, against an exact
+     * scan of the repository. build other formats for comparison through guard.vector-index.extra-formats
+     *
+     * @param repoUrl
+     * @param samples
+     * @param limit
+     * @return
+     */
+    @PostMapping("/vector-index/compare")
+    public ResponseEntity<VectorStorageComparisonDto> compareVectorStorage(
+            @RequestParam String repoUrl,
+            @RequestParam(defaultValue = "50") int samples,
+            @RequestParam(defaultValue = "10") int limit
+    ) {
+        return ResponseEntity.ok(vectorStorageComparisonService.compare(repoUrl, samples, limit));
+    }
+}
@@ -4,19 +4,24 @@ import com.repo.guard.dto.ApiResponse;
 import com.repo.guard.dto.ChatRequestDto;
 import com.repo.guard.dto.ChatResponseDto;
 import com.repo.guard.dto.RepoIngestionRequestDto;
+import com.repo.guard.model.repo.IngestionJob;
+import com.repo.guard.model.repo.IngestionJobState;
 import com.repo.guard.service.chat.ChatService;
-import com.repo.guard.service.repo.RepoIngestionWorkerService;
+import com.repo.guard.service.repo.IngestionCoordinatorService;
+import com.repo.guard.service.repo.IngestionJobService;
 import lombok.AllArgsConstructor;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.UUID;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping(path = "${repo.path}")
 @AllArgsConstructor
 public class RepoController {
-    private final RepoIngestionWorkerService repoIngestionWorkerService;
+    private final IngestionCoordinatorService ingestionCoordinatorService;
+    private final IngestionJobService ingestionJobService;
     private final ChatService chatService;
 
     /**
@@ -27,11 +32,40 @@ public class RepoController {
      */
     @PostMapping("/ingest")
     public ResponseEntity<ApiResponse> validateAndPushRepo(@RequestBody RepoIngestionRequestDto repo) {
-        //  start the ingestion process asynchronously with a generated unique job id
-        repoIngestionWorkerService.ingestRepositoryAsync(repo, UUID.randomUUID().toString());
+        //  start the job, or attach to the one already in flight for this repo, and hand back its id so it can be
+        //  followed through GET /ingest/{jobId}. a full ingestion queue surfaces as 503 through the global handler
+        IngestionJob job = ingestionCoordinatorService.submit(repo);
 
         //  return an accepted response immediately so the client isn't blocked waiting for ingestion
-        return ResponseEntity.accepted().body(new ApiResponse("Job accepted", null));
+        return ResponseEntity.accepted().body(new ApiResponse("Job accepted", job));
+    }
+
+    /**
+     * returns the state, phase and progress of an ingestion job
+     *
+     * @param jobId
+     * @return
+     */
+    @GetMapping("/ingest/{jobId}")
+    public ResponseEntity<IngestionJob> getIngestionJob(@PathVariable String jobId) {
+        return ResponseEntity.ok(ingestionJobService.get(jobId));
+    }
+
+    /**
+     * lists the most recent ingestion jobs, optionally filtered by repository and state
+     *
+     * @param repoUrl
+     * @param state
+     * @param limit
+     * @return
+     */
+    @GetMapping("/ingest")
+    public ResponseEntity<List<IngestionJob>> listIngestionJobs(
+            @RequestParam(required = false) String repoUrl,
+            @RequestParam(required = false) IngestionJobState state,
+            @RequestParam(defaultValue = "50") int limit
+    ) {
+        return ResponseEntity.ok(ingestionJobService.list(repoUrl, state, limit));
     }
 
     /**
@@ -41,8 +75,8 @@ public class RepoController {
      * @return
      */
     @PostMapping("/chat")
-    public ResponseEntity<ChatResponseDto> chat(@RequestBody ChatRequestDto request) {
-        //  pass the request to the chat service and return the analyzed result
-        return ResponseEntity.ok(chatService.askQuestion(request));
+    public CompletableFuture<ResponseEntity<ChatResponseDto>> chat(@RequestBody ChatRequestDto request) {
+        //  pass the request to the chat service and complete the response once the analyzed result is ready
+        return chatService.askQuestionAsync(request).thenApply(ResponseEntity::ok);
     }
 }
\ No newline at end of file
@@ -1,22 +1,29 @@
 package com.repo.guard.controller.gitlab;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.repo.guard.model.repo.CodeChunkRepository;
+import com.repo.guard.service.gitlab.MergeRequestEventDebouncer;
 import com.repo.guard.service.gitlab.WebhookService;
+import com.repo.guard.service.queue.WorkQueueService;
+import com.repo.guard.service.queue.WorkStream;
+import com.repo.guard.service.repo.ChunkGenerationService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.Map;
+
 @Slf4j
 @RequiredArgsConstructor
 @RestController
 @RequestMapping(path = "/${gitlab.path}")
 public class GitLabWebhookController {
-    private final CodeChunkRepository chunkRepository;
-    private final WebhookService webhookService;
+    private final ChunkGenerationService chunkGenerationService;
+    private final WorkQueueService workQueueService;
+    private final MergeRequestEventDebouncer mergeRequestEventDebouncer;
 
     //  pull the expected secret token from application properties to verify incoming webhooks
     @Value("${gitlab.webhook.secret}")
@@ -47,11 +54,19 @@ public class GitLabWebhookController {
             return ResponseEntity.ok("Ignored: Not a Merge Request or Push event");
         }
 
-        //  pass the payload to the strategy router in a background thread
-        webhookService.processGitlabEventAsync(payload);
+        //  queue the payload on the durable webhook stream, where the first free consumer of any instance picks it up.
+        //  merge request events record their head first, the consumer debounces them against the latest one
+        try {
+            mergeRequestEventDebouncer.record(payload);
+            workQueueService.publish(WorkStream.WEBHOOKS, Map.of(WebhookService.PAYLOAD_FIELD, payload.toString()));
+        } catch (DataAccessException e) {
+            //  the queue is unavailable, a non-2xx answer makes gitlab redeliver the hook later
+            log.warn("Failed to queue {} webhook: {}", eventType, e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Review queue is unavailable, retry later");
+        }
 
         //  return immediately so gitlab registers a successful webhook delivery
-        return ResponseEntity.ok("Webhook received. AI Review started.");
+        return ResponseEntity.ok("Webhook received. AI Review queued.");
     }
 
     /**
@@ -59,12 +74,16 @@ public class GitLabWebhookController {
      *
      * @param repoUrl
      * @return
+     * @throws InterruptedException
      */
     @DeleteMapping("/wipe-vectors")
-    public ResponseEntity<String> wipeVectors(@RequestParam(required = false) String repoUrl) {
+    public ResponseEntity<String> wipeVectors(@RequestParam(required = false) String repoUrl) throws InterruptedException {
         if (repoUrl != null) {
-            //  wipe only the specific repository
-            chunkRepository.deleteByRepoUrl(repoUrl);
+            //  wipe only the specific repository by dropping its partition, and forget the indexed commit too, so
+            //  the next ingestion rebuilds from scratch instead of diffing. answers 409 while the repo is being written
+            if (!chunkGenerationService.dropRepository(repoUrl)) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body("No vectors stored for repo: " + repoUrl);
+            }
             return ResponseEntity.ok("Cleared all vectors for repo: " + repoUrl);
         } else {
             //  wipe the entire database
@@ -13,4 +13,6 @@ public class RepoIngestionRequestDto {
     private String repoUrl;
     private String repoUsername;
     private String repoAccessToken;
+    //  re-embed the whole repository instead of only the files changed since the last indexed commit
+    private Boolean fullRebuild;
 }
@@ -0,0 +1,48 @@
+package com.repo.guard.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class VectorIndexStatusDto {
+    private String name;
+    //  configured storage format, the format searches currently read from, and formats kept for comparison
+    private String storage;
+    private String servingStorage;
+    private List<String> extraFormats;
+    private boolean exists;
+    //  false until every partition has its index attached
+    private boolean valid;
+    //  partitions of code_chunks, and how many of them have their graph attached
+    private int partitions;
+    private int indexedPartitions;
+    private Long sizeBytes;
+    private String size;
+    private String definition;
+
+    //  configured build and search parameters
+    private int m;
+    private int efConstruction;
+    private int efSearch;
+
+    //  IDLE, BUILDING or FAILED, as seen by this instance
+    private String buildState;
+    //  phase and progress reported by pg_stat_progress_create_index while any instance is building
+    private String buildPhase;
+    private Long blocksDone;
+    private Long blocksTotal;
+    private Long tuplesDone;
+    private Long tuplesTotal;
+
+    private Instant lastBuildStartedAt;
+    private Instant lastBuildFinishedAt;
+    private String lastError;
+}
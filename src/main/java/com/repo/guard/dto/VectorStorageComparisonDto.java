@@ -0,0 +1,37 @@
+package com.repo.guard.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class VectorStorageComparisonDto {
+    private String repoUrl;
+    //  number of query vectors sampled from the repository, and results compared per query
+    private int samples;
+    private int limit;
+    private List<Result> results;
+
+    @Data
+    @AllArgsConstructor
+    @NoArgsConstructor
+    @Builder
+    public static class Result {
+        //  FULL, HALFVEC, BINARY, or EXACT for the sequential scan the recall is measured against
+        private String format;
+        //  false when the format has no complete index, nothing was measured then
+        private boolean indexed;
+        private Long indexSizeBytes;
+        private String indexSize;
+        //  share of the exact top results that were returned, averaged over the samples
+        private Double recall;
+        private Double p50Millis;
+        private Double p95Millis;
+    }
+}
@@ -1,6 +1,7 @@
 package com.repo.guard.exception;
 
 import com.repo.guard.dto.ApiResponse;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -13,4 +14,28 @@ public class GlobalException {
         return ResponseEntity.status(HttpStatus.NOT_FOUND)
                 .body(new ApiResponse("GE: User not found", err.getMessage()));
     }
+
+    @ExceptionHandler
+    public ResponseEntity<ApiResponse> handleIngestionJobNotFound(IngestionJobNotFoundException err) {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                .body(new ApiResponse("GE: Ingestion job not found", err.getMessage()));
+    }
+
+    @ExceptionHandler
+    public ResponseEntity<ApiResponse> handleRepositoryNotFound(RepositoryNotFoundException err) {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                .body(new ApiResponse("GE: Repository not found", err.getMessage()));
+    }
+
+    @ExceptionHandler
+    public ResponseEntity<ApiResponse> handleRepositoryBusy(RepositoryBusyException err) {
+        return ResponseEntity.status(HttpStatus.CONFLICT)
+                .body(new ApiResponse("GE: Repository is busy, retry later", err.getMessage()));
+    }
+
+    @ExceptionHandler
+    public ResponseEntity<ApiResponse> handleTaskRejected(TaskRejectedException err) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .body(new ApiResponse("GE: Server is busy, retry later", err.getMessage()));
+    }
 }
@@ -0,0 +1,7 @@
+package com.repo.guard.exception;
+
+public class RepositoryBusyException extends RuntimeException {
+    public RepositoryBusyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package com.repo.guard.exception;
+
+public class RepositoryNotFoundException extends RuntimeException {
+    public RepositoryNotFoundException(String message) {
+        super(message);
+    }
+}
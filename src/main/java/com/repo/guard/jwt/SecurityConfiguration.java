@@ -1,5 +1,6 @@
 package com.repo.guard.jwt;
 
+import jakarta.servlet.DispatcherType;
 import lombok.RequiredArgsConstructor;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -30,6 +31,8 @@ public class SecurityConfiguration {
         return httpSecurity
                 .csrf(AbstractHttpConfigurer::disable)
                 .authorizeHttpRequests(registry -> {
+                    //  async dispatches complete requests that were already authenticated on their first dispatch
+                    registry.dispatcherTypeMatchers(DispatcherType.ASYNC).permitAll();
                     registry.requestMatchers("api/v1/auth/status").permitAll();
                     registry.requestMatchers("api/v1/auth/register").permitAll();
                     registry.requestMatchers("api/v1/auth/login").permitAll();
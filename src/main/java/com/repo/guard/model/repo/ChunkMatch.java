@@ -0,0 +1,21 @@
+package com.repo.guard.model.repo;
+
+import java.util.UUID;
+
+/**
+ * read-only result of a similarity search: the chunk without its embedding, plus its cosine distance to the query.
+ * native queries map straight onto it, so no entity is hydrated or tracked by the persistence context
+ */
+public interface ChunkMatch {
+    UUID getId();
+
+    //  display label, e.g. "src/Foo.java (Part 2/5)"
+    String getFilePath();
+
+    String getPath();
+
+    String getContent();
+
+    //  cosine distance to the query, 0 is identical and 2 is opposite
+    Double getDistance();
+}
@@ -16,13 +16,48 @@ public class CodeChunk {
     @Id
     @GeneratedValue(strategy = GenerationType.UUID)
     private UUID id;
-    private String repoUrl;
+    //  id of the owning row in repositories, so chunks don't repeat the repository url
+    private Integer repoId;
+
+    //  display label shown in prompts and sources, e.g. "src/Foo.java (Part 2/5)"
     private String filePath;
 
+    //  normalized repository path of the source file, what path based deletes match on
+    @Column(columnDefinition = "TEXT")
+    private String path;
+
+    //  position of the chunk within its file, 1-based
+    private Integer partIndex;
+    private Integer partCount;
+
+    //  sha-256 of the chunk content, hex encoded
+    @Column(length = 64)
+    private String contentHash;
+
+    //  utf-8 byte range of the chunk within the file, null when the splitter rewrote the text
+    private Integer startByte;
+    private Integer endByte;
+
+    //  index generation the chunk belongs to, only the repository's active generation is visible to searches
+    private Long generation;
+
     @Column(columnDefinition = "TEXT")
     private String content;
 
     @Column(name = "embedding", columnDefinition = "vector(768)")
     @JdbcTypeCode(SqlTypes.VECTOR)
     private float[] embedding;
+
+    /**
+     * normalizes a repository path the way it is stored in the path column: forward slashes, no leading "./" or "/"
+     *
+     * @param path
+     * @return
+     */
+    public static String normalizePath(String path) {
+        String normalized = path.trim().replace('\\', '/');
+        while (normalized.startsWith("./")) normalized = normalized.substring(2);
+        while (normalized.startsWith("/")) normalized = normalized.substring(1);
+        return normalized;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,180 @@
+package com.repo.guard.model.repo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * writes code chunks straight into postgres with COPY ... FROM STDIN, bypassing hibernate entity management,
+ * per-entity id generation and vector type binding. joins the surrounding spring transaction when there is one
+ */
+@Slf4j
+@Repository
+public class CodeChunkBulkWriter {
+    private static final String COPY_SQL =
+            "COPY code_chunks (id, repo_id, file_path, path, part_index, part_count, content_hash, start_byte, end_byte, content, embedding, generation) "
+                    + "FROM STDIN WITH (FORMAT text)";
+
+    //  rows are encoded into this buffer and handed to the driver whenever it fills up
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Counter rowsWritten;
+    private final Counter bytesWritten;
+    private final Timer copyTimer;
+
+    public CodeChunkBulkWriter(JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.rowsWritten = Counter.builder("guard.chunks.copy.rows").register(meterRegistry);
+        this.bytesWritten = Counter.builder("guard.chunks.copy.bytes").baseUnit("bytes").register(meterRegistry);
+        this.copyTimer = Timer.builder("guard.chunks.copy").register(meterRegistry);
+    }
+
+    /**
+     * streams the chunks into code_chunks with a single COPY and returns the number of rows written
+     *
+     * @param chunks
+     * @return
+     */
+    public long write(List<CodeChunk> chunks) {
+        if (chunks.isEmpty()) return 0;
+
+        long start = System.nanoTime();
+        long[] bytes = new long[1];
+
+        Long rows = jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+            CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(COPY_SQL);
+            try {
+                StringBuilder buffer = new StringBuilder(WRITE_BUFFER_SIZE);
+                for (CodeChunk chunk : chunks) {
+                    //  ids are generated here since no entity is ever persisted through hibernate
+                    if (chunk.getId() == null) chunk.setId(UUID.randomUUID());
+                    appendRow(buffer, chunk);
+                    if (buffer.length() >= WRITE_BUFFER_SIZE) bytes[0] += flush(copyIn, buffer);
+                }
+                bytes[0] += flush(copyIn, buffer);
+                return copyIn.endCopy();
+            } finally {
+                //  make sure a failed copy doesn't leave the connection stuck in copy mode
+                if (copyIn.isActive()) copyIn.cancelCopy();
+            }
+        });
+
+        long elapsedNanos = System.nanoTime() - start;
+        long written = rows != null ? rows : 0;
+        rowsWritten.increment(written);
+        bytesWritten.increment(bytes[0]);
+        copyTimer.record(elapsedNanos, TimeUnit.NANOSECONDS);
+
+        double seconds = Math.max(elapsedNanos, 1) / 1_000_000_000.0;
+        log.info("COPY wrote {} chunk(s), {} KB in {} ms ({} rows/s).",
+                written, bytes[0] / 1024, elapsedNanos / 1_000_000, Math.round(written / seconds));
+        return written;
+    }
+
+    private long flush(CopyIn copyIn, StringBuilder buffer) throws SQLException {
+        if (buffer.isEmpty()) return 0;
+        byte[] data = buffer.toString().getBytes(StandardCharsets.UTF_8);
+        copyIn.writeToCopy(data, 0, data.length);
+        buffer.setLength(0);
+        return data.length;
+    }
+
+    /**
+     * encodes one chunk as a tab separated COPY text row
+     *
+     * @param buffer
+     * @param chunk
+     */
+    static void appendRow(StringBuilder buffer, CodeChunk chunk) {
+        buffer.append(chunk.getId()).append('\t');
+        appendNumber(buffer, chunk.getRepoId());
+        buffer.append('\t');
+        appendText(buffer, chunk.getFilePath());
+        buffer.append('\t');
+        appendText(buffer, chunk.getPath());
+        buffer.append('\t');
+        appendNumber(buffer, chunk.getPartIndex());
+        buffer.append('\t');
+        appendNumber(buffer, chunk.getPartCount());
+        buffer.append('\t');
+        appendText(buffer, chunk.getContentHash());
+        buffer.append('\t');
+        appendNumber(buffer, chunk.getStartByte());
+        buffer.append('\t');
+        appendNumber(buffer, chunk.getEndByte());
+        buffer.append('\t');
+        appendText(buffer, chunk.getContent());
+        buffer.append('\t');
+        appendVector(buffer, chunk.getEmbedding());
+        buffer.append('\t');
+        appendNumber(buffer, chunk.getGeneration());
+        buffer.append('\n');
+    }
+
+    /**
+     * writes a numeric column, or the COPY null marker when it is absent
+     *
+     * @param buffer
+     * @param value
+     */
+    private static void appendNumber(StringBuilder buffer, Number value) {
+        buffer.append(value != null ? value.toString() : "\\N");
+    }
+
+    /**
+     * escapes a value for the COPY text format, where backslash, tab and line breaks are special
+     *
+     * @param buffer
+     * @param value
+     */
+    private static void appendText(StringBuilder buffer, String value) {
+        if (value == null) {
+            buffer.append("\\N");
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> buffer.append("\\\\");
+                case '\t' -> buffer.append("\\t");
+                case '\n' -> buffer.append("\\n");
+                case '\r' -> buffer.append("\\r");
+                //  postgres text columns can't hold NUL, drop it rather than failing the whole copy
+                case '\0' -> { }
+                default -> buffer.append(c);
+            }
+        }
+    }
+
+    /**
+     * writes a vector in pgvector's text representation, e.g. [0.1,0.2,0.3]
+     *
+     * @param buffer
+     * @param vector
+     */
+    private static void appendVector(StringBuilder buffer, float[] vector) {
+        if (vector == null) {
+            buffer.append("\\N");
+            return;
+        }
+        buffer.append('[');
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0) buffer.append(',');
+            buffer.append(vector[i]);
+        }
+        buffer.append(']');
+    }
+}
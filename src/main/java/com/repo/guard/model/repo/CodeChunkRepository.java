@@ -16,28 +16,208 @@ public interface CodeChunkRepository extends JpaRepository<CodeChunk, UUID> {
      * Finds the most similar code chunks using Cosine Distance.
      * * The operator '<=>' is the pgvector specific operator for "Cosine Distance".
      * CAST(?1 AS vector) converts the Java float[] into a Postgres Vector.
+     * Results are lean projections without the embedding, and matches further away than maxDistance are dropped.
      * * @param embedding The vector of the user's query
      * @param limit How many results to return
-     * @return List of matching code chunks
+     * @param maxDistance Largest cosine distance a match may have
+     * @return List of matching code chunks, closest first
      */
-    @Query(value = "SELECT * FROM code_chunks ORDER BY embedding <=> cast(?1 as vector) LIMIT ?2", nativeQuery = true)
-    List<CodeChunk> findSimilarChunks(float[] embedding, int limit);
+    @Query(value = """
+            SELECT m.id AS "id", m.file_path AS "filePath", m.path AS "path", m.content AS "content", m.distance AS "distance" FROM (
+                SELECT c.id, c.file_path, c.path, c.content, c.embedding <=> cast(?1 as vector) AS distance
+                FROM code_chunks c
+                WHERE c.generation = (SELECT r.active_generation FROM repositories r WHERE r.id = c.repo_id)
+                ORDER BY c.embedding <=> cast(?1 as vector)
+                LIMIT ?2
+            ) m
+            WHERE m.distance <= ?3
+            ORDER BY m.distance
+            """, nativeQuery = true)
+    List<ChunkMatch> findSimilarChunks(float[] embedding, int limit, double maxDistance);
+
+    //  the repo_id literal lets postgres prune every other partition, so only this repository's index is walked
+    @Query(value = """
+            SELECT m.id AS "id", m.file_path AS "filePath", m.path AS "path", m.content AS "content", m.distance AS "distance" FROM (
+                SELECT c.id, c.file_path, c.path, c.content, c.embedding <=> cast(?1 as vector) AS distance
+                FROM code_chunks c
+                WHERE c.repo_id = ?3 AND c.generation = (SELECT r.active_generation FROM repositories r WHERE r.id = ?3)
+                ORDER BY c.embedding <=> cast(?1 as vector)
+                LIMIT ?2
+            ) m
+            WHERE m.distance <= ?4
+            ORDER BY m.distance
+            """, nativeQuery = true)
+    List<ChunkMatch> findSimilarChunksByRepo(float[] embedding, int limit, int repoId, double maxDistance);
+
+    //  the quantized variants walk the compact expression index for the top candidates, then re-rank those by
+    //  their exact distance on the full precision vectors. the ORDER BY expressions must match the index expressions
+
+    @Query(value = """
+            SELECT m.id AS "id", m.file_path AS "filePath", m.path AS "path", m.content AS "content", m.distance AS "distance" FROM (
+                SELECT c.id, c.file_path, c.path, c.content, c.embedding <=> cast(?1 as vector) AS distance
+                FROM code_chunks c
+                WHERE c.generation = (SELECT r.active_generation FROM repositories r WHERE r.id = c.repo_id)
+                ORDER BY c.embedding::halfvec(768) <=> cast(?1 as vector)::halfvec(768)
+                LIMIT ?3
+            ) m
+            WHERE m.distance <= ?4
+            ORDER BY m.distance
+            LIMIT ?2
+            """, nativeQuery = true)
+    List<ChunkMatch> findSimilarChunksHalfvec(float[] embedding, int limit, int candidates, double maxDistance);
 
     @Query(value = """
-            SELECT * FROM code_chunks 
-            WHERE repo_url = ?3 
-            ORDER BY embedding <=> cast(?1 as vector)
+            SELECT m.id AS "id", m.file_path AS "filePath", m.path AS "path", m.content AS "content", m.distance AS "distance" FROM (
+                SELECT c.id, c.file_path, c.path, c.content, c.embedding <=> cast(?1 as vector) AS distance
+                FROM code_chunks c
+                WHERE c.repo_id = ?3 AND c.generation = (SELECT r.active_generation FROM repositories r WHERE r.id = ?3)
+                ORDER BY c.embedding::halfvec(768) <=> cast(?1 as vector)::halfvec(768)
+                LIMIT ?4
+            ) m
+            WHERE m.distance <= ?5
+            ORDER BY m.distance
             LIMIT ?2
             """, nativeQuery = true)
-    List<CodeChunk> findSimilarChunksByRepo(float[] embedding, int limit, String repoUrl);
+    List<ChunkMatch> findSimilarChunksByRepoHalfvec(float[] embedding, int limit, int repoId, int candidates, double maxDistance);
+
+    @Query(value = """
+            SELECT m.id AS "id", m.file_path AS "filePath", m.path AS "path", m.content AS "content", m.distance AS "distance" FROM (
+                SELECT c.id, c.file_path, c.path, c.content, c.embedding <=> cast(?1 as vector) AS distance
+                FROM code_chunks c
+                WHERE c.generation = (SELECT r.active_generation FROM repositories r WHERE r.id = c.repo_id)
+                ORDER BY binary_quantize(c.embedding)::bit(768) <~> binary_quantize(cast(?1 as vector))
+                LIMIT ?3
+            ) m
+            WHERE m.distance <= ?4
+            ORDER BY m.distance
+            LIMIT ?2
+            """, nativeQuery = true)
+    List<ChunkMatch> findSimilarChunksBinary(float[] embedding, int limit, int candidates, double maxDistance);
+
+    @Query(value = """
+            SELECT m.id AS "id", m.file_path AS "filePath", m.path AS "path", m.content AS "content", m.distance AS "distance" FROM (
+                SELECT c.id, c.file_path, c.path, c.content, c.embedding <=> cast(?1 as vector) AS distance
+                FROM code_chunks c
+                WHERE c.repo_id = ?3 AND c.generation = (SELECT r.active_generation FROM repositories r WHERE r.id = ?3)
+                ORDER BY binary_quantize(c.embedding)::bit(768) <~> binary_quantize(cast(?1 as vector))
+                LIMIT ?4
+            ) m
+            WHERE m.distance <= ?5
+            ORDER BY m.distance
+            LIMIT ?2
+            """, nativeQuery = true)
+    List<ChunkMatch> findSimilarChunksByRepoBinary(float[] embedding, int limit, int repoId, int candidates, double maxDistance);
+
+    /**
+     * runs many similarity searches within one repository in a single statement: every query vector is joined
+     * laterally to its own top-k, and chunks matched by several queries are returned once with their closest distance
+     *
+     * @param embeddings array literal of the query vectors, e.g. {"[0.1,0.2]","[0.3,0.4]"}
+     * @param limit results per query vector
+     * @param repoId
+     * @param maxDistance largest cosine distance a match may have
+     * @return the distinct matches, closest first
+     */
+    @Query(value = """
+            SELECT d.id AS "id", d.file_path AS "filePath", d.path AS "path", d.content AS "content", d.distance AS "distance" FROM (
+                SELECT DISTINCT ON (m.id) m.id, m.file_path, m.path, m.content, m.distance
+                FROM unnest(cast(?1 as vector[])) AS q(embedding)
+                CROSS JOIN LATERAL (
+                    SELECT c.id, c.file_path, c.path, c.content, c.embedding <=> q.embedding AS distance
+                    FROM code_chunks c
+                    WHERE c.repo_id = ?3 AND c.generation = (SELECT r.active_generation FROM repositories r WHERE r.id = ?3)
+                    ORDER BY c.embedding <=> q.embedding
+                    LIMIT ?2
+                ) m
+                WHERE m.distance <= ?4
+                ORDER BY m.id, m.distance
+            ) d
+            ORDER BY d.distance
+            """, nativeQuery = true)
+    List<ChunkMatch> findSimilarChunksByRepoBatch(String embeddings, int limit, int repoId, double maxDistance);
+
+    @Query(value = """
+            SELECT d.id AS "id", d.file_path AS "filePath", d.path AS "path", d.content AS "content", d.distance AS "distance" FROM (
+                SELECT DISTINCT ON (m.id) m.id, m.file_path, m.path, m.content, m.distance
+                FROM unnest(cast(?1 as vector[])) AS q(embedding)
+                CROSS JOIN LATERAL (
+                    SELECT x.* FROM (
+                        SELECT c.id, c.file_path, c.path, c.content, c.embedding <=> q.embedding AS distance
+                        FROM code_chunks c
+                        WHERE c.repo_id = ?3 AND c.generation = (SELECT r.active_generation FROM repositories r WHERE r.id = ?3)
+                        ORDER BY c.embedding::halfvec(768) <=> q.embedding::halfvec(768)
+                        LIMIT ?5
+                    ) x
+                    ORDER BY x.distance
+                    LIMIT ?2
+                ) m
+                WHERE m.distance <= ?4
+                ORDER BY m.id, m.distance
+            ) d
+            ORDER BY d.distance
+            """, nativeQuery = true)
+    List<ChunkMatch> findSimilarChunksByRepoBatchHalfvec(String embeddings, int limit, int repoId, double maxDistance, int candidates);
 
-    List<CodeChunk> findByRepoUrl(String repoUrl);
+    @Query(value = """
+            SELECT d.id AS "id", d.file_path AS "filePath", d.path AS "path", d.content AS "content", d.distance AS "distance" FROM (
+                SELECT DISTINCT ON (m.id) m.id, m.file_path, m.path, m.content, m.distance
+                FROM unnest(cast(?1 as vector[])) AS q(embedding)
+                CROSS JOIN LATERAL (
+                    SELECT x.* FROM (
+                        SELECT c.id, c.file_path, c.path, c.content, c.embedding <=> q.embedding AS distance
+                        FROM code_chunks c
+                        WHERE c.repo_id = ?3 AND c.generation = (SELECT r.active_generation FROM repositories r WHERE r.id = ?3)
+                        ORDER BY binary_quantize(c.embedding)::bit(768) <~> binary_quantize(q.embedding)
+                        LIMIT ?5
+                    ) x
+                    ORDER BY x.distance
+                    LIMIT ?2
+                ) m
+                WHERE m.distance <= ?4
+                ORDER BY m.id, m.distance
+            ) d
+            ORDER BY d.distance
+            """, nativeQuery = true)
+    List<ChunkMatch> findSimilarChunksByRepoBatchBinary(String embeddings, int limit, int repoId, double maxDistance, int candidates);
 
+    //  deletes every chunk of the given normalized paths in one statement, served by the (repo_id, path) index
     @Transactional
-    void deleteByRepoUrl(String repoUrl);
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "DELETE FROM code_chunks WHERE repo_id = :repoId AND generation = :generation AND path = ANY(:paths)", nativeQuery = true)
+    int deleteByRepoIdAndPathIn(@Param("repoId") int repoId, @Param("generation") long generation, @Param("paths") String[] paths);
 
+    @Query(value = "SELECT nextval('code_chunk_generation_seq')", nativeQuery = true)
+    long nextGeneration();
+
+    //  moves the rows staged by an incremental ingestion into the active generation
     @Transactional
     @Modifying(flushAutomatically = true, clearAutomatically = true)
-    @Query(value = "DELETE FROM code_chunks WHERE repo_url = :repoUrl AND file_path LIKE CONCAT(:filePath, '%')", nativeQuery = true)
-    void deleteByRepoUrlAndFilePathStartingWith(@Param("repoUrl") String repoUrl, @Param("filePath") String filePath);
-}
\ No newline at end of file
+    @Query(value = "UPDATE code_chunks SET generation = :target WHERE repo_id = :repoId AND generation = :staged", nativeQuery = true)
+    int promoteGeneration(@Param("repoId") int repoId, @Param("staged") long staged, @Param("target") long target);
+
+    //  deletes at most batchSize rows of every generation below the bound except the active one, i.e. superseded
+    //  generations and abandoned staged ones, so purging never holds long locks or one huge transaction
+    @Transactional
+    @Modifying
+    @Query(value = """
+            DELETE FROM code_chunks WHERE repo_id = :repoId AND ctid = ANY(ARRAY(
+                SELECT ctid FROM code_chunks
+                WHERE repo_id = :repoId
+                  AND (generation < :activeGeneration OR (generation > :activeGeneration AND generation < :bound))
+                LIMIT :batchSize
+            ))
+            """, nativeQuery = true)
+    int deleteInactiveGenerationBatch(@Param("repoId") int repoId, @Param("activeGeneration") long activeGeneration, @Param("bound") long bound, @Param("batchSize") int batchSize);
+
+    //  deletes at most batchSize rows of one abandoned generation
+    @Transactional
+    @Modifying
+    @Query(value = """
+            DELETE FROM code_chunks WHERE repo_id = :repoId AND ctid = ANY(ARRAY(
+                SELECT ctid FROM code_chunks
+                WHERE repo_id = :repoId AND generation = :generation
+                LIMIT :batchSize
+            ))
+            """, nativeQuery = true)
+    int deleteGenerationBatch(@Param("repoId") int repoId, @Param("generation") long generation, @Param("batchSize") int batchSize);
+}
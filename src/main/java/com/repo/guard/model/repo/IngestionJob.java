@@ -0,0 +1,53 @@
+package com.repo.guard.model.repo;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.Instant;
+
+@Entity
+@Table(name = "ingestion_jobs", indexes = {
+        @Index(name = "idx_ingestion_jobs_repo_url", columnList = "repoUrl"),
+        @Index(name = "idx_ingestion_jobs_created_at", columnList = "createdAt")
+})
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class IngestionJob {
+    //  the job id handed back to the caller when the ingestion was accepted
+    @Id
+    private String id;
+
+    @Column(nullable = false, columnDefinition = "TEXT")
+    private String repoUrl;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false)
+    private IngestionJobState state;
+
+    @Enumerated(EnumType.STRING)
+    private IngestionJobPhase phase;
+
+    //  FULL or INCREMENTAL, known once the job has diffed against the indexed commit
+    private String mode;
+    private String commitSha;
+
+    //  progress counters, filesTotal is only known once the files to index have been counted
+    private Long filesTotal;
+    private Long filesProcessed;
+    private Long chunksProcessed;
+
+    //  chunks embedded and written per second since the indexing phase started
+    private Double embedRate;
+    private Long etaSeconds;
+
+    @Column(columnDefinition = "TEXT")
+    private String error;
+
+    private Instant createdAt;
+    private Instant startedAt;
+    private Instant updatedAt;
+    private Instant finishedAt;
+}
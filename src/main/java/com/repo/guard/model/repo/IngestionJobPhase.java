@@ -0,0 +1,12 @@
+package com.repo.guard.model.repo;
+
+public enum IngestionJobPhase {
+    QUEUED,
+    WAITING_FOR_LOCK,
+    VALIDATING,
+    FETCHING,
+    DIFFING,
+    INDEXING,
+    ACTIVATING,
+    DONE
+}
@@ -0,0 +1,21 @@
+package com.repo.guard.model.repo;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface IngestionJobRepository extends JpaRepository<IngestionJob, String> {
+    List<IngestionJob> findAllByOrderByCreatedAtDesc(Pageable pageable);
+
+    List<IngestionJob> findByRepoUrlOrderByCreatedAtDesc(String repoUrl, Pageable pageable);
+
+    List<IngestionJob> findByStateOrderByCreatedAtDesc(IngestionJobState state, Pageable pageable);
+
+    List<IngestionJob> findByRepoUrlAndStateOrderByCreatedAtDesc(String repoUrl, IngestionJobState state, Pageable pageable);
+
+    List<IngestionJob> findByStateIn(Collection<IngestionJobState> states);
+}
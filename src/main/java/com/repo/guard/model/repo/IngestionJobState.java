@@ -0,0 +1,12 @@
+package com.repo.guard.model.repo;
+
+public enum IngestionJobState {
+    QUEUED,
+    RUNNING,
+    COMPLETED,
+    FAILED;
+
+    public boolean isTerminal() {
+        return this == COMPLETED || this == FAILED;
+    }
+}
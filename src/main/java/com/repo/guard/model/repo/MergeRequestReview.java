@@ -0,0 +1,46 @@
+package com.repo.guard.model.repo;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * what was last reviewed on a merge request, so an update only reviews the changes pushed since then
+ */
+@Entity
+@Table(name = "merge_request_reviews", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_merge_request_reviews_project_mr", columnNames = {"projectId", "mrIid"})
+})
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class MergeRequestReview {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private Integer projectId;
+
+    @Column(nullable = false)
+    private Long mrIid;
+
+    //  head commit of the source branch when the last review was posted
+    private String headSha;
+
+    //  hash of every file's diff against the target branch at that commit, a file whose hash is unchanged
+    //  still has the same findings and isn't reviewed again
+    @Builder.Default
+    @ElementCollection(fetch = FetchType.EAGER)
+    @CollectionTable(name = "merge_request_review_files", joinColumns = @JoinColumn(name = "review_id"))
+    @MapKeyColumn(name = "path", columnDefinition = "TEXT")
+    @Column(name = "diff_hash", length = 64)
+    private Map<String, String> fileDiffHashes = new HashMap<>();
+
+    private Instant reviewedAt;
+}
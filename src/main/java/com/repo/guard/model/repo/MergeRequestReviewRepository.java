@@ -0,0 +1,11 @@
+package com.repo.guard.model.repo;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface MergeRequestReviewRepository extends JpaRepository<MergeRequestReview, Long> {
+    Optional<MergeRequestReview> findByProjectIdAndMrIid(Integer projectId, Long mrIid);
+}
@@ -0,0 +1,45 @@
+package com.repo.guard.model.repo;
+
+import jakarta.persistence.*;
+import lombok.*;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.time.Instant;
+
+@Entity
+@Table(name = "repositories")
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class RepoModel {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Integer id;
+
+    @Column(nullable = false, unique = true, columnDefinition = "TEXT")
+    private String repoUrl;
+
+    private String defaultBranch;
+
+    //  commit the stored vectors were built from, used as the base of the next incremental re-ingest
+    private String indexedCommitSha;
+    private Instant indexedAt;
+
+    //  generation of code_chunks that reviews and chat read from, flipped only once a new generation is complete
+    @Builder.Default
+    private Long activeGeneration = 0L;
+
+    //  number of chunks in the active generation
+    @Builder.Default
+    private Long chunkCount = 0L;
+
+    @CreationTimestamp
+    @Column(updatable = false)
+    private Instant createdAt;
+
+    @UpdateTimestamp
+    private Instant updatedAt;
+}
@@ -0,0 +1,46 @@
+package com.repo.guard.model.repo;
+
+import jakarta.persistence.LockModeType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.util.Optional;
+
+@Repository
+public interface RepoModelRepository extends JpaRepository<RepoModel, Integer> {
+    Optional<RepoModel> findByRepoUrl(String repoUrl);
+
+    @Query("SELECT r.id FROM RepoModel r WHERE r.repoUrl = :repoUrl")
+    Optional<Integer> findIdByRepoUrl(@Param("repoUrl") String repoUrl);
+
+    //  locks the repository row so concurrent generation flips and in-place updates of the same repo are serialized
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT r FROM RepoModel r WHERE r.repoUrl = :repoUrl")
+    Optional<RepoModel> lockByRepoUrl(@Param("repoUrl") String repoUrl);
+
+    //  flips the active generation only forward, so an older ingestion finishing late can't replace a newer one
+    @Transactional
+    @Modifying(clearAutomatically = true)
+    @Query("""
+            UPDATE RepoModel r
+            SET r.activeGeneration = :generation, r.indexedCommitSha = :commitSha, r.indexedAt = :indexedAt,
+                r.chunkCount = :chunkCount, r.updatedAt = :indexedAt
+            WHERE r.repoUrl = :repoUrl AND r.activeGeneration < :generation
+            """)
+    int activateGeneration(
+            @Param("repoUrl") String repoUrl,
+            @Param("generation") long generation,
+            @Param("commitSha") String commitSha,
+            @Param("indexedAt") Instant indexedAt,
+            @Param("chunkCount") long chunkCount
+    );
+
+    @Transactional
+    void deleteByRepoUrl(String repoUrl);
+}
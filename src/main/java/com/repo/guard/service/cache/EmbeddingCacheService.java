@@ -0,0 +1,209 @@
+package com.repo.guard.service.cache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * content-addressed cache of embedding vectors. entries are keyed by a hash of (model, dimensions, normalized text)
+ * and stored as raw little-endian floats in redis with a ttl, with a small in-process lru near cache in front of it
+ */
+@Slf4j
+@Service
+public class EmbeddingCacheService {
+    private static final String KEY_PREFIX = "guard:emb:";
+
+    private final RedisTemplate<String, byte[]> redisTemplate;
+    private final boolean enabled;
+    private final Duration ttl;
+    private final String keyNamespace;
+    private final Map<String, float[]> nearCache;
+
+    private final Counter nearHits;
+    private final Counter redisHits;
+    private final Counter misses;
+    private final Counter errors;
+
+    public EmbeddingCacheService(
+            @Qualifier("binaryRedisTemplate") RedisTemplate<String, byte[]> redisTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${guard.embedding.cache.enabled:true}") boolean enabled,
+            @Value("${guard.embedding.cache.ttl:P30D}") Duration ttl,
+            @Value("${guard.embedding.cache.near-cache-size:10000}") int nearCacheSize,
+            @Value("${spring.ai.google.genai.embedding.text.options.model:unknown}") String modelName,
+            @Value("${spring.ai.google.genai.embedding.text.options.dimensions:768}") int dimensions
+    ) {
+        this.redisTemplate = redisTemplate;
+        this.enabled = enabled;
+        this.ttl = ttl;
+        //  any change of model or dimensions lands in a different key space, so stale vectors are never served
+        this.keyNamespace = modelName + "|" + dimensions + "|";
+
+        //  access ordered map that drops the least recently used vector once it holds more than the configured size
+        this.nearCache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+                return size() > nearCacheSize;
+            }
+        };
+
+        this.nearHits = Counter.builder("guard.embedding.cache.requests").tag("result", "hit").tag("tier", "near").register(meterRegistry);
+        this.redisHits = Counter.builder("guard.embedding.cache.requests").tag("result", "hit").tag("tier", "redis").register(meterRegistry);
+        this.misses = Counter.builder("guard.embedding.cache.requests").tag("result", "miss").tag("tier", "none").register(meterRegistry);
+        this.errors = Counter.builder("guard.embedding.cache.errors").register(meterRegistry);
+        Gauge.builder("guard.embedding.cache.near.size", this, cache -> cache.nearCacheSize()).register(meterRegistry);
+    }
+
+    /**
+     * looks up the vectors of all texts, checking the near cache first and then redis in a single round trip
+     *
+     * @param texts
+     * @return vectors in input order, null where the text is not cached
+     */
+    public List<float[]> getAll(List<String> texts) {
+        float[][] results = new float[texts.size()][];
+        if (!enabled || texts.isEmpty()) return Arrays.asList(results);
+
+        List<String> remoteKeys = new ArrayList<>();
+        List<Integer> remoteIndexes = new ArrayList<>();
+
+        for (int i = 0; i < texts.size(); i++) {
+            String key = keyFor(texts.get(i));
+            float[] cached;
+            synchronized (nearCache) {
+                cached = nearCache.get(key);
+            }
+            if (cached != null) {
+                results[i] = cached;
+                nearHits.increment();
+            } else {
+                remoteKeys.add(key);
+                remoteIndexes.add(i);
+            }
+        }
+
+        if (!remoteKeys.isEmpty()) {
+            try {
+                List<byte[]> values = redisTemplate.opsForValue().multiGet(remoteKeys);
+                for (int i = 0; values != null && i < values.size(); i++) {
+                    byte[] value = values.get(i);
+                    if (value == null) continue;
+                    float[] vector = decode(value);
+                    results[remoteIndexes.get(i)] = vector;
+                    putNear(remoteKeys.get(i), vector);
+                    redisHits.increment();
+                }
+            } catch (Exception err) {
+                //  a cache outage must never fail an embedding request, fall through to the provider instead
+                errors.increment();
+                log.warn("Embedding cache lookup failed, treating as miss: {}", err.getMessage());
+            }
+        }
+
+        long missed = Arrays.stream(results).filter(vector -> vector == null).count();
+        misses.increment(missed);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * stores freshly generated vectors in both cache tiers, pipelining the redis writes
+     *
+     * @param texts
+     * @param vectors
+     */
+    public void putAll(List<String> texts, List<float[]> vectors) {
+        if (!enabled || texts.isEmpty()) return;
+
+        Map<byte[], byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < texts.size(); i++) {
+            float[] vector = vectors.get(i);
+            if (vector == null) continue;
+            String key = keyFor(texts.get(i));
+            putNear(key, vector);
+            entries.put(key.getBytes(StandardCharsets.UTF_8), encode(vector));
+        }
+        if (entries.isEmpty()) return;
+
+        try {
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                entries.forEach((key, value) -> connection.stringCommands()
+                        .set(key, value, Expiration.from(ttl), RedisStringCommands.SetOption.upsert()));
+                return null;
+            });
+        } catch (Exception err) {
+            errors.increment();
+            log.warn("Embedding cache write failed, continuing without caching: {}", err.getMessage());
+        }
+    }
+
+    private void putNear(String key, float[] vector) {
+        synchronized (nearCache) {
+            nearCache.put(key, vector);
+        }
+    }
+
+    private int nearCacheSize() {
+        synchronized (nearCache) {
+            return nearCache.size();
+        }
+    }
+
+    /**
+     * builds the content address of a text for the configured model
+     *
+     * @param text
+     * @return
+     */
+    private String keyFor(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((keyNamespace + normalize(text)).getBytes(StandardCharsets.UTF_8));
+            return KEY_PREFIX + HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * normalizes line endings and trailing whitespace so texts that only differ in formatting share a vector
+     *
+     * @param text
+     * @return
+     */
+    private static String normalize(String text) {
+        return text.replace("\r\n", "\n").replaceAll("[ \\t]+(?=\\n)", "").strip();
+    }
+
+    private static byte[] encode(float[] vector) {
+        ByteBuffer buffer = ByteBuffer.allocate(vector.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(vector);
+        return buffer.array();
+    }
+
+    private static float[] decode(byte[] bytes) {
+        float[] vector = new float[bytes.length / Float.BYTES];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(vector);
+        return vector;
+    }
+}
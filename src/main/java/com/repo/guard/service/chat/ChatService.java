@@ -2,29 +2,47 @@ package com.repo.guard.service.chat;
 
 import com.repo.guard.dto.ChatRequestDto;
 import com.repo.guard.dto.ChatResponseDto;
-import com.repo.guard.model.repo.CodeChunk;
-import com.repo.guard.model.repo.CodeChunkRepository;
+import com.repo.guard.model.repo.ChunkMatch;
+import com.repo.guard.service.repo.VectorEmbeddingService;
+import com.repo.guard.service.repo.VectorSearchService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.eclipse.jgit.util.StringUtils;
 import org.springframework.ai.chat.model.ChatModel;
-import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class ChatService {
-    private final CodeChunkRepository codeChunkRepository;
-    private final EmbeddingModel embeddingModel;
+    private final VectorSearchService vectorSearchService;
+    private final VectorEmbeddingService vectorEmbeddingService;
     private final ChatModel chatModel;
 
     //  limit the scan to the top 15 most relevant chunks to ensure < 1 minute execution
     //  pgvector is highly accurate; if it's not in the top 15, it's not in the repo.
     private static final int MAX_CHUNKS_TO_SCAN = 50;
 
+    //  chunks further from the question than this cosine distance are left out of the prompt, blank keeps them all
+    @Value("${guard.chat.max-distance:}")
+    private Double maxDistance;
+
+    /**
+     * answers the chat request on the bounded chat executor, so slow model calls never tie up request threads
+     *
+     * @param request
+     * @return
+     */
+    @Async("chatExecutor")
+    public CompletableFuture<ChatResponseDto> askQuestionAsync(ChatRequestDto request) {
+        return CompletableFuture.completedFuture(askQuestion(request));
+    }
+
     /**
      * handles the chat request by determining the appropriate search strategy
      *
@@ -51,15 +69,15 @@ public class ChatService {
         log.info("Starting DIRECT VECTOR SCAN for repo: {}", request.getRepoUrl());
 
         //  generate embedding for the user question
-        float[] queryVector = embeddingModel.embed(request.getQuestion());
+        float[] queryVector = vectorEmbeddingService.embed(request.getQuestion());
 
         //  retrieve only the top 5 most similar chunks from the specified repository
-        List<CodeChunk> topChunks = codeChunkRepository.findSimilarChunksByRepo(queryVector, MAX_CHUNKS_TO_SCAN, request.getRepoUrl());
+        List<ChunkMatch> topChunks = vectorSearchService.findSimilarChunksByRepo(queryVector, MAX_CHUNKS_TO_SCAN, request.getRepoUrl(), maxDistance);
 
         //  if no chunks found, return a message indicating the repo may not have been ingested yet
         if (topChunks.isEmpty()) return new ChatResponseDto("No code found for this repository. Has it been ingested?", List.of());
 
-        log.info("Found top {} relevant chunks. Generating final answer...", topChunks.size());
+        log.info("Found top {} relevant chunks (closest distance {}). Generating final answer...", topChunks.size(), topChunks.get(0).getDistance());
 
         //  build context directly from the found chunks
         String context = topChunks.stream()
@@ -87,7 +105,7 @@ public class ChatService {
         String answer = chatModel.call(prompt);
 
         //  return answer and deduplicated list of source files
-        return new ChatResponseDto(answer, topChunks.stream().map(CodeChunk::getFilePath).distinct().toList());
+        return new ChatResponseDto(answer, topChunks.stream().map(ChunkMatch::getFilePath).distinct().toList());
     }
 
     /**
@@ -101,9 +119,9 @@ public class ChatService {
         log.info("Repo URL missing. Performing global vector search.");
 
         //  generate embedding for the user question
-        float[] queryVector = embeddingModel.embed(request.getQuestion());
+        float[] queryVector = vectorEmbeddingService.embed(request.getQuestion());
         //  find top 10 most similar chunks across all repositories
-        List<CodeChunk> similarChunks = codeChunkRepository.findSimilarChunks(queryVector, 10);
+        List<ChunkMatch> similarChunks = vectorSearchService.findSimilarChunks(queryVector, 10, maxDistance);
 
         //  if db is empty or no matches found, return early to save ai tokens
         if (similarChunks.isEmpty()) return new ChatResponseDto("I couldn't find any relevant code in the database.", List.of());
@@ -118,6 +136,6 @@ public class ChatService {
         String answer = chatModel.call(prompt);
 
         //  return answer and list of source files
-        return new ChatResponseDto(answer, similarChunks.stream().map(CodeChunk::getFilePath).distinct().toList());
+        return new ChatResponseDto(answer, similarChunks.stream().map(ChunkMatch::getFilePath).distinct().toList());
     }
 }
\ No newline at end of file
@@ -2,150 +2,433 @@ package com.repo.guard.service.gitlab;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.repo.guard.dto.RepoIngestionRequestDto;
-import com.repo.guard.model.repo.CodeChunk;
-import com.repo.guard.model.repo.CodeChunkRepository;
+import com.repo.guard.model.repo.ChunkMatch;
+import com.repo.guard.model.repo.IngestionJob;
+import com.repo.guard.model.repo.IngestionJobState;
+import com.repo.guard.service.repo.IngestionCoordinatorService;
+import com.repo.guard.service.repo.IngestionJobService;
 import com.repo.guard.service.repo.RepoIngestionWorkerService;
+import com.repo.guard.service.repo.VectorEmbeddingService;
+import com.repo.guard.service.repo.VectorSearchService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.gitlab4j.api.GitLabApi;
 import org.gitlab4j.api.models.Diff;
 import org.springframework.ai.chat.model.ChatModel;
 import org.springframework.ai.chat.prompt.PromptTemplate;
 import org.springframework.ai.document.Document;
-import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
 import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
 @Slf4j
 public abstract class AbstractGitLabEventHandler implements GitlabEventHandler {
     protected final ChatModel chatModel;
-    protected final CodeChunkRepository chunkRepository;
+    protected final VectorSearchService vectorSearchService;
     protected final RepoIngestionWorkerService ingestionService;
-    protected final EmbeddingModel embeddingModel;
+    protected final IngestionCoordinatorService ingestionCoordinatorService;
+    protected final IngestionJobService ingestionJobService;
+    protected final VectorEmbeddingService vectorEmbeddingService;
     protected final String gitlabUrl;
     protected final String gitlabToken;
     protected final Resource codeReviewPromptResource;
+    //  runs every review, its pool size is the review concurrency of the instance and a full queue fails the webhook
+    //  message so it is retried later
+    protected final Executor reviewExecutor;
+
+    //  how long a parked review waits for the ingestion of its repository before running with the diff only
+    @Value("${guard.review.ingestion-wait-timeout:PT10M}")
+    private Duration ingestionWaitTimeout;
+
+    //  related chunks further from a diff segment than this cosine distance are left out of the review, blank keeps them all
+    @Value("${guard.review.context-max-distance:}")
+    private Double contextMaxDistance;
+
+    //  how long a review waits for related context before it goes ahead with whatever has arrived
+    @Value("${guard.review.context-deadline:PT30S}")
+    private Duration contextDeadline;
+
+    //  related chunks fetched per diff segment
+    private static final int CHUNKS_PER_QUERY = 5;
+
+    //  every file's context is fetched on its own virtual thread, the permits bound how many run at once across reviews
+    private final ExecutorService contextExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private Semaphore contextPermits;
+
+    //  files whose related context is fetched at the same time, shared by all reviews handled by this handler
+    @Value("${guard.review.context-concurrency:4}")
+    private int contextConcurrency;
+
+    //  diffs estimated above this many tokens are reviewed in token bounded groups whose partial reviews are merged
+    @Value("${guard.review.map-reduce.threshold-tokens:24000}")
+    private int mapReduceThresholdTokens;
+
+    //  token budget of the diffs packed into one group
+    @Value("${guard.review.map-reduce.group-tokens:12000}")
+    private int mapReduceGroupTokens;
+
+    //  groups reviewed at the same time, shared by all reviews handled by this handler
+    @Value("${guard.review.map-reduce.parallelism:3}")
+    private int mapReduceParallelism;
+
+    //  merges the partial reviews of the groups into one review in the same markdown format
+    @Value("classpath:/static/code-review-reduce.st")
+    private Resource codeReviewReducePromptResource;
+
+    private final ExecutorService groupReviewExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private Semaphore groupReviewPermits;
+
+    //  estimates the prompt size of a diff
+    private final TokenCountEstimator tokenCountEstimator = new JTokkitTokenCountEstimator();
 
     //  instantiate the spring AI text splitter to intelligently chunk large diffs without breaking words
     protected final TokenTextSplitter textSplitter = new TokenTextSplitter(512, 100, 10, 50, true);
 
     protected AbstractGitLabEventHandler(
             ChatModel chatModel,
-            CodeChunkRepository chunkRepository,
+            VectorSearchService vectorSearchService,
             RepoIngestionWorkerService ingestionService,
-            EmbeddingModel embeddingModel,
+            IngestionCoordinatorService ingestionCoordinatorService,
+            IngestionJobService ingestionJobService,
+            VectorEmbeddingService vectorEmbeddingService,
             String gitlabUrl,
             String gitlabToken,
-            Resource codeReviewPromptResource
+            Resource codeReviewPromptResource,
+            Executor reviewExecutor
     ) {
         this.chatModel = chatModel;
-        this.chunkRepository = chunkRepository;
+        this.vectorSearchService = vectorSearchService;
         this.ingestionService = ingestionService;
-        this.embeddingModel = embeddingModel;
+        this.ingestionCoordinatorService = ingestionCoordinatorService;
+        this.ingestionJobService = ingestionJobService;
+        this.vectorEmbeddingService = vectorEmbeddingService;
         this.gitlabUrl = gitlabUrl;
         this.gitlabToken = gitlabToken;
         this.codeReviewPromptResource = codeReviewPromptResource;
+        this.reviewExecutor = reviewExecutor;
+    }
+
+    @PostConstruct
+    void initPermits() {
+        contextPermits = new Semaphore(Math.max(1, contextConcurrency));
+        groupReviewPermits = new Semaphore(Math.max(1, mapReduceParallelism));
+    }
+
+    @PreDestroy
+    void shutdownExecutors() {
+        contextExecutor.shutdownNow();
+        groupReviewExecutor.shutdownNow();
     }
 
     //  template method that defines the skeleton of the AI code review pipeline
-    protected final void executeAiReviewPipeline(
+    protected final CompletableFuture<Void> executeAiReviewPipeline(
             Integer projectId,
             String targetIdentifier,
             String repoUrl,
             List<Diff> diffs
-    ) {
-        try {
-            //  guard against empty or null changes to prevent null pointer exceptions
-            if (diffs == null || diffs.isEmpty()) {
-                log.info("No file changes detected for target {}", targetIdentifier);
-                return;
-            }
+    ) throws Exception {
+        return executeAiReviewPipeline(projectId, targetIdentifier, repoUrl, diffs, "", () -> { }, ReviewCancellation.NONE);
+    }
 
-            //  block the thread until ingestion is 100% complete
-            checkAndIngestRepo(repoUrl);
+    //  same pipeline, with a note placed above the review, a callback run once the review has been posted and a
+    //  handle that stops the review when it gets superseded. completes once the review is done, which is later for a
+    //  review parked behind an ingestion. a review that fails, rather than being superseded, throws or completes
+    //  exceptionally, so the webhook message that asked for it stays unacknowledged and is retried
+    protected final CompletableFuture<Void> executeAiReviewPipeline(
+            Integer projectId,
+            String targetIdentifier,
+            String repoUrl,
+            List<Diff> diffs,
+            String header,
+            Runnable onPosted,
+            ReviewCancellation cancellation
+    ) throws Exception {
+        //  guard against empty or null changes to prevent null pointer exceptions
+        if (diffs == null || diffs.isEmpty()) {
+            log.info("No file changes detected for target {}", targetIdentifier);
+            cancellation.done();
+            return CompletableFuture.completedFuture(null);
+        }
 
-            StringBuilder diffBuilder = new StringBuilder();
-            //  build a string representation of the git diff to pass to the AI. This includes the file path and the actual diff text.
-            for (Diff diff : diffs) {
-                diffBuilder.append("File: ").append(diff.getNewPath()).append("\n");
-                diffBuilder.append(diff.getDiff()).append("\n\n");
-            }
+        //  a completed index is recorded on the repository row, so there is no need to look at the chunks at all.
+        //  the review runs on the review executor rather than the consumer thread that handles the webhook
+        if (ingestionService.isIndexed(repoUrl)) {
+            AtomicBoolean started = new AtomicBoolean();
+            return onReviewExecutor(() -> {
+                started.set(true);
+                runAiReview(projectId, targetIdentifier, repoUrl, diffs, header, onPosted, cancellation);
+                return CompletableFuture.<Void>completedFuture(null);
+            }).whenComplete((ignored, err) -> {
+                //  the review executor rejected the review, it never ran
+                if (!started.get()) cancellation.done();
+            });
+        }
 
-            String diffString = diffBuilder.toString();
+        //  park the review as a continuation of the ingestion job instead of holding this thread while it runs,
+        //  it resumes on the review executor once the job completes, fails or the wait times out. the webhook
+        //  message stays unacknowledged until then, so a restart meanwhile delivers it again
+        CompletableFuture<Void> reviewed = new CompletableFuture<>();
+        awaitIngestion(repoUrl)
+                .orTimeout(ingestionWaitTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .whenCompleteAsync((job, err) -> {
+                    if (cancellation.isCancelled()) {
+                        log.info("Parked review of target {} was superseded while waiting for the ingestion of {}.", targetIdentifier, repoUrl);
+                        cancellation.done();
+                        reviewed.complete(null);
+                        return;
+                    }
+                    if (err instanceof TimeoutException) {
+                        log.warn("Ingestion of {} still running after {}. Reviewing target {} with the diff only.", repoUrl, ingestionWaitTimeout, targetIdentifier);
+                    } else if (err != null) {
+                        log.error("Failed while waiting for the ingestion of {}", repoUrl, err);
+                    } else if (job.getState() == IngestionJobState.COMPLETED) {
+                        log.info("Ingestion job {} completed with {} chunks. Resuming review of target {}.", job.getId(), job.getChunksProcessed(), targetIdentifier);
+                    } else {
+                        log.warn("Ingestion job {} failed ({}). Reviewing target {} with the diff only.", job.getId(), job.getError(), targetIdentifier);
+                    }
+                    try {
+                        runAiReview(projectId, targetIdentifier, repoUrl, diffs, header, onPosted, cancellation);
+                        reviewed.complete(null);
+                    } catch (Exception e) {
+                        reviewed.completeExceptionally(e);
+                    }
+                }, reviewExecutor)
+                .whenComplete((ignored, err) -> {
+                    //  the review executor rejected the resumed review, it never ran
+                    if (!reviewed.isDone()) {
+                        cancellation.done();
+                        reviewed.completeExceptionally(err);
+                    }
+                });
+        return reviewed;
+    }
 
-            //  query the vector database for any existing files that are semantically related to the git diffs
-            //  to provide additional context to the AI
-            String relatedContext = getRelatedCodebaseContext(diffs, repoUrl);
+    //  runs the work on the review executor and completes along with the future it returns. a full review executor
+    //  fails the future instead of running the work on the calling thread, so the webhook message is retried later
+    protected final CompletableFuture<Void> onReviewExecutor(Callable<CompletableFuture<Void>> work) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            reviewExecutor.execute(() -> {
+                try {
+                    work.call().whenComplete((ignored, err) -> {
+                        if (err != null) done.completeExceptionally(err);
+                        else done.complete(null);
+                    });
+                } catch (Exception e) {
+                    done.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
 
-            //  pass both the context and the diff to the AI
-            String reviewComment = performAiCodeReview(diffString, relatedContext);
-            String formattedComment = "**Guard AI Code Review:**\n\n" + reviewComment;
+    //  builds the prompt from the diff and the related codebase context, asks the AI and posts the review
+    private void runAiReview(
+            Integer projectId,
+            String targetIdentifier,
+            String repoUrl,
+            List<Diff> diffs,
+            String header,
+            Runnable onPosted,
+            ReviewCancellation cancellation
+    ) throws Exception {
+        //  cancelling the review interrupts this thread, whether it waits for context, groups or the model
+        cancellation.bind();
+        try {
+            String diffString = toDiffString(diffs);
+
+            //  a diff too large for one prompt is reviewed group by group and the partial reviews are merged afterwards
+            String reviewComment;
+            if (tokenCountEstimator.estimate(diffString) > mapReduceThresholdTokens) {
+                reviewComment = performMapReduceReview(targetIdentifier, repoUrl, diffs, cancellation);
+            } else {
+                //  query the vector database for any existing files that are semantically related to the git diffs
+                //  to provide additional context to the AI
+                String relatedContext = getRelatedCodebaseContext(diffs, repoUrl, cancellation);
+                cancellation.throwIfCancelled();
+
+                //  pass both the context and the diff to the AI
+                reviewComment = performAiCodeReview(diffString, relatedContext);
+            }
+            String formattedComment = "**Guard AI Code Review:**\n\n" + header + reviewComment;
 
+            //  a review of a head that has been superseded meanwhile is never posted
+            cancellation.throwIfCancelled();
             GitLabApi gitLabApi = new GitLabApi(gitlabUrl, gitlabToken);
 
             //  call the abstract method to let the subclass handle the specific API interaction
             postReviewComment(gitLabApi, projectId, targetIdentifier, formattedComment);
             log.info("Successfully posted AI review for target {}", targetIdentifier);
 
+            //  the review is on the merge request now, failing to record it must not get it retried and posted twice
+            try {
+                onPosted.run();
+            } catch (Exception e) {
+                log.warn("Posted the AI review for target {} but failed to record it", targetIdentifier, e);
+            }
         } catch (Exception e) {
+            if (cancellation.isCancelled()) {
+                log.info("Review of target {} at {} was superseded and stopped before posting.", targetIdentifier, cancellation.getHeadSha());
+                return;
+            }
             log.error("Failed to execute AI review pipeline for target {}", targetIdentifier, e);
+            throw e;
+        } finally {
+            cancellation.unbind();
+            cancellation.done();
+        }
+    }
+
+    //  builds a string representation of the git diff to pass to the AI. This includes the file path and the actual diff text.
+    private static String toDiffString(List<Diff> diffs) {
+        StringBuilder diffBuilder = new StringBuilder();
+        for (Diff diff : diffs) {
+            diffBuilder.append("File: ").append(diff.getNewPath()).append("\n");
+            diffBuilder.append(diff.getDiff()).append("\n\n");
+        }
+        return diffBuilder.toString();
+    }
+
+    //  map step: packs the diffs into token bounded groups and reviews every group with only its own related context,
+    //  several groups at once. reduce step: one more call merges the partial reviews into a single risk assessment
+    private String performMapReduceReview(String targetIdentifier, String repoUrl, List<Diff> diffs, ReviewCancellation cancellation) throws InterruptedException {
+        List<List<Diff>> groups = groupByTokens(diffs);
+        log.info("Diff of target {} is too large for one prompt, reviewing it in {} group(s).", targetIdentifier, groups.size());
+
+        List<Future<String>> pending = new ArrayList<>();
+        for (List<Diff> group : groups) pending.add(cancellation.track(groupReviewExecutor.submit(() -> reviewGroup(group, repoUrl, cancellation))));
+
+        StringBuilder partialReviews = new StringBuilder();
+        List<String> unreviewedFiles = new ArrayList<>();
+        ExecutionException lastFailure = null;
+        int reviewed = 0;
+        for (int i = 0; i < pending.size(); i++) {
+            try {
+                String partialReview = pending.get(i).get();
+                partialReviews.append("## Partial review ").append(++reviewed).append("\n").append(partialReview).append("\n\n");
+            } catch (ExecutionException e) {
+                //  the other groups are still worth merging, the files of the failed one are listed under the review
+                log.warn("Review of group {} of target {} failed", i + 1, targetIdentifier, e.getCause());
+                groups.get(i).stream().map(Diff::getNewPath).forEach(unreviewedFiles::add);
+                lastFailure = e;
+            } catch (InterruptedException e) {
+                pending.forEach(future -> future.cancel(true));
+                throw e;
+            }
+        }
+        cancellation.throwIfCancelled();
+
+        //  nothing to merge, posting a review of nothing would hide the failure and acknowledge the webhook message
+        if (reviewed == 0) {
+            throw new IllegalStateException("Every one of the " + groups.size() + " group(s) of target " + targetIdentifier + " failed to be reviewed", lastFailure.getCause());
+        }
+
+        PromptTemplate promptTemplate = new PromptTemplate(codeReviewReducePromptResource);
+        String review = chatModel.call(promptTemplate.render(Map.of("partial_reviews", partialReviews.toString())));
+        if (unreviewedFiles.isEmpty()) return review;
+        return review + "\n\n_" + unreviewedFiles.size() + " file(s) could not be reviewed and are not covered above: "
+                + unreviewedFiles.stream().map(path -> "`" + path + "`").collect(Collectors.joining(", ")) + "._";
+    }
+
+    //  reviews one group of diffs with the context related to just those files, holding one of the group permits
+    private String reviewGroup(List<Diff> group, String repoUrl, ReviewCancellation cancellation) throws InterruptedException {
+        groupReviewPermits.acquire();
+        try {
+            String relatedContext = getRelatedCodebaseContext(group, repoUrl, cancellation);
+            cancellation.throwIfCancelled();
+            return performAiCodeReview(toDiffString(group), relatedContext);
+        } finally {
+            groupReviewPermits.release();
         }
     }
 
+    private List<List<Diff>> groupByTokens(List<Diff> diffs) {
+        return groupByTokens(diffs, mapReduceGroupTokens, diff -> tokenCountEstimator.estimate(toDiffString(List.of(diff))));
+    }
+
+    //  packs consecutive diffs into groups that stay under the token budget, a single diff larger than the budget
+    //  becomes a group of its own
+    static List<List<Diff>> groupByTokens(List<Diff> diffs, int budget, ToIntFunction<Diff> tokensOf) {
+        List<List<Diff>> groups = new ArrayList<>();
+        List<Diff> current = new ArrayList<>();
+        int currentTokens = 0;
+        for (Diff diff : diffs) {
+            int tokens = tokensOf.applyAsInt(diff);
+            if (!current.isEmpty() && currentTokens + tokens > budget) {
+                groups.add(current);
+                current = new ArrayList<>();
+                currentTokens = 0;
+            }
+            current.add(diff);
+            currentTokens += tokens;
+        }
+        if (!current.isEmpty()) groups.add(current);
+        return groups;
+    }
+
     //  abstract method allowing subclasses to define exactly how the comment is posted
     protected abstract void postReviewComment(GitLabApi gitLabApi, Integer projectId, String targetIdentifier, String comment) throws Exception;
 
-    //  searches the vector database for existing files that are semantically related to the git diffs
-    private String getRelatedCodebaseContext(List<Diff> diffs, String repoUrl) {
+    //  searches the vector database for existing files that are semantically related to the git diffs. every file is
+    //  embedded and searched concurrently, and the review goes ahead with whatever context arrived by the deadline
+    private String getRelatedCodebaseContext(List<Diff> diffs, String repoUrl, ReviewCancellation cancellation) {
         try {
-            //  use a map to deduplicate chunks based on their file path and content,
-            //  ensuring we don't overwhelm the AI with redundant information
-            Map<String, CodeChunk> uniqueChunks = new HashMap<>();
-            int chunksPerQuery = 5;
+            long deadline = System.nanoTime() + contextDeadline.toNanos();
+            List<Future<List<ChunkMatch>>> pending = new ArrayList<>();
 
-            //  iterate through each diff, generate an embedding for the changed code, and query pgvector for similar chunks
-            //  in the same repository to provide contextual information about related files that might be impacted by the change
+            //  iterate through each diff and split the changed code into segments that will be embedded and used to query
+            //  pgvector for related files in the same repository that might be impacted by the change
             for (Diff diff : diffs) {
-                //  skip deleted files and binary files to avoid unnecessary processing and noise in the AI context
-                String diffText = diff.getDiff();
-                if (diffText == null || diffText.isBlank() || Boolean.TRUE.equals(diff.getDeletedFile())) continue;
-
-                //  skip binary files which often appear in diffs as placeholders and don't contain meaningful text for embeddings
-                String filePath = diff.getNewPath() != null ? diff.getNewPath() : diff.getOldPath();
-                if (filePath != null && (filePath.endsWith(".png") || filePath.endsWith(".jpg") || filePath.endsWith(".jar") || filePath.endsWith(".class"))) {
-                    continue;
-                }
+                List<String> segments = segmentsOf(diff);
+                if (!segments.isEmpty()) pending.add(cancellation.track(contextExecutor.submit(() -> retrieveFileContext(segments, repoUrl))));
+            }
 
-                //  clean the diff text by removing line prefixes and metadata to create a more coherent input for the
-                //  embedding model, which improves the relevance of the retrieved context
-                String cleanTextForEmbedding = diffText.replaceAll("(?m)^[+\\-]", "").replaceAll("(?m)^@@.*@@", "").trim();
-
-                //  construct a document from the cleaned diff text and use the text splitter to break it into manageable chunks
-                //  that fit within the embedding model's token limits, ensuring we capture as much relevant context as possible
-                //  without losing important information due to truncation
-                Document sourceDoc = new Document(cleanTextForEmbedding);
-                List<Document> splitDocs = textSplitter.apply(List.of(sourceDoc));
-
-                //  for each chunk, generate an embedding and query pgvector for similar chunks in the same repository to provide
-                //  contextual information about related files that might be impacted by the change
-                for (Document segment : splitDocs) {
-                    //  generate an embedding for the chunk of changed code with a retry mechanism
-                    //  to handle transient failures in the embedding service,
-                    float[] diffVector = generateEmbeddingWithRetry("File: " + filePath + "\n" + segment.getText(), 3);
-                    //  query pgvector for similar chunks in the same repository to provide contextual information about
-                    //  related files that might be impacted by the change
-                    List<CodeChunk> topChunks = chunkRepository.findSimilarChunksByRepo(diffVector, chunksPerQuery, repoUrl);
-                    if (topChunks != null) {
-                        //  add the retrieved chunks to the map for deduplication, using a combination of file path and content as the key
-                        topChunks.forEach(chunk -> uniqueChunks.put(chunk.getFilePath() + chunk.getContent(), chunk));
-                    }
+            //  use a map to deduplicate chunks related to several files, keeping their closest distance,
+            //  ensuring we don't overwhelm the AI with redundant information
+            Map<UUID, ChunkMatch> uniqueChunks = new HashMap<>();
+            int missed = 0;
+            for (Future<List<ChunkMatch>> future : pending) {
+                try {
+                    long remaining = Math.max(0, deadline - System.nanoTime());
+                    future.get(remaining, TimeUnit.NANOSECONDS).forEach(chunk -> uniqueChunks.merge(chunk.getId(), chunk,
+                            (current, candidate) -> candidate.getDistance() < current.getDistance() ? candidate : current));
+                } catch (TimeoutException | ExecutionException | CancellationException e) {
+                    //  a slow or failing file only costs its own context, the other files are still used
+                    future.cancel(true);
+                    missed++;
+                    if (e instanceof ExecutionException) log.warn("Failed to fetch related context for one file of {}", repoUrl, e.getCause());
                 }
             }
+            if (missed > 0) log.warn("Related context of {} of {} file(s) was not ready within {}, reviewing without it.", missed, pending.size(), contextDeadline);
 
             //  if no related chunks are found, return a message indicating that no existing contextual files were found in
             //  the database to provide feedback to the AI and avoid confusion
@@ -154,64 +437,77 @@ public abstract class AbstractGitLabEventHandler implements GitlabEventHandler {
             //  return a formatted string of the unique related code chunks, including their file paths and content, to provide
             //  rich context to the AI for a more informed code review. This allows the AI to understand not just the changed code
             //  but also related files that might be impacted, leading to more accurate and insightful feedback.
+            //  the closest chunks come first.
             return uniqueChunks.values().stream()
+                    .sorted(Comparator.comparing(ChunkMatch::getDistance))
                     .map(c -> "File: " + c.getFilePath() + "\nCode:\n" + c.getContent())
                     .collect(Collectors.joining("\n\n"));
 
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while fetching related context. Proceeding with diff only.");
+            return "Context retrieval failed.";
         } catch (Exception e) {
             log.warn("Failed to fetch related context from pgvector. Proceeding with diff only.", e);
             return "Context retrieval failed.";
         }
     }
 
-    //  checks if the repository exists in pgvector. if missing, triggers ingestion
-    private void checkAndIngestRepo(String repoUrl) {
-        //  initial quick check to see if the repo has already been ingested
-        List<CodeChunk> initialCheck = chunkRepository.findByRepoUrl(repoUrl);
+    //  splits the changed code of one diff into the segments that are embedded to query for related chunks
+    private List<String> segmentsOf(Diff diff) {
+        //  skip deleted files and binary files to avoid unnecessary processing and noise in the AI context
+        String diffText = diff.getDiff();
+        if (diffText == null || diffText.isBlank() || Boolean.TRUE.equals(diff.getDeletedFile())) return List.of();
 
-        //  if the repo is not found, trigger ingestion and block the thread until it's complete to ensure the AI has access to the codebase context
-        if (initialCheck == null || initialCheck.isEmpty()) {
-            log.info("Repo not found in pgvector. Triggering ingestion and waiting for completion...");
-            //  trigger asynchronous ingestion
-            ingestionService.ingestRepositoryAsync(
+        //  skip binary files which often appear in diffs as placeholders and don't contain meaningful text for embeddings
+        String filePath = diff.getNewPath() != null ? diff.getNewPath() : diff.getOldPath();
+        if (filePath != null && (filePath.endsWith(".png") || filePath.endsWith(".jpg") || filePath.endsWith(".jar") || filePath.endsWith(".class"))) {
+            return List.of();
+        }
+
+        //  clean the diff text by removing line prefixes and metadata to create a more coherent input for the
+        //  embedding model, which improves the relevance of the retrieved context
+        String cleanTextForEmbedding = diffText.replaceAll("(?m)^[+\\-]", "").replaceAll("(?m)^@@.*@@", "").trim();
+
+        //  construct a document from the cleaned diff text and use the text splitter to break it into manageable chunks
+        //  that fit within the embedding model's token limits, ensuring we capture as much relevant context as possible
+        //  without losing important information due to truncation
+        Document sourceDoc = new Document(cleanTextForEmbedding);
+        return textSplitter.apply(List.of(sourceDoc)).stream()
+                .map(segment -> "File: " + filePath + "\n" + segment.getText())
+                .toList();
+    }
+
+    //  embeds the segments of one file in a batch and queries pgvector for the chunks related to any of them in one
+    //  statement, holding one of the limited context permits so a large MR can't flood the embedding service or database
+    private List<ChunkMatch> retrieveFileContext(List<String> segments, String repoUrl) throws InterruptedException {
+        contextPermits.acquire();
+        try {
+            List<float[]> queryVectors = vectorEmbeddingService.embedAll(segments).stream().filter(Objects::nonNull).toList();
+            return vectorSearchService.findSimilarChunksByRepo(queryVectors, CHUNKS_PER_QUERY, repoUrl, contextMaxDistance);
+        } finally {
+            contextPermits.release();
+        }
+    }
+
+    //  returns a future of the ingestion job that will make the repository searchable. the coordinator attaches to a
+    //  job already in flight for the repo, on any instance, instead of starting a second full ingestion
+    private CompletableFuture<IngestionJob> awaitIngestion(String repoUrl) {
+        try {
+            IngestionJob job = ingestionCoordinatorService.submit(
                     RepoIngestionRequestDto.builder()
                             .repoUrl(repoUrl)
                             .repoUsername("oauth2")
                             .repoAccessToken(gitlabToken)
-                            .build(),
-                    UUID.randomUUID().toString()
+                            //  no chunks exist for this repo, so there is nothing to diff against
+                            .fullRebuild(true)
+                            .build()
             );
-
-            int attempts = 0;
-            int maxAttempts = 120;
-
-            //  poll every 5 seconds for up to 10 minutes to check if the ingestion is complete
-            //  and the chunks are available in the database
-            while (attempts < maxAttempts) {
-                try {
-                    //  wait for 5 seconds before checking the database again to give the ingestion worker time to process
-                    Thread.sleep(5000);
-                    attempts++;
-                    List<CodeChunk> currentChunks = chunkRepository.findByRepoUrl(repoUrl);
-
-                    //  if chunks are found, break the loop and proceed with the AI review.
-                    //  This ensures we don't start vector search until the codebase context is available.
-                    if (currentChunks != null && !currentChunks.isEmpty()) {
-                        log.info("Ingestion verified! Found {} chunks in database. Proceeding to Vector Search.", currentChunks.size());
-                        break;
-                    }
-
-                    //  log every 30 seconds to avoid spamming the logs while waiting
-                    if (attempts % 6 == 0) {
-                        log.info("Still waiting for repository ingestion to finish... ({} seconds elapsed)", attempts * 5);
-                    }
-                } catch (InterruptedException e) {
-                    //  if the thread is interrupted while sleeping, exit the loop and log the interruption
-                    Thread.currentThread().interrupt();
-                    log.error("Thread was interrupted while waiting for ingestion", e);
-                    break;
-                }
-            }
+            log.info("Repo not indexed yet. Queueing the review until ingestion job {} completes...", job.getId());
+            return ingestionJobService.awaitCompletion(job.getId());
+        } catch (Exception e) {
+            //  e.g. the ingestion queue is full, the review resumes right away with the diff only
+            return CompletableFuture.failedFuture(e);
         }
     }
 
@@ -225,41 +521,4 @@ public abstract class AbstractGitLabEventHandler implements GitlabEventHandler {
         String renderedPrompt = promptTemplate.render(model);
         return chatModel.call(renderedPrompt);
     }
-
-    //  generates an embedding for the given content with an exponential backoff retry mechanism
-    // Note: Transient failures in the embedding service can occur due to rate limits, network issues, or temporary service
-    // disruptions. Implementing a retry mechanism with exponential backoff helps to mitigate these issues by
-    // spacing out retry attempts and giving the service time to recover, increasing the likelihood of a successful response
-    private float[] generateEmbeddingWithRetry(String content, int maxRetries) {
-        int attempt = 0;
-        Exception lastException = null;
-
-        //  implement an exponential backoff strategy for retries, which is a common best practice for handling transient
-        //  failures in external services like embedding models. This approach increases the wait time between each retry attempt
-        //  reducing the load on the service and increasing the chances of a successful response in subsequent attempts.
-        while (attempt < maxRetries) {
-            try {
-                //  attempt to generate the embedding for the given content. If successful, return the embedding vector.
-                return embeddingModel.embed(content);
-            } catch (Exception err) {
-                lastException = err;
-                attempt++;
-                //  log a warning with the attempt number and the error message, and then wait for an exponentially
-                //  increasing amount of time before retrying.
-                if (attempt < maxRetries) {
-                    int waitTime = 5000 * attempt;
-                    log.warn("Webhook embedding generation failed, attempt {}/{}. Waiting {}ms before retry...", attempt, maxRetries, waitTime);
-                    try {
-                        //  wait for the calculated backoff time before retrying to give the embedding service
-                        //  time to recover from transient issues
-                        Thread.sleep(waitTime);
-                    } catch (InterruptedException ie) {
-                        //  if the thread is interrupted while sleeping, exit the loop and log the interruption
-                        Thread.currentThread().interrupt();
-                    }
-                }
-            }
-        }
-        throw new RuntimeException("Failed to generate embedding after " + maxRetries + " attempts", lastException);
-    }
 }
@@ -2,9 +2,12 @@ package com.repo.guard.service.gitlab;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
+import java.util.concurrent.CompletableFuture;
+
 public interface GitlabEventHandler {
     //  determines if this strategy supports the given event type
     boolean supports(String eventType);
-    //  executes the specific logic for the event
-    void handleEvent(JsonNode payload) throws Exception;
+    //  executes the specific logic for the event, the future completes once work it left running (e.g. a review
+    //  parked behind an ingestion) is done too
+    CompletableFuture<Void> handleEvent(JsonNode payload) throws Exception;
 }
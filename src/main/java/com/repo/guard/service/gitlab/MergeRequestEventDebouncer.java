@@ -0,0 +1,125 @@
+package com.repo.guard.service.gitlab;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * debounces merge request reviews on the consumer side. every open or update event records its head as the latest
+ * head of the merge request in redis as soon as it is received, restarts the merge request's quiet window there and
+ * is queued on the durable webhook stream right away, so no event is lost with an instance. the consumer leaves the
+ * message unacknowledged while a scheduled check waits for the window to pass, without holding the consumer thread,
+ * and only reviews heads that are still the latest, so a burst of pushes is reviewed once, at its latest head. a new
+ * head also cancels the review already running for an older one
+ */
+@Slf4j
+@Service
+public class MergeRequestEventDebouncer {
+    private static final String QUIET_PREFIX = "guard:review:quiet:";
+    //  a merge request that never goes quiet is reviewed after this many windows anyway
+    private static final int MAX_WINDOWS = 3;
+
+    private final StringRedisTemplate redisTemplate;
+    private final ReviewCancellationRegistry reviewCancellationRegistry;
+    private final TaskScheduler taskScheduler;
+    private final Duration quietWindow;
+
+    private final Counter received;
+    private final Counter superseded;
+
+    public MergeRequestEventDebouncer(
+            StringRedisTemplate redisTemplate,
+            ReviewCancellationRegistry reviewCancellationRegistry,
+            TaskScheduler taskScheduler,
+            MeterRegistry meterRegistry,
+            @Value("${guard.review.debounce-window:PT20S}") Duration quietWindow
+    ) {
+        this.redisTemplate = redisTemplate;
+        this.reviewCancellationRegistry = reviewCancellationRegistry;
+        this.taskScheduler = taskScheduler;
+        this.quietWindow = quietWindow;
+        this.received = Counter.builder("guard.review.debounce.received").register(meterRegistry);
+        this.superseded = Counter.builder("guard.review.debounce.superseded").register(meterRegistry);
+    }
+
+    /**
+     * records a received merge request event before it is queued, other events are ignored. throws a
+     * DataAccessException when redis can't be reached
+     *
+     * @param payload
+     */
+    public void record(JsonNode payload) {
+        if (!"merge_request".equals(payload.path("object_kind").asText())) return;
+
+        JsonNode attributes = payload.path("object_attributes");
+        String action = attributes.path("action").asText();
+        String key = ReviewCancellationRegistry.key(payload.path("project").path("id").asInt(), attributes.path("iid").asLong());
+
+        //  a merged or closed merge request needs no review at all, neither the running nor the queued one
+        if ("merge".equals(action) || "close".equals(action)) {
+            reviewCancellationRegistry.recordClosed(key);
+            return;
+        }
+        if (!"open".equals(action) && !"update".equals(action)) return;
+
+        //  the running review is stale as soon as a newer head exists, no need to wait for the window to pass
+        reviewCancellationRegistry.recordHead(key, attributes.path("last_commit").path("id").asText(null));
+
+        if (quietWindow.isZero() || quietWindow.isNegative()) return;
+        received.increment();
+        redisTemplate.opsForValue().set(QUIET_PREFIX + key, action, quietWindow);
+        log.debug("Debouncing merge request event {} of {} for {}.", action, key, quietWindow);
+    }
+
+    /**
+     * completes once no event arrived for the merge request during the quiet window, telling whether the head is
+     * still the latest one and worth reviewing. nothing waits meanwhile, the window is checked again on the task
+     * scheduler when it ends
+     *
+     * @param projectId
+     * @param mrIid
+     * @param headSha
+     * @return completes with false when a newer head arrived meanwhile, its own event reviews it. already completed
+     * when the merge request is quiet right away
+     */
+    public CompletableFuture<Boolean> whenQuiet(Integer projectId, Long mrIid, String headSha) {
+        CompletableFuture<Boolean> quiet = new CompletableFuture<>();
+        String key = ReviewCancellationRegistry.key(projectId, mrIid);
+        checkQuiet(key, headSha, System.currentTimeMillis() + quietWindow.toMillis() * MAX_WINDOWS, quiet);
+        return quiet;
+    }
+
+    //  completes the future if the head was superseded or the window has passed, otherwise checks again once the
+    //  current window ends. only a couple of redis reads, so it's fine to run on the scheduler threads
+    private void checkQuiet(String key, String headSha, long deadline, CompletableFuture<Boolean> quiet) {
+        try {
+            if (!reviewCancellationRegistry.isLatest(key, headSha)) {
+                superseded.increment();
+                quiet.complete(false);
+                return;
+            }
+            Long remaining = redisTemplate.getExpire(QUIET_PREFIX + key, TimeUnit.MILLISECONDS);
+            long untilDeadline = deadline - System.currentTimeMillis();
+            //  a negative ttl means the window key is gone, i.e. the merge request has been quiet long enough
+            if (remaining == null || remaining <= 0 || untilDeadline <= 0) {
+                quiet.complete(true);
+                return;
+            }
+            taskScheduler.schedule(() -> checkQuiet(key, headSha, deadline, quiet),
+                    Instant.now().plusMillis(Math.min(remaining, untilDeadline)));
+        } catch (Exception e) {
+            //  e.g. redis is down or the scheduler shut down, the message is retried
+            quiet.completeExceptionally(e);
+        }
+    }
+}
@@ -1,34 +1,63 @@
 package com.repo.guard.service.gitlab;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.repo.guard.model.repo.CodeChunkRepository;
+import com.repo.guard.model.repo.MergeRequestReview;
+import com.repo.guard.service.repo.DeltaSyncCoordinator;
+import com.repo.guard.service.repo.IngestionCoordinatorService;
+import com.repo.guard.service.repo.IngestionJobService;
 import com.repo.guard.service.repo.RepoIngestionWorkerService;
+import com.repo.guard.service.repo.VectorEmbeddingService;
+import com.repo.guard.service.repo.VectorSearchService;
 import lombok.extern.slf4j.Slf4j;
 import org.gitlab4j.api.GitLabApi;
+import org.gitlab4j.api.GitLabApiException;
+import org.gitlab4j.api.models.CompareResults;
 import org.gitlab4j.api.models.Diff;
 import org.gitlab4j.api.models.MergeRequest;
 import org.springframework.ai.chat.model.ChatModel;
-import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 @Slf4j
 @Service
 public class MergeRequestEventHandler extends AbstractGitLabEventHandler {
+    private final DeltaSyncCoordinator deltaSyncCoordinator;
+    private final MergeRequestReviewService mergeRequestReviewService;
+    private final ReviewCancellationRegistry reviewCancellationRegistry;
+    private final MergeRequestEventDebouncer mergeRequestEventDebouncer;
+
     public MergeRequestEventHandler(
             ChatModel chatModel,
-            CodeChunkRepository chunkRepository,
+            VectorSearchService vectorSearchService,
             RepoIngestionWorkerService ingestionService,
-            EmbeddingModel embeddingModel,
+            IngestionCoordinatorService ingestionCoordinatorService,
+            IngestionJobService ingestionJobService,
+            VectorEmbeddingService vectorEmbeddingService,
+            DeltaSyncCoordinator deltaSyncCoordinator,
+            MergeRequestReviewService mergeRequestReviewService,
+            ReviewCancellationRegistry reviewCancellationRegistry,
+            MergeRequestEventDebouncer mergeRequestEventDebouncer,
             @Value("${gitlab.api.url}") String gitlabUrl,
             @Value("${gitlab.api.token}") String gitlabToken,
-            @Value("classpath:/static/code-review.st") Resource codeReviewPromptResource
+            @Value("classpath:/static/code-review.st") Resource codeReviewPromptResource,
+            @Qualifier("reviewExecutor") Executor reviewExecutor
     ) {
-        super(chatModel, chunkRepository, ingestionService, embeddingModel, gitlabUrl, gitlabToken, codeReviewPromptResource);
+        super(chatModel, vectorSearchService, ingestionService, ingestionCoordinatorService, ingestionJobService, vectorEmbeddingService, gitlabUrl, gitlabToken, codeReviewPromptResource, reviewExecutor);
+        this.deltaSyncCoordinator = deltaSyncCoordinator;
+        this.mergeRequestReviewService = mergeRequestReviewService;
+        this.reviewCancellationRegistry = reviewCancellationRegistry;
+        this.mergeRequestEventDebouncer = mergeRequestEventDebouncer;
     }
 
     //  this handler supports "merge_request" events from GitLab webhooks
@@ -39,18 +68,21 @@ public class MergeRequestEventHandler extends AbstractGitLabEventHandler {
 
     //  handles both the creation/update of a merge request (to trigger AI review) and the merge action (to trigger delta sync)
     @Override
-    public void handleEvent(JsonNode payload) throws Exception {
+    public CompletableFuture<Void> handleEvent(JsonNode payload) throws Exception {
         String action = payload.path("object_attributes").path("action").asText();
         Integer projectId = payload.path("project").path("id").asInt();
         Long mrIid = payload.path("object_attributes").path("iid").asLong();
         String repoUrl = payload.path("project").path("web_url").asText();
         String targetBranch = payload.path("object_attributes").path("target_branch").asText();
         String defaultBranch = payload.path("project").path("default_branch").asText();
+        //  head commit of the source branch, lets an update without new commits be skipped without any api call
+        String headSha = payload.path("object_attributes").path("last_commit").path("id").asText(null);
 
         GitLabApi gitLabApi = new GitLabApi(gitlabUrl, gitlabToken);
 
         //  if the merge request was merged, trigger a delta sync to update the vector DB with the new code state
         if ("merge".equals(action)) {
+            mergeRequestReviewService.forget(projectId, mrIid);
             //  only trigger the delta sync if the merge was into the default branch to protect the root context of the vector DB
             boolean isTargetingDefault = defaultBranch != null && targetBranch.equals(defaultBranch);
 
@@ -84,24 +116,127 @@ public class MergeRequestEventHandler extends AbstractGitLabEventHandler {
                 Long targetProjectIdLong = mrWithChanges.getTargetProjectId();
                 Integer targetProjectId = targetProjectIdLong != null ? targetProjectIdLong.intValue() : projectId;
 
-                //  trigger the asynchronous delta sync process to update the vector DB with the new code state after the merge
-                ingestionService.syncDeltaAsync(targetProjectId, repoUrl, gitlabUrl, gitlabToken, defaultBranch, filesToUpdate, filesToDelete);
+                //  queue the changed files, merges landing close together are synced in one run against the latest head
+                deltaSyncCoordinator.submit(targetProjectId, repoUrl, defaultBranch, filesToUpdate, filesToDelete);
             } else {
                 log.info("Merge Request #{} merged into a sub-branch ({}). Skipping Vector DB update to protect root context.", mrIid, targetBranch);
             }
-            return;
+            return CompletableFuture.completedFuture(null);
+        }
+
+        //  a closed merge request won't be reviewed again, so its review state can go
+        if ("close".equals(action)) {
+            mergeRequestReviewService.forget(projectId, mrIid);
+            return CompletableFuture.completedFuture(null);
         }
 
         //  if the merge request was just created or updated, trigger the AI code review process to analyze the proposed
         //  changes and provide feedback in the merge request thread
-        if (!"open".equals(action) && !"update".equals(action)) return;
+        if (!"open".equals(action) && !"update".equals(action)) return CompletableFuture.completedFuture(null);
+
+        //  wait for the burst of pushes to settle, only the event carrying the latest head goes on to be reviewed. a
+        //  merge request that is still busy is checked again later, its message stays pending without this thread
+        CompletableFuture<Boolean> quiet = mergeRequestEventDebouncer.whenQuiet(projectId, mrIid, headSha);
+        if (quiet.isDone()) return reviewIfLatest(quiet.join(), gitLabApi, action, projectId, mrIid, repoUrl, headSha);
+        return quiet.thenCompose(latest -> onReviewExecutor(() -> reviewIfLatest(latest, gitLabApi, action, projectId, mrIid, repoUrl, headSha)));
+    }
+
+    //  reviews the head once the merge request went quiet, unless a newer head showed up while debouncing
+    private CompletableFuture<Void> reviewIfLatest(
+            boolean latest,
+            GitLabApi gitLabApi,
+            String action,
+            Integer projectId,
+            Long mrIid,
+            String repoUrl,
+            String headSha
+    ) throws Exception {
+        if (!latest) {
+            log.info("Merge Request #{} moved past {} while debouncing. Skipping review.", mrIid, headSha);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        //  updates that don't move the head (title, labels, assignees...) have nothing new to review
+        Optional<MergeRequestReview> previous = "update".equals(action) ? mergeRequestReviewService.find(projectId, mrIid) : Optional.empty();
+        if (previous.isPresent() && headSha != null && headSha.equals(previous.get().getHeadSha())) {
+            log.info("Merge Request #{} was updated without new commits since the last review at {}. Skipping review.", mrIid, headSha);
+            return CompletableFuture.completedFuture(null);
+        }
 
-        log.info("Started AI Code Review for Merge Request #{}", mrIid);
         //  retrieve the list of changed files in the merge request to provide context for the AI review
         MergeRequest mrWithChanges = gitLabApi.getMergeRequestApi().getMergeRequestChanges(projectId, mrIid);
+        List<Diff> changes = mrWithChanges.getChanges() != null ? mrWithChanges.getChanges() : List.of();
+        String reviewedSha = mrWithChanges.getSha() != null ? mrWithChanges.getSha() : headSha;
+        Map<String, String> fileDiffHashes = MergeRequestReviewService.hashDiffs(changes);
+        Runnable recordReview = () -> mergeRequestReviewService.record(projectId, mrIid, reviewedSha, fileDiffHashes);
+
+        if (previous.isEmpty() || previous.get().getHeadSha() == null) {
+            Optional<ReviewCancellation> cancellation = startReview(projectId, mrIid, reviewedSha);
+            if (cancellation.isEmpty()) return CompletableFuture.completedFuture(null);
+            log.info("Started AI Code Review for Merge Request #{}", mrIid);
+            //  trigger the inherited template method to handle the AI processing
+            return executeAiReviewPipeline(projectId, String.valueOf(mrIid), repoUrl, changes, "", recordReview, cancellation.get());
+        }
+
+        //  only files whose diff against the target branch changed since the last review are reviewed again, the
+        //  findings already posted for the other files still hold
+        List<Diff> changedFiles = MergeRequestReviewService.changedSince(changes, previous.get().getFileDiffHashes());
+
+        //  a rebase onto a newer target moves the head but leaves the changes of the merge request as they were
+        if (changedFiles.isEmpty()) {
+            log.info("Merge Request #{} moved to {} without changing its diff (e.g. a rebase). Skipping review.", mrIid, reviewedSha);
+            recordReview.run();
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Optional<ReviewCancellation> cancellation = startReview(projectId, mrIid, reviewedSha);
+        if (cancellation.isEmpty()) return CompletableFuture.completedFuture(null);
+
+        String previousSha = previous.get().getHeadSha();
+        List<Diff> interdiff = interdiff(gitLabApi, projectId, previousSha, reviewedSha, changedFiles);
+        int unchanged = changes.size() - changedFiles.size();
+        String header = "_Incremental review of the changes since `" + shortSha(previousSha) + "`: " + changedFiles.size()
+                + " file(s) changed" + (unchanged > 0 ? ", the findings of the previous review still apply to the other " + unchanged + " file(s)" : "") + "._\n\n";
+
+        log.info("Started incremental AI Code Review for Merge Request #{} ({} of {} file(s) changed since {})", mrIid, changedFiles.size(), changes.size(), previousSha);
+        return executeAiReviewPipeline(projectId, String.valueOf(mrIid), repoUrl, interdiff, header, recordReview, cancellation.get());
+    }
+
+    //  registers the review of the head with the registry, which cancels a review of an older head still running.
+    //  empty when the head was superseded meanwhile or another instance reviews it already
+    private Optional<ReviewCancellation> startReview(Integer projectId, Long mrIid, String headSha) {
+        Optional<ReviewCancellation> cancellation = reviewCancellationRegistry.start(ReviewCancellationRegistry.key(projectId, mrIid), headSha);
+        if (cancellation.isEmpty()) log.info("Merge Request #{} is already being reviewed at {} or has a newer head. Skipping review.", mrIid, headSha);
+        return cancellation;
+    }
+
+    /**
+     * diffs of the changed files between the last reviewed and the new head commit, falling back to their full diff
+     * against the target branch when the compare fails (e.g. the old head is gone after a force push) or doesn't
+     * contain the file (e.g. its changes were reverted back to the target)
+     *
+     * @param gitLabApi
+     * @param projectId
+     * @param fromSha
+     * @param toSha
+     * @param changedFiles
+     * @return
+     */
+    private List<Diff> interdiff(GitLabApi gitLabApi, Integer projectId, String fromSha, String toSha, List<Diff> changedFiles) {
+        Map<String, Diff> compared = new HashMap<>();
+        try {
+            CompareResults results = gitLabApi.getRepositoryApi().compare(projectId, fromSha, toSha);
+            if (results.getDiffs() != null) results.getDiffs().forEach(diff -> compared.put(MergeRequestReviewService.pathOf(diff), diff));
+        } catch (GitLabApiException err) {
+            log.warn("Failed to compare {}..{} in project {}, reviewing the full diff of the changed files: {}", fromSha, toSha, projectId, err.getMessage());
+        }
+        return changedFiles.stream()
+                .map(diff -> compared.getOrDefault(MergeRequestReviewService.pathOf(diff), diff))
+                .toList();
+    }
 
-        //  trigger the inherited template method to handle the AI processing
-        executeAiReviewPipeline(projectId, String.valueOf(mrIid), repoUrl, mrWithChanges.getChanges());
+    private static String shortSha(String sha) {
+        return sha.length() > 8 ? sha.substring(0, 8) : sha;
     }
 
     //  this method is called by the inherited template method after the AI review comment has been generated,
@@ -0,0 +1,118 @@
+package com.repo.guard.service.gitlab;
+
+import com.repo.guard.model.repo.MergeRequestReview;
+import com.repo.guard.model.repo.MergeRequestReviewRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.gitlab4j.api.models.Diff;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * remembers the head commit and the per-file diffs each merge request was last reviewed at
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class MergeRequestReviewService {
+    private final MergeRequestReviewRepository mergeRequestReviewRepository;
+
+    public Optional<MergeRequestReview> find(Integer projectId, Long mrIid) {
+        return mergeRequestReviewRepository.findByProjectIdAndMrIid(projectId, mrIid);
+    }
+
+    /**
+     * records that the merge request was reviewed at the given head commit with the given file diffs
+     *
+     * @param projectId
+     * @param mrIid
+     * @param headSha
+     * @param fileDiffHashes
+     */
+    public void record(Integer projectId, Long mrIid, String headSha, Map<String, String> fileDiffHashes) {
+        try {
+            save(projectId, mrIid, headSha, fileDiffHashes);
+        } catch (DataIntegrityViolationException err) {
+            //  a review of the same merge request was recorded in the meantime, update that row instead
+            save(projectId, mrIid, headSha, fileDiffHashes);
+        }
+        log.debug("Recorded review of MR #{} in project {} at {}.", mrIid, projectId, headSha);
+    }
+
+    private void save(Integer projectId, Long mrIid, String headSha, Map<String, String> fileDiffHashes) {
+        MergeRequestReview review = find(projectId, mrIid)
+                .orElseGet(() -> MergeRequestReview.builder().projectId(projectId).mrIid(mrIid).build());
+        review.setHeadSha(headSha);
+        review.setFileDiffHashes(new HashMap<>(fileDiffHashes));
+        review.setReviewedAt(Instant.now());
+        mergeRequestReviewRepository.save(review);
+    }
+
+    /**
+     * drops the review state of a merge request that was merged or closed
+     *
+     * @param projectId
+     * @param mrIid
+     */
+    @Transactional
+    public void forget(Integer projectId, Long mrIid) {
+        find(projectId, mrIid).ifPresent(mergeRequestReviewRepository::delete);
+    }
+
+    /**
+     * hashes every file's diff against the target branch, keyed by path. a rebase that doesn't touch the changes of
+     * the merge request leaves every hash as it was
+     *
+     * @param diffs
+     * @return
+     */
+    public static Map<String, String> hashDiffs(List<Diff> diffs) {
+        Map<String, String> hashes = new HashMap<>();
+        if (diffs == null) return hashes;
+        for (Diff diff : diffs) {
+            String path = pathOf(diff);
+            hashes.put(path, sha256(diff.getOldPath() + "\n" + path + "\n" + diff.getDeletedFile() + "\n" + diff.getDiff()));
+        }
+        return hashes;
+    }
+
+    /**
+     * picks the diffs whose hash differs from the one recorded at the last review, i.e. the files to review again.
+     * files new to the merge request have no recorded hash and are always picked
+     *
+     * @param diffs
+     * @param reviewedHashes
+     * @return
+     */
+    public static List<Diff> changedSince(List<Diff> diffs, Map<String, String> reviewedHashes) {
+        Map<String, String> hashes = hashDiffs(diffs);
+        return diffs.stream()
+                .filter(diff -> !hashes.get(pathOf(diff)).equals(reviewedHashes.get(pathOf(diff))))
+                .toList();
+    }
+
+    //  the path a diff is tracked under, its old path once the file was deleted
+    public static String pathOf(Diff diff) {
+        return diff.getNewPath() != null ? diff.getNewPath() : diff.getOldPath();
+    }
+
+    private static String sha256(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -1,19 +1,24 @@
 package com.repo.guard.service.gitlab;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.repo.guard.model.repo.CodeChunkRepository;
+import com.repo.guard.service.repo.IngestionCoordinatorService;
+import com.repo.guard.service.repo.IngestionJobService;
 import com.repo.guard.service.repo.RepoIngestionWorkerService;
+import com.repo.guard.service.repo.VectorEmbeddingService;
+import com.repo.guard.service.repo.VectorSearchService;
 import lombok.extern.slf4j.Slf4j;
 import org.gitlab4j.api.GitLabApi;
 import org.gitlab4j.api.models.Diff;
 import org.springframework.ai.chat.model.ChatModel;
-import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 @Slf4j
 @Service
@@ -22,14 +27,17 @@ import java.util.List;
 public class PushEventHandler extends AbstractGitLabEventHandler {
     public PushEventHandler(
             ChatModel chatModel,
-            CodeChunkRepository chunkRepository,
+            VectorSearchService vectorSearchService,
             RepoIngestionWorkerService ingestionService,
-            EmbeddingModel embeddingModel,
+            IngestionCoordinatorService ingestionCoordinatorService,
+            IngestionJobService ingestionJobService,
+            VectorEmbeddingService vectorEmbeddingService,
             @Value("${gitlab.api.url}") String gitlabUrl,
             @Value("${gitlab.api.token}") String gitlabToken,
-            @Value("classpath:/static/code-review.st") Resource codeReviewPromptResource
+            @Value("classpath:/static/code-review.st") Resource codeReviewPromptResource,
+            @Qualifier("reviewExecutor") Executor reviewExecutor
     ) {
-        super(chatModel, chunkRepository, ingestionService, embeddingModel, gitlabUrl, gitlabToken, codeReviewPromptResource);
+        super(chatModel, vectorSearchService, ingestionService, ingestionCoordinatorService, ingestionJobService, vectorEmbeddingService, gitlabUrl, gitlabToken, codeReviewPromptResource, reviewExecutor);
     }
 
     //  this handler supports "push" events from GitLab webhooks
@@ -41,12 +49,12 @@ public class PushEventHandler extends AbstractGitLabEventHandler {
     //  handles push events to trigger AI code review on feature branches (but ignores pushes to the default branch
     //  since those are reviewed via merge requests)
     @Override
-    public void handleEvent(JsonNode payload) throws Exception {
+    public CompletableFuture<Void> handleEvent(JsonNode payload) throws Exception {
         //  extract the commit SHA from the payload to identify the specific code changes being pushed
         String commitSha = payload.path("after").asText();
 
         //  ignore branch deletions where the 'after' hash is all zeros
-        if (commitSha == null || commitSha.replace("0", "").isEmpty()) return;
+        if (commitSha == null || commitSha.replace("0", "").isEmpty()) return CompletableFuture.completedFuture(null);
 
         //  extract the project ID, repo URL, and ref from the payload to determine the branch being pushed to
         Integer projectId = payload.path("project_id").asInt();
@@ -61,7 +69,7 @@ public class PushEventHandler extends AbstractGitLabEventHandler {
         //  for proper context and review quality
         if (isDefaultBranch) {
             log.info("Ignored push to main branch. Vector DB updates are handled via Merge Request approval.");
-            return;
+            return CompletableFuture.completedFuture(null);
         }
 
         log.info("Started AI Code Review for Feature Branch Push: {}", commitSha);
@@ -71,7 +79,7 @@ public class PushEventHandler extends AbstractGitLabEventHandler {
         List<Diff> diffs = gitLabApi.getCommitsApi().getDiff(projectId, commitSha);
 
         //  trigger the inherited template method to handle the AI processing
-        executeAiReviewPipeline(projectId, commitSha, repoUrl, diffs);
+        return executeAiReviewPipeline(projectId, commitSha, repoUrl, diffs);
     }
 
     @Override
@@ -0,0 +1,89 @@
+package com.repo.guard.service.gitlab;
+
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+
+/**
+ * cancellation handle of one running review. cancelling interrupts the thread running the review and every
+ * embedding, search and model call it handed to other threads, and the review checks it before posting, together
+ * with the latest head recorded in redis, so a review superseded on any instance never reaches the merge request
+ */
+public final class ReviewCancellation {
+    //  handle of reviews nobody can supersede, e.g. reviews of pushed commits
+    public static final ReviewCancellation NONE = new ReviewCancellation(null, () -> false, () -> { });
+
+    private final String headSha;
+    //  whether a newer head was recorded for the merge request, possibly by another instance
+    private final BooleanSupplier superseded;
+    private final Runnable onDone;
+    private final Set<Future<?>> tasks = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+    private Thread runner;
+
+    ReviewCancellation(String headSha, BooleanSupplier superseded, Runnable onDone) {
+        this.headSha = headSha;
+        this.superseded = superseded;
+        this.onDone = onDone;
+    }
+
+    public String getHeadSha() {
+        return headSha;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void throwIfCancelled() {
+        if (!cancelled && superseded.getAsBoolean()) cancel();
+        if (cancelled) throw new CancellationException("Review of " + headSha + " was superseded");
+    }
+
+    /**
+     * registers a task started on behalf of the review so cancelling the review cancels it too
+     *
+     * @param task
+     * @return the same task
+     */
+    public <T> Future<T> track(Future<T> task) {
+        //  the shared handle is never cancelled, so there is nothing to remember
+        if (this == NONE) return task;
+        tasks.add(task);
+        if (cancelled) task.cancel(true);
+        return task;
+    }
+
+    /**
+     * marks the current thread as the one running the review until {@link #unbind()}
+     */
+    public synchronized void bind() {
+        if (this != NONE) runner = Thread.currentThread();
+    }
+
+    /**
+     * releases the current thread, clearing an interrupt meant for the review so it can't leak into the next task
+     * of a pooled thread
+     */
+    public synchronized void unbind() {
+        if (this == NONE) return;
+        runner = null;
+        Thread.interrupted();
+    }
+
+    public void cancel() {
+        cancelled = true;
+        tasks.forEach(task -> task.cancel(true));
+        synchronized (this) {
+            if (runner != null) runner.interrupt();
+        }
+    }
+
+    //  called once the review finished, whether it was posted, failed or got cancelled
+    public void done() {
+        tasks.clear();
+        onDone.run();
+    }
+}
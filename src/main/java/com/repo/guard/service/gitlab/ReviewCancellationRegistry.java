@@ -0,0 +1,167 @@
+package com.repo.guard.service.gitlab;
+
+import com.repo.guard.service.lock.RedisLock;
+import com.repo.guard.service.lock.RedisLockService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * tracks the latest head of every merge request in redis and the reviews running on this instance, so a review of
+ * an older head is cancelled as soon as a newer head shows up on any instance and only the latest revision gets
+ * reviewed. a review of a head holds a redis lock for as long as it runs, so the same head is reviewed only once
+ * across all instances
+ */
+@Slf4j
+@Service
+public class ReviewCancellationRegistry {
+    private static final String HEAD_PREFIX = "guard:review:head:";
+    private static final String REVIEW_LOCK_PREFIX = "guard:lock:review:";
+    //  stored as the latest head of a merged or closed merge request, so every review of it counts as superseded
+    private static final String CLOSED = "closed";
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisLockService redisLockService;
+    private final Duration headTtl;
+    //  reviews running on this instance, keyed by merge request
+    private final Map<String, ReviewCancellation> active = new ConcurrentHashMap<>();
+    private final Counter cancelled;
+
+    public ReviewCancellationRegistry(
+            StringRedisTemplate redisTemplate,
+            RedisLockService redisLockService,
+            MeterRegistry meterRegistry,
+            @Value("${guard.review.head-ttl:P14D}") Duration headTtl
+    ) {
+        this.redisTemplate = redisTemplate;
+        this.redisLockService = redisLockService;
+        this.headTtl = headTtl;
+        this.cancelled = Counter.builder("guard.review.cancelled").register(meterRegistry);
+    }
+
+    public static String key(Integer projectId, Long mrIid) {
+        return projectId + "!" + mrIid;
+    }
+
+    /**
+     * records the head of a merge request event as its latest head and cancels a review of any other head running
+     * on this instance, the other instances notice it on their next check
+     *
+     * @param key
+     * @param headSha
+     */
+    public void recordHead(String key, String headSha) {
+        if (headSha == null) return;
+        redisTemplate.opsForValue().set(HEAD_PREFIX + key, headSha, headTtl);
+        cancelSuperseded(key, headSha);
+    }
+
+    /**
+     * marks the merge request as merged or closed, which supersedes whatever review of it is still running
+     *
+     * @param key
+     */
+    public void recordClosed(String key) {
+        redisTemplate.opsForValue().set(HEAD_PREFIX + key, CLOSED, headTtl);
+        cancelSuperseded(key, null);
+    }
+
+    /**
+     * whether the head is still the latest one recorded for the merge request, an unknown latest head (e.g. the
+     * record expired or redis can't be reached) never supersedes a review
+     *
+     * @param key
+     * @param headSha
+     * @return
+     */
+    public boolean isLatest(String key, String headSha) {
+        if (headSha == null) return true;
+        try {
+            String latest = redisTemplate.opsForValue().get(HEAD_PREFIX + key);
+            return latest == null || latest.equals(headSha);
+        } catch (DataAccessException err) {
+            log.warn("Failed to read the latest head of {}: {}", key, err.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * registers the review of the given head, cancelling a review of any other head still running on this instance
+     *
+     * @param key
+     * @param headSha
+     * @return empty when the head is no longer the latest or is already being reviewed on any instance
+     */
+    public Optional<ReviewCancellation> start(String key, String headSha) {
+        if (!isLatest(key, headSha)) return Optional.empty();
+
+        Optional<RedisLock> lock = headSha != null
+                ? redisLockService.tryAcquire(REVIEW_LOCK_PREFIX + key + ":" + headSha, "review:" + UUID.randomUUID())
+                : Optional.empty();
+        if (headSha != null && lock.isEmpty()) return Optional.empty();
+
+        ReviewCancellation[] superseded = new ReviewCancellation[1];
+        ReviewCancellation[] started = new ReviewCancellation[1];
+        active.compute(key, (k, current) -> {
+            superseded[0] = current;
+            started[0] = new ReviewCancellation(headSha, () -> !isLatest(k, headSha), () -> {
+                active.remove(k, started[0]);
+                lock.ifPresent(RedisLock::close);
+            });
+            return started[0];
+        });
+        if (superseded[0] != null) cancel(key, superseded[0], headSha);
+        return Optional.of(started[0]);
+    }
+
+    /**
+     * cancels the running review of the merge request on this instance unless it reviews the given head
+     *
+     * @param key
+     * @param headSha null cancels whatever is running, e.g. once the merge request was merged or closed
+     */
+    private void cancelSuperseded(String key, String headSha) {
+        ReviewCancellation current = active.get(key);
+        if (current == null || (headSha != null && headSha.equals(current.getHeadSha()))) return;
+        if (active.remove(key, current)) cancel(key, current, headSha);
+    }
+
+    /**
+     * stops the reviews of this instance whose head was superseded through another instance, so they don't keep
+     * spending model calls until their check before posting
+     */
+    @Scheduled(fixedDelayString = "${guard.review.superseded-check-interval:PT5S}")
+    public void cancelSupersededElsewhere() {
+        active.forEach((key, review) -> {
+            if (review.getHeadSha() == null || isLatest(key, review.getHeadSha())) return;
+            if (active.remove(key, review)) cancel(key, review, Objects.requireNonNullElse(latestHead(key), "another instance"));
+        });
+    }
+
+    private String latestHead(String key) {
+        try {
+            return redisTemplate.opsForValue().get(HEAD_PREFIX + key);
+        } catch (DataAccessException err) {
+            return null;
+        }
+    }
+
+    private void cancel(String key, ReviewCancellation review, String newHeadSha) {
+        review.cancel();
+        cancelled.increment();
+        log.info("Cancelled review of {} at {}, superseded by {}.", key, review.getHeadSha(),
+                newHeadSha != null && !CLOSED.equals(newHeadSha) ? newHeadSha : "a merge or close");
+    }
+}
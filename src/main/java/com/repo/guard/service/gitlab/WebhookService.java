@@ -1,43 +1,58 @@
 package com.repo.guard.service.gitlab;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.repo.guard.service.queue.WorkHandler;
+import com.repo.guard.service.queue.WorkStream;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
-public class WebhookService {
+public class WebhookService implements WorkHandler {
+    //  field of a webhook message holding the raw gitlab payload
+    public static final String PAYLOAD_FIELD = "payload";
+
     //  inject all implementations of the strategy interface automatically
     private final List<GitlabEventHandler> eventHandlers;
+    private final ObjectMapper objectMapper;
+
+    @Override
+    public WorkStream stream() {
+        return WorkStream.WEBHOOKS;
+    }
+
+    //  runs on a queue consumer to check out the diff, query context, and post the review without blocking
+    //  gitlab's webhook timeout. a failure leaves the message in the stream so it is delivered again
+    @Override
+    public CompletableFuture<Void> handle(Map<String, String> fields) throws Exception {
+        return processGitlabEvent(objectMapper.readTree(fields.get(PAYLOAD_FIELD)));
+    }
 
     /**
      * routes the incoming gitlab event to the appropriate review logic based on its kind
      *
      * @param payload
+     * @return completes once the event has been fully handled
+     * @throws Exception
      */
-    @Async
-    //  runs in the background to check out the diff, query context,
-    //  and post the review without blocking gitlab's webhook timeout
-    public void processGitlabEventAsync(JsonNode payload) {
-        try {
-            String objectKind = payload.path("object_kind").asText();
-
-            //  execute the strategy pattern to find the correct handler
-            for (GitlabEventHandler handler : eventHandlers) {
-                if (handler.supports(objectKind)) {
-                    handler.handleEvent(payload);
-                    return;
-                }
-            }
+    public CompletableFuture<Void> processGitlabEvent(JsonNode payload) throws Exception {
+        String objectKind = payload.path("object_kind").asText();
 
-            log.warn("No handler found for GitLab event type: {}", objectKind);
-        } catch (Exception e) {
-            log.error("Failed to process GitLab Webhook", e);
+        //  execute the strategy pattern to find the correct handler
+        for (GitlabEventHandler handler : eventHandlers) {
+            if (handler.supports(objectKind)) {
+                return handler.handleEvent(payload);
+            }
         }
+
+        log.warn("No handler found for GitLab event type: {}", objectKind);
+        return CompletableFuture.completedFuture(null);
     }
 }
@@ -0,0 +1,24 @@
+package com.repo.guard.service.lock;
+
+import lombok.Getter;
+
+/**
+ * a lock held in redis by this instance, renewed in the background until it is closed
+ */
+@Getter
+public class RedisLock implements AutoCloseable {
+    private final String key;
+    private final String token;
+    private final RedisLockService lockService;
+
+    RedisLock(String key, String token, RedisLockService lockService) {
+        this.key = key;
+        this.token = token;
+        this.lockService = lockService;
+    }
+
+    @Override
+    public void close() {
+        lockService.release(key, token);
+    }
+}
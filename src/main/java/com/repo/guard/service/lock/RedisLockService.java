@@ -0,0 +1,165 @@
+package com.repo.guard.service.lock;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * distributed locks backed by redis SET NX PX, so mutual exclusion holds across every app instance. a lock expires
+ * after its ttl unless the instance holding it keeps renewing it, which means a crashed instance never blocks a
+ * repository for longer than one ttl. renewals and releases only touch the key while it still holds our token
+ */
+@Slf4j
+@Service
+public class RedisLockService {
+    private static final String INGESTION_PREFIX = "guard:lock:ingest:";
+    private static final String WRITE_PREFIX = "guard:lock:write:";
+
+    private static final RedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) else return 0 end",
+            Long.class
+    );
+    private static final RedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('pexpire', KEYS[1], ARGV[2]) else return 0 end",
+            Long.class
+    );
+
+    private final StringRedisTemplate redisTemplate;
+    private final Duration ttl;
+    //  locks this instance holds right now, keyed by redis key with our token as value
+    private final Map<String, String> heldLocks = new ConcurrentHashMap<>();
+
+    public RedisLockService(
+            StringRedisTemplate redisTemplate,
+            @Value("${guard.lock.ttl:PT30S}") Duration ttl
+    ) {
+        this.redisTemplate = redisTemplate;
+        this.ttl = ttl;
+    }
+
+    /**
+     * key of the single-flight claim a repository's in-flight ingestion job holds, its value is the job id
+     *
+     * @param repoUrl
+     * @return
+     */
+    public static String ingestionKey(String repoUrl) {
+        return INGESTION_PREFIX + hash(repoUrl);
+    }
+
+    /**
+     * key of the lock that serializes every write to a repository's vectors (ingestions and delta syncs)
+     *
+     * @param repoUrl
+     * @return
+     */
+    public static String writeKey(String repoUrl) {
+        return WRITE_PREFIX + hash(repoUrl);
+    }
+
+    /**
+     * acquires the lock if nobody holds it
+     *
+     * @param key
+     * @param token identifies the holder, only the holder can renew or release the lock
+     * @return
+     */
+    public Optional<RedisLock> tryAcquire(String key, String token) {
+        Boolean acquired = redisTemplate.opsForValue().setIfAbsent(key, token, ttl);
+        if (!Boolean.TRUE.equals(acquired)) return Optional.empty();
+        heldLocks.put(key, token);
+        return Optional.of(new RedisLock(key, token, this));
+    }
+
+    /**
+     * waits until the lock is free and acquires it, backing off between attempts
+     *
+     * @param key
+     * @param token
+     * @param maxWait
+     * @return the lock, or empty if it could not be acquired within maxWait
+     * @throws InterruptedException
+     */
+    public Optional<RedisLock> acquire(String key, String token, Duration maxWait) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWait.toMillis();
+        long backoff = 100;
+        while (true) {
+            Optional<RedisLock> lock = tryAcquire(key, token);
+            if (lock.isPresent()) return lock;
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return Optional.empty();
+            Thread.sleep(Math.min(backoff, remaining));
+            backoff = Math.min(backoff * 2, 2000);
+        }
+    }
+
+    /**
+     * returns the token of whoever holds the lock right now
+     *
+     * @param key
+     * @return
+     */
+    public Optional<String> ownerOf(String key) {
+        return Optional.ofNullable(redisTemplate.opsForValue().get(key));
+    }
+
+    /**
+     * releases the lock, but only if it is still held with the given token
+     *
+     * @param key
+     * @param token
+     */
+    public void release(String key, String token) {
+        heldLocks.remove(key, token);
+        try {
+            redisTemplate.execute(RELEASE_SCRIPT, List.of(key), token);
+        } catch (Exception err) {
+            //  the lock simply expires after its ttl
+            log.warn("Failed to release lock {}: {}", key, err.getMessage());
+        }
+    }
+
+    /**
+     * extends the ttl of every lock this instance still holds
+     */
+    @Scheduled(fixedDelayString = "${guard.lock.renew-interval:PT10S}")
+    public void renewHeldLocks() {
+        heldLocks.forEach((key, token) -> {
+            try {
+                Long renewed = redisTemplate.execute(RENEW_SCRIPT, List.of(key), token, String.valueOf(ttl.toMillis()));
+                if (renewed == null || renewed == 0) {
+                    //  the lock expired (e.g. redis restarted or renewals stalled) and may now belong to someone else
+                    heldLocks.remove(key, token);
+                    log.warn("Lost lock {} held with token {}", key, token);
+                }
+            } catch (Exception err) {
+                log.warn("Failed to renew lock {}: {}", key, err.getMessage());
+            }
+        });
+    }
+
+    private static String hash(String repoUrl) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(repoUrl.trim().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
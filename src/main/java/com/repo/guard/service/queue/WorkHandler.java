@@ -0,0 +1,12 @@
+package com.repo.guard.service.queue;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public interface WorkHandler {
+    //  the stream whose messages this handler processes
+    WorkStream stream();
+    //  processes one message, which is acknowledged once the returned future completes. throwing or completing it
+    //  exceptionally leaves the message unacknowledged so it is delivered again until it is dead-lettered
+    CompletableFuture<Void> handle(Map<String, String> fields) throws Exception;
+}
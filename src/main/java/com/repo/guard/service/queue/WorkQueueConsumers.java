@@ -0,0 +1,386 @@
+package com.repo.guard.service.queue;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.core.env.Environment;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStreamCommands.XClaimOptions;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * consumer side of the work queue. every instance runs a configurable number of consumers per stream in one shared
+ * consumer group, so each message is handled by exactly one consumer at a time. a handler may finish a message
+ * asynchronously, its consumer then moves on to the next one while at most max-in-flight messages per stream are
+ * unfinished on the instance. a message is acknowledged only after its handler succeeded; failed messages and messages of crashed consumers stay pending and are claimed again
+ * once they have been idle for the retry delay, and after max-attempts deliveries they are moved to the stream's
+ * dead-letter stream. while a handler runs, its consumer keeps re-claiming the message every heartbeat interval,
+ * which resets its idle time, so handlers may run far longer than the retry delay without being retried elsewhere
+ */
+@Slf4j
+@Service
+public class WorkQueueConsumers {
+    public static final String GROUP = "guard";
+
+    //  pending messages looked at per claim attempt
+    private static final int CLAIM_SCAN = 10;
+    private static final Duration READ_BLOCK = Duration.ofSeconds(2);
+    private static final Duration BACKOFF = Duration.ofSeconds(1);
+
+    private final StringRedisTemplate redisTemplate;
+    private final List<WorkHandler> handlers;
+    private final Environment environment;
+    private final MeterRegistry meterRegistry;
+
+    //  how long a failed message, or one whose consumer stopped sending heartbeats, waits before another consumer retries it
+    private final Duration retryAfter;
+
+    //  deliveries after which a message is dead-lettered instead of retried
+    private final int maxAttempts;
+
+    //  prefix of this instance's consumer names, unique per process so restarts never inherit stale deliveries
+    private final String nodeId;
+    private final List<Thread> threads = new ArrayList<>();
+    private final List<StreamConsumer> consumers = new ArrayList<>();
+    //  messages whose handler is running right now, kept alive by the heartbeat
+    private final Set<InFlight> inFlight = ConcurrentHashMap.newKeySet();
+    private volatile boolean running;
+
+    private record StreamConsumer(WorkStream stream, Consumer consumer) {
+    }
+
+    private record InFlight(StreamConsumer owner, RecordId id) {
+    }
+
+    public WorkQueueConsumers(
+            StringRedisTemplate redisTemplate,
+            List<WorkHandler> handlers,
+            Environment environment,
+            MeterRegistry meterRegistry,
+            @Value("${guard.queue.retry-after:PT5M}") Duration retryAfter,
+            @Value("${guard.queue.max-attempts:5}") int maxAttempts,
+            @Value("${guard.queue.heartbeat-interval:PT1M}") Duration heartbeatInterval
+    ) {
+        this.redisTemplate = redisTemplate;
+        this.handlers = handlers;
+        this.environment = environment;
+        this.meterRegistry = meterRegistry;
+        this.retryAfter = retryAfter;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.nodeId = hostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        if (heartbeatInterval.compareTo(retryAfter) >= 0) {
+            log.warn("guard.queue.heartbeat-interval ({}) should be well below guard.queue.retry-after ({}), running messages may be retried twice.", heartbeatInterval, retryAfter);
+        }
+    }
+
+    /**
+     * starts guard.queue.<stream>.consumers consumers on virtual threads for every handled stream once the
+     * application is ready
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        running = true;
+        for (WorkHandler handler : handlers) {
+            WorkStream stream = handler.stream();
+            int count = environment.getProperty("guard.queue." + stream.getName() + ".consumers", Integer.class, 2);
+            int maxInFlight = Math.max(count, environment.getProperty("guard.queue." + stream.getName() + ".max-in-flight", Integer.class, count));
+            //  shared by the stream's consumers, a permit is held from reading a message until it has been handled
+            Semaphore permits = new Semaphore(maxInFlight);
+            for (int i = 0; i < count; i++) {
+                Consumer consumer = Consumer.from(GROUP, nodeId + "-" + stream.getName() + "-" + i);
+                consumers.add(new StreamConsumer(stream, consumer));
+                threads.add(Thread.ofVirtual()
+                        .name("queue-" + stream.getName() + "-" + i)
+                        .start(() -> consume(stream, handler, consumer, permits)));
+            }
+            log.info("Started {} consumer(s) of {} with up to {} message(s) in flight.", count, stream.key(), maxInFlight);
+        }
+    }
+
+    /**
+     * stops the consumers, giving running handlers a while to finish, and leaves the group with every consumer that
+     * holds no pending message. whatever is still pending is retried by another instance after the retry delay
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        running = false;
+        long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+        try {
+            for (Thread thread : threads) {
+                thread.join(Duration.ofNanos(Math.max(1, deadline - System.nanoTime())));
+            }
+            //  messages finished asynchronously may still be running after their consumer stopped
+            while (!inFlight.isEmpty() && deadline - System.nanoTime() > 0) {
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (StreamConsumer entry : consumers) {
+            String key = entry.stream().key();
+            try {
+                if (redisTemplate.opsForStream().pending(key, entry.consumer(), Range.unbounded(), 1).isEmpty()) {
+                    redisTemplate.opsForStream().deleteConsumer(key, entry.consumer());
+                }
+            } catch (DataAccessException err) {
+                log.debug("Failed to remove consumer {} of {}: {}", entry.consumer().getName(), key, err.getMessage());
+            }
+        }
+    }
+
+    private void consume(WorkStream stream, WorkHandler handler, Consumer consumer, Semaphore permits) {
+        while (running && !ensureGroup(stream)) pause();
+
+        long nextClaim = System.nanoTime();
+        while (running) {
+            //  stop reading while the stream has as many unfinished messages on this instance as it may have
+            if (!acquire(permits)) continue;
+            boolean dispatched = false;
+            try {
+                MapRecord<String, Object, Object> record = null;
+                //  stale deliveries are looked for now and then, new messages are read in between
+                if (System.nanoTime() - nextClaim >= 0) {
+                    record = claimStale(stream, consumer);
+                    if (record == null) nextClaim = System.nanoTime() + retryAfter.toNanos() / 2;
+                }
+                if (record == null) record = readNew(stream, consumer);
+                if (record != null) {
+                    process(new StreamConsumer(stream, consumer), handler, record, permits);
+                    dispatched = true;
+                }
+            } catch (DataAccessException err) {
+                if (!running) break;
+                log.warn("Consumer {} of {} failed to talk to redis: {}", consumer.getName(), stream.key(), err.getMessage());
+                pause();
+            } finally {
+                //  a dispatched message returns its permit once it has been handled
+                if (!dispatched) permits.release();
+            }
+        }
+    }
+
+    private boolean acquire(Semaphore permits) {
+        try {
+            return permits.tryAcquire(READ_BLOCK.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            //  consumers only stop through the running flag
+            return false;
+        }
+    }
+
+    private MapRecord<String, Object, Object> readNew(WorkStream stream, Consumer consumer) {
+        List<MapRecord<String, Object, Object>> records = redisTemplate.opsForStream().read(
+                consumer,
+                StreamReadOptions.empty().count(1).block(READ_BLOCK),
+                StreamOffset.create(stream.key(), ReadOffset.lastConsumed())
+        );
+        return records == null || records.isEmpty() ? null : records.get(0);
+    }
+
+    /**
+     * claims one message that has been pending longer than the retry delay, dead-lettering the ones that ran out of
+     * attempts on the way. claiming with a minimum idle time makes sure only one consumer wins each message
+     *
+     * @param stream
+     * @param consumer
+     * @return the claimed message, null when none is due
+     */
+    private MapRecord<String, Object, Object> claimStale(WorkStream stream, Consumer consumer) {
+        PendingMessages pending = redisTemplate.opsForStream().pending(stream.key(), GROUP, Range.unbounded(), CLAIM_SCAN);
+        for (PendingMessage message : pending) {
+            if (message.getElapsedTimeSinceLastDelivery().compareTo(retryAfter) < 0) continue;
+
+            List<MapRecord<String, Object, Object>> claimed = redisTemplate.opsForStream()
+                    .claim(stream.key(), GROUP, consumer.getName(), retryAfter, message.getId());
+            if (claimed == null || claimed.isEmpty()) continue;
+
+            MapRecord<String, Object, Object> record = claimed.get(0);
+            if (message.getTotalDeliveryCount() >= maxAttempts) {
+                deadLetter(stream, record, message.getTotalDeliveryCount());
+                continue;
+            }
+            counter("guard.queue.retried", stream).increment();
+            log.info("Retrying message {} of {} (delivery {} of {}).", record.getId(), stream.key(), message.getTotalDeliveryCount() + 1, maxAttempts);
+            return record;
+        }
+        return null;
+    }
+
+    /**
+     * hands the message to its handler and acknowledges it once the handler's future completed successfully,
+     * which may happen on another thread long after this consumer moved on
+     *
+     * @param owner
+     * @param handler
+     * @param record
+     * @param permits released once the message has been handled
+     */
+    private void process(StreamConsumer owner, WorkHandler handler, MapRecord<String, Object, Object> record, Semaphore permits) {
+        InFlight entry = new InFlight(owner, record.getId());
+        inFlight.add(entry);
+        CompletableFuture<Void> handled;
+        try {
+            handled = handler.handle(toStrings(record.getValue()));
+        } catch (Exception err) {
+            if (err instanceof InterruptedException) Thread.currentThread().interrupt();
+            handled = CompletableFuture.failedFuture(err);
+        }
+        handled.whenComplete((result, err) -> {
+            try {
+                finish(owner.stream(), record, err);
+            } finally {
+                inFlight.remove(entry);
+                permits.release();
+            }
+        });
+    }
+
+    private void finish(WorkStream stream, MapRecord<String, Object, Object> record, Throwable err) {
+        if (err != null) {
+            //  left unacknowledged, so it is claimed again once the retry delay has passed
+            Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+            counter("guard.queue.failed", stream).increment();
+            log.warn("Message {} of {} failed, retrying after {}.", record.getId(), stream.key(), retryAfter, cause);
+            return;
+        }
+        try {
+            redisTemplate.opsForStream().acknowledge(stream.key(), GROUP, record.getId());
+            counter("guard.queue.processed", stream).increment();
+        } catch (DataAccessException ackErr) {
+            //  the message stays pending and is handled again once the retry delay has passed
+            log.warn("Failed to acknowledge message {} of {}: {}", record.getId(), stream.key(), ackErr.getMessage());
+        }
+    }
+
+    /**
+     * re-claims every running message for the consumer that handles it, which resets its idle time so no other
+     * consumer takes it over as long as this instance is alive. a message another consumer claimed meanwhile (e.g.
+     * after redis was unreachable for longer than the retry delay) is left to it
+     */
+    @Scheduled(fixedDelayString = "${guard.queue.heartbeat-interval:PT1M}")
+    public void heartbeat() {
+        Map<StreamConsumer, List<RecordId>> byOwner = inFlight.stream()
+                .collect(Collectors.groupingBy(InFlight::owner, Collectors.mapping(InFlight::id, Collectors.toList())));
+        byOwner.forEach((owner, ids) -> {
+            String key = owner.stream().key();
+            try {
+                Set<RecordId> owned = redisTemplate.opsForStream()
+                        .pending(key, owner.consumer(), Range.unbounded(), Long.MAX_VALUE)
+                        .stream()
+                        .map(PendingMessage::getId)
+                        .collect(Collectors.toSet());
+                RecordId[] claim = ids.stream().filter(owned::contains).toArray(RecordId[]::new);
+                if (claim.length < ids.size()) log.warn("{} running message(s) of {} were taken over by another consumer.", ids.size() - claim.length, key);
+                if (claim.length == 0) return;
+
+                redisTemplate.execute((RedisCallback<List<RecordId>>) connection -> connection.streamCommands().xClaimJustId(
+                        key.getBytes(StandardCharsets.UTF_8), GROUP, owner.consumer().getName(), XClaimOptions.minIdle(Duration.ZERO).ids(claim)));
+            } catch (DataAccessException err) {
+                log.warn("Failed to refresh {} running message(s) of {}: {}", ids.size(), key, err.getMessage());
+            }
+        });
+    }
+
+    /**
+     * moves a message that kept failing to the dead-letter stream, keeping its fields for inspection or a replay
+     *
+     * @param stream
+     * @param record
+     * @param deliveries
+     */
+    private void deadLetter(WorkStream stream, MapRecord<String, Object, Object> record, long deliveries) {
+        Map<String, String> fields = new LinkedHashMap<>(toStrings(record.getValue()));
+        fields.put("source-id", record.getId().getValue());
+        fields.put("deliveries", String.valueOf(deliveries));
+        fields.put("dead-lettered-at", Instant.now().toString());
+        redisTemplate.opsForStream().add(StreamRecords.string(fields).withStreamKey(stream.deadLetterKey()));
+        redisTemplate.opsForStream().acknowledge(stream.key(), GROUP, record.getId());
+        counter("guard.queue.dead-lettered", stream).increment();
+        log.error("Message {} of {} failed {} time(s), moved it to {}.", record.getId(), stream.key(), deliveries, stream.deadLetterKey());
+    }
+
+    /**
+     * creates the consumer group, and the stream with it, unless it already exists
+     *
+     * @param stream
+     * @return false when redis could not be reached
+     */
+    private boolean ensureGroup(WorkStream stream) {
+        try {
+            redisTemplate.execute((RedisCallback<String>) connection -> createGroup(connection, stream));
+            return true;
+        } catch (DataAccessException err) {
+            Throwable cause = NestedExceptionUtils.getMostSpecificCause(err);
+            if (cause.getMessage() != null && cause.getMessage().contains("BUSYGROUP")) return true;
+            log.warn("Failed to create consumer group of {}: {}", stream.key(), err.getMessage());
+            return false;
+        }
+    }
+
+    private static String createGroup(RedisConnection connection, WorkStream stream) {
+        //  starting at 0 lets the group pick up messages queued before it existed
+        return connection.streamCommands().xGroupCreate(stream.key().getBytes(StandardCharsets.UTF_8), GROUP, ReadOffset.from("0-0"), true);
+    }
+
+    private static Map<String, String> toStrings(Map<Object, Object> value) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        value.forEach((field, content) -> fields.put(String.valueOf(field), String.valueOf(content)));
+        return fields;
+    }
+
+    private Counter counter(String name, WorkStream stream) {
+        return Counter.builder(name).tag("stream", stream.getName()).register(meterRegistry);
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(BACKOFF);
+        } catch (InterruptedException e) {
+            //  consumers only stop through the running flag, a stray interrupt just cuts the pause short
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception err) {
+            return "node";
+        }
+    }
+}
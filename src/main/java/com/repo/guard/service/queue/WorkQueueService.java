@@ -0,0 +1,52 @@
+package com.repo.guard.service.queue;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+
+/**
+ * durable producer side of the work queue. messages are appended to a redis stream, so queued work survives restarts
+ * and deploys and is picked up by whichever instance has a free consumer
+ */
+@Slf4j
+@Service
+public class WorkQueueService {
+    private final StringRedisTemplate redisTemplate;
+    private final MeterRegistry meterRegistry;
+
+    //  streams are trimmed to roughly this many entries, acknowledged or not
+    private final long maxLength;
+
+    public WorkQueueService(
+            StringRedisTemplate redisTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${guard.queue.max-length:100000}") long maxLength
+    ) {
+        this.redisTemplate = redisTemplate;
+        this.meterRegistry = meterRegistry;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * appends a message to the stream, throwing a DataAccessException when redis can't take it
+     *
+     * @param stream
+     * @param fields
+     * @return id of the message
+     */
+    public RecordId publish(WorkStream stream, Map<String, String> fields) {
+        RecordId id = redisTemplate.opsForStream().add(StreamRecords.string(fields).withStreamKey(stream.key()));
+        //  approximate trimming lets redis drop whole macro nodes only, which keeps it cheap
+        redisTemplate.opsForStream().trim(stream.key(), maxLength, true);
+        Counter.builder("guard.queue.published").tag("stream", stream.getName()).register(meterRegistry).increment();
+        log.debug("Queued message {} on {}.", id, stream.key());
+        return id;
+    }
+}
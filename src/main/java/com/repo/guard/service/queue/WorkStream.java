@@ -0,0 +1,31 @@
+package com.repo.guard.service.queue;
+
+/**
+ * the redis streams background work is queued on. every stream has one consumer group shared by all instances and a
+ * dead-letter stream for messages that kept failing
+ */
+public enum WorkStream {
+    //  gitlab webhook payloads, routed to the event handlers
+    WEBHOOKS("webhooks"),
+    //  files merged into a default branch, coalesced per repository into delta syncs
+    DELTA_SYNCS("delta-syncs");
+
+    private final String name;
+
+    WorkStream(String name) {
+        this.name = name;
+    }
+
+    //  name used in the stream keys and in the guard.queue.<name>.* properties
+    public String getName() {
+        return name;
+    }
+
+    public String key() {
+        return "guard:stream:" + name;
+    }
+
+    public String deadLetterKey() {
+        return key() + ":dead";
+    }
+}
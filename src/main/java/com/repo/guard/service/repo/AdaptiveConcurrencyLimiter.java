@@ -0,0 +1,136 @@
+package com.repo.guard.service.repo;
+
+import com.google.genai.errors.ApiException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * additive-increase / multiplicative-decrease limit on the number of requests in flight to an external provider.
+ * the limit grows by roughly one slot per round trip while latency stays under the target, and is cut in half
+ * whenever the provider answers with a rate limit (429) or server error (5xx)
+ */
+@Slf4j
+public class AdaptiveConcurrencyLimiter {
+    //  fallback for errors that carry no typed status: a 429 or 5xx only counts right after a status label, so
+    //  numbers elsewhere in a message (e.g. "512 tokens") don't, and the grpc statuses only in their upper case form
+    private static final Pattern OVERLOAD_STATUS_PATTERN =
+            Pattern.compile("(?:status(?:\\s*code)?|http(?:/\\d(?:\\.\\d)?)?|error\\s*code|code)[\\s:=\"']*(429|5\\d\\d)\\b|too many requests|service unavailable", Pattern.CASE_INSENSITIVE);
+    private static final Pattern OVERLOAD_GRPC_PATTERN = Pattern.compile("\\b(RESOURCE_EXHAUSTED|UNAVAILABLE)\\b");
+
+    //  minimum time between two decreases so a burst of failures from the same window only backs off once
+    private static final long DECREASE_COOLDOWN_MS = 1000;
+
+    private final String name;
+    private final int maxLimit;
+    private final long latencyTargetMs;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFreed = lock.newCondition();
+
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseAt;
+
+    public AdaptiveConcurrencyLimiter(String name, int initialLimit, int maxLimit, long latencyTargetMs) {
+        this.name = name;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(1, initialLimit));
+        this.latencyTargetMs = latencyTargetMs;
+    }
+
+    /**
+     * blocks until a request slot is free under the current limit
+     *
+     * @throws InterruptedException
+     */
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) slotFreed.await();
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * releases a slot and adjusts the limit based on how the request went
+     *
+     * @param latencyMs
+     * @param error     the failure of the request, or null if it succeeded
+     */
+    public void release(long latencyMs, Throwable error) {
+        lock.lock();
+        try {
+            inFlight--;
+            double previous = limit;
+
+            if (error != null && isOverloaded(error)) {
+                //  multiplicative decrease when the provider tells us to slow down
+                long now = System.currentTimeMillis();
+                if (now - lastDecreaseAt >= DECREASE_COOLDOWN_MS) {
+                    limit = Math.max(1, limit / 2);
+                    lastDecreaseAt = now;
+                }
+            } else if (error == null && latencyMs <= latencyTargetMs) {
+                //  additive increase, roughly one extra slot per full round of successful requests
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            } else if (error == null) {
+                //  healthy but slow responses mean we are queueing on the provider side, ease off gently
+                limit = Math.max(1, limit * 0.9);
+            }
+
+            if ((int) previous != (int) limit) {
+                log.info("{} concurrency limit changed from {} to {} (latency {}ms{})",
+                        name, (int) previous, (int) limit, latencyMs, error != null ? ", " + error.getClass().getSimpleName() : "");
+            }
+            slotFreed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * checks whether the error or any of its causes signals a rate limit or a server side failure, by the http
+     * status of the typed provider and rest client exceptions, or by a status named in the message otherwise
+     *
+     * @param error
+     * @return
+     */
+    public static boolean isOverloaded(Throwable error) {
+        for (Throwable current = error; current != null; current = current.getCause()) {
+            if (current instanceof ApiException api) return isOverloadStatus(api.code());
+            if (current instanceof HttpStatusCodeException http) return isOverloadStatus(http.getStatusCode().value());
+
+            String message = current.getMessage();
+            if (message != null && (OVERLOAD_STATUS_PATTERN.matcher(message).find() || OVERLOAD_GRPC_PATTERN.matcher(message).find())) return true;
+            if (current.getCause() == current) break;
+        }
+        return false;
+    }
+
+    private static boolean isOverloadStatus(int status) {
+        return status == 429 || status >= 500;
+    }
+}
@@ -0,0 +1,316 @@
+package com.repo.guard.service.repo;
+
+import com.repo.guard.exception.RepositoryBusyException;
+import com.repo.guard.model.repo.CodeChunk;
+import com.repo.guard.model.repo.CodeChunkBulkWriter;
+import com.repo.guard.model.repo.CodeChunkRepository;
+import com.repo.guard.model.repo.RepoModel;
+import com.repo.guard.model.repo.RepoModelRepository;
+import com.repo.guard.service.lock.RedisLock;
+import com.repo.guard.service.lock.RedisLockService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.lib.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * manages the generations of code_chunks. every full ingestion writes a brand-new generation next to the live one,
+ * and searches only see the repository's active generation, so readers never observe a half-written index. the
+ * pointer is flipped in one short transaction and superseded generations are purged in the background in batches
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ChunkGenerationService {
+    private final CodeChunkRepository codeChunkRepository;
+    private final RepoModelRepository repoModelRepository;
+    private final CodeChunkBulkWriter codeChunkBulkWriter;
+    private final TransactionTemplate transactionTemplate;
+    private final JdbcTemplate jdbcTemplate;
+    private final RedisLockService redisLockService;
+
+    //  rows deleted per statement while purging, keeps each delete short so it never blocks ingestion or searches
+    @Value("${guard.ingestion.purge-batch-size:5000}")
+    private int purgeBatchSize;
+
+    //  how long a wipe waits for a running delta sync of the repository to release the write lock
+    @Value("${guard.lock.wipe-wait-timeout:PT30S}")
+    private Duration wipeLockTimeout;
+
+    //  how long a purge waits for the repository's write lock, e.g. held by the ingestion that asked for the purge
+    @Value("${guard.ingestion.purge-lock-wait:PT1M}")
+    private Duration purgeLockTimeout;
+
+    /**
+     * returns the repository row, creating it with no active generation on first ingestion, and records the
+     * repository's current default branch
+     *
+     * @param repoUrl
+     * @param defaultBranch
+     * @return
+     */
+    public RepoModel ensureRepository(String repoUrl, String defaultBranch) {
+        RepoModel repoModel = repoModelRepository.findByRepoUrl(repoUrl).orElseGet(() -> {
+            try {
+                return repoModelRepository.save(RepoModel.builder().repoUrl(repoUrl).defaultBranch(defaultBranch).build());
+            } catch (DataIntegrityViolationException err) {
+                //  another job registered the repository in the meantime
+                return repoModelRepository.findByRepoUrl(repoUrl).orElseThrow(() -> err);
+            }
+        });
+        if (defaultBranch != null && !defaultBranch.equals(repoModel.getDefaultBranch())) {
+            repoModel.setDefaultBranch(defaultBranch);
+            repoModel = repoModelRepository.save(repoModel);
+        }
+        ensurePartition(repoModel.getId());
+        return repoModel;
+    }
+
+    /**
+     * name of the code_chunks partition that holds every generation of the repository
+     *
+     * @param repoId
+     * @return
+     */
+    public static String partitionName(int repoId) {
+        return "code_chunks_r" + repoId;
+    }
+
+    /**
+     * creates the repository's partition of code_chunks if it doesn't exist yet. it inherits every index of
+     * code_chunks, the hnsw index included, which is built on the still empty table and then grows with the inserts
+     *
+     * @param repoId
+     */
+    public void ensurePartition(int repoId) {
+        String partition = partitionName(repoId);
+        if (partitionExists(partition)) return;
+        try {
+            jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + partition + " PARTITION OF code_chunks FOR VALUES IN (" + repoId + ")");
+            log.info("Created partition {} of code_chunks.", partition);
+        } catch (DataAccessException err) {
+            //  another instance created it at the same time
+            if (!partitionExists(partition)) throw err;
+        }
+    }
+
+    /**
+     * removes a repository together with all of its vectors by detaching and dropping its partition, which is
+     * instant no matter how many chunks it holds. the wipe holds the repository's ingestion claim, so no ingestion
+     * starts meanwhile, and its write lock, so it never runs under a delta sync
+     *
+     * @param repoUrl
+     * @return false when the repository is unknown
+     * @throws RepositoryBusyException when an ingestion of the repository is in flight or a delta sync holds its
+     * write lock for longer than the wipe waits
+     * @throws InterruptedException
+     */
+    public boolean dropRepository(String repoUrl) throws InterruptedException {
+        String token = "wipe:" + UUID.randomUUID();
+        try (RedisLock claim = redisLockService.tryAcquire(RedisLockService.ingestionKey(repoUrl), token)
+                .orElseThrow(() -> new RepositoryBusyException("An ingestion of " + repoUrl + " is in flight, retry once it finished"));
+             RedisLock writeLock = redisLockService.acquire(RedisLockService.writeKey(repoUrl), token, wipeLockTimeout)
+                     .orElseThrow(() -> new RepositoryBusyException("Timed out after " + wipeLockTimeout + " waiting for the write lock of " + repoUrl))) {
+            Optional<RepoModel> repoModel = repoModelRepository.findByRepoUrl(repoUrl);
+            if (repoModel.isEmpty()) return false;
+
+            String partition = partitionName(repoModel.get().getId());
+            if (partitionExists(partition)) {
+                //  a concurrent detach only takes a share update exclusive lock on code_chunks, so other repos carry on
+                jdbcTemplate.execute("ALTER TABLE code_chunks DETACH PARTITION " + partition + " CONCURRENTLY");
+                jdbcTemplate.execute("DROP TABLE IF EXISTS " + partition);
+            }
+            repoModelRepository.deleteByRepoUrl(repoUrl);
+            log.info("Dropped {} and its partition {}.", repoUrl, partition);
+            return true;
+        }
+    }
+
+    private boolean partitionExists(String partition) {
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject("SELECT to_regclass(?) IS NOT NULL", Boolean.class, partition));
+    }
+
+    /**
+     * allocates a generation number that is higher than every generation handed out before
+     *
+     * @return
+     */
+    public long allocateGeneration() {
+        return codeChunkRepository.nextGeneration();
+    }
+
+    /**
+     * makes a fully written generation the one searches read from, in a single short update
+     *
+     * @param repoUrl
+     * @param generation
+     * @param headCommit
+     * @param chunkCount number of chunks written to the generation
+     * @return false when a newer generation was activated in the meantime and this one was discarded
+     */
+    public boolean activate(String repoUrl, long generation, ObjectId headCommit, long chunkCount) {
+        int updated = repoModelRepository.activateGeneration(repoUrl, generation, headCommit.name(), Instant.now(), chunkCount);
+        if (updated == 0) {
+            log.warn("Generation {} of {} is older than the active one, discarding it.", generation, repoUrl);
+            return false;
+        }
+        log.info("Activated generation {} of {} at commit {}.", generation, repoUrl, headCommit.name());
+        return true;
+    }
+
+    /**
+     * replaces the vectors of the given paths in the active generation with the rows staged under another
+     * generation, then records the new indexed commit, all in one transaction
+     *
+     * @param repoUrl
+     * @param staged
+     * @param paths
+     * @param headCommit
+     * @return false when a newer full ingestion took over and the staged rows were discarded
+     */
+    public boolean mergeStaged(String repoUrl, long staged, Collection<String> paths, ObjectId headCommit) {
+        Boolean merged = transactionTemplate.execute(status -> {
+            //  the row lock serializes this merge against generation flips of the same repository
+            Optional<RepoModel> locked = repoModelRepository.lockByRepoUrl(repoUrl);
+            if (locked.isEmpty() || locked.get().getActiveGeneration() > staged) return false;
+
+            RepoModel repoModel = locked.get();
+            long active = repoModel.getActiveGeneration();
+            int deleted = deletePaths(repoModel.getId(), active, paths);
+            int promoted = codeChunkRepository.promoteGeneration(repoModel.getId(), staged, active);
+
+            adjustChunkCount(repoModel, promoted - deleted);
+            repoModel.setIndexedCommitSha(headCommit.name());
+            repoModel.setIndexedAt(Instant.now());
+            repoModelRepository.save(repoModel);
+            log.info("Merged {} staged chunk(s) of {} into generation {}.", promoted, repoUrl, active);
+            return true;
+        });
+        return Boolean.TRUE.equals(merged);
+    }
+
+    /**
+     * swaps the vectors of the given paths in the active generation for freshly embedded chunks in one
+     * transaction, so searches see either the old or the new content of a file but never neither
+     *
+     * @param repoUrl
+     * @param paths
+     * @param chunks
+     * @return false when the repository has never been indexed
+     */
+    public boolean replacePaths(String repoUrl, Collection<String> paths, List<CodeChunk> chunks) {
+        Boolean replaced = transactionTemplate.execute(status -> {
+            Optional<RepoModel> locked = repoModelRepository.lockByRepoUrl(repoUrl);
+            if (locked.isEmpty()) return false;
+
+            RepoModel repoModel = locked.get();
+            long active = repoModel.getActiveGeneration();
+            int deleted = deletePaths(repoModel.getId(), active, paths);
+            chunks.forEach(chunk -> {
+                chunk.setRepoId(repoModel.getId());
+                chunk.setGeneration(active);
+            });
+            long written = codeChunkBulkWriter.write(chunks);
+
+            adjustChunkCount(repoModel, written - deleted);
+            repoModelRepository.save(repoModel);
+            return true;
+        });
+        return Boolean.TRUE.equals(replaced);
+    }
+
+    /**
+     * deletes the chunks of exactly the given files from a generation in a single statement
+     *
+     * @param repoId
+     * @param generation
+     * @param paths
+     * @return number of chunks deleted
+     */
+    private int deletePaths(int repoId, long generation, Collection<String> paths) {
+        if (paths.isEmpty()) return 0;
+        String[] normalized = paths.stream().map(CodeChunk::normalizePath).distinct().toArray(String[]::new);
+        int deleted = codeChunkRepository.deleteByRepoIdAndPathIn(repoId, generation, normalized);
+        log.debug("Deleted {} chunk(s) of {} path(s) from generation {} of repository {}.", deleted, normalized.length, generation, repoId);
+        return deleted;
+    }
+
+    private static void adjustChunkCount(RepoModel repoModel, long delta) {
+        long current = repoModel.getChunkCount() != null ? repoModel.getChunkCount() : 0;
+        repoModel.setChunkCount(Math.max(0, current + delta));
+    }
+
+    /**
+     * deletes every generation of the repository except the active one, a batch at a time. that covers superseded
+     * generations as well as staged ones abandoned by a failed or crashed run whose discard never ran
+     *
+     * @param repoId
+     */
+    @Async("maintenanceExecutor")
+    public void purgeInactiveGenerations(Integer repoId) {
+        Optional<RepoModel> repoModel = repoModelRepository.findById(repoId);
+        if (repoModel.isEmpty()) return;
+        String repoUrl = repoModel.get().getRepoUrl();
+
+        //  every generation is written under the repository's write lock, so while it is held nothing is staging and
+        //  every generation but the active one is dead. generations allocated later are above the bound taken here,
+        //  which lets the batches run without holding the lock
+        Optional<RedisLock> writeLock;
+        try {
+            writeLock = redisLockService.acquire(RedisLockService.writeKey(repoUrl), "purge:" + UUID.randomUUID(), purgeLockTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (writeLock.isEmpty()) {
+            log.info("Skipped purging {}, it is still being written. The next purge covers it.", repoUrl);
+            return;
+        }
+        long active;
+        long bound;
+        try (RedisLock lock = writeLock.get()) {
+            Optional<RepoModel> current = repoModelRepository.findById(repoId);
+            if (current.isEmpty()) return;
+            active = current.get().getActiveGeneration();
+            bound = allocateGeneration();
+        }
+
+        long purged = 0;
+        int deleted;
+        do {
+            deleted = codeChunkRepository.deleteInactiveGenerationBatch(repoId, active, bound, purgeBatchSize);
+            purged += deleted;
+        } while (deleted > 0);
+        log.info("Purged {} chunk(s) of inactive generations of {}.", purged, repoUrl);
+    }
+
+    /**
+     * deletes the rows of a generation that was never activated, e.g. after a failed or superseded ingestion
+     *
+     * @param repoId
+     * @param generation
+     */
+    @Async("maintenanceExecutor")
+    public void discardGeneration(Integer repoId, long generation) {
+        long purged = 0;
+        int deleted;
+        do {
+            deleted = codeChunkRepository.deleteGenerationBatch(repoId, generation, purgeBatchSize);
+            purged += deleted;
+        } while (deleted > 0);
+        log.info("Discarded {} chunk(s) of abandoned generation {} of repository {}.", purged, generation, repoId);
+    }
+}
@@ -0,0 +1,258 @@
+package com.repo.guard.service.repo;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.repo.guard.service.queue.WorkHandler;
+import com.repo.guard.service.queue.WorkQueueService;
+import com.repo.guard.service.queue.WorkStream;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * coalesces the delta syncs of a repository. merged file sets are queued per repository, a later update or delete
+ * of a path overrides an earlier one, and once the coalescing window has passed everything pending is synced in one
+ * run against the latest head of the default branch. only one sync per repository runs at a time, requests that
+ * arrive meanwhile are folded into the next one, so a merge train costs one fetch and one embedding pass.
+ * requests travel through the durable delta-sync stream and are acknowledged only once the sync covering them
+ * succeeded, so a restart in between retries them instead of losing them
+ */
+@Slf4j
+@Service
+public class DeltaSyncCoordinator implements WorkHandler {
+    private final RepoIngestionWorkerService repoIngestionWorkerService;
+    private final WorkQueueService workQueueService;
+    private final ObjectMapper objectMapper;
+    private final TaskScheduler taskScheduler;
+    private final Duration coalesceWindow;
+    //  credentials are never written to the stream, the consuming instance uses its own
+    private final String gitlabUrl;
+    private final String gitlabToken;
+    private final Map<String, PendingDelta> pendingByRepo = new ConcurrentHashMap<>();
+
+    private final Counter requests;
+    private final Counter syncs;
+
+    public DeltaSyncCoordinator(
+            RepoIngestionWorkerService repoIngestionWorkerService,
+            WorkQueueService workQueueService,
+            ObjectMapper objectMapper,
+            TaskScheduler taskScheduler,
+            MeterRegistry meterRegistry,
+            @Value("${guard.delta.coalesce-window:PT10S}") Duration coalesceWindow,
+            @Value("${gitlab.api.url}") String gitlabUrl,
+            @Value("${gitlab.api.token}") String gitlabToken
+    ) {
+        this.repoIngestionWorkerService = repoIngestionWorkerService;
+        this.workQueueService = workQueueService;
+        this.objectMapper = objectMapper;
+        this.taskScheduler = taskScheduler;
+        this.coalesceWindow = coalesceWindow;
+        this.gitlabUrl = gitlabUrl;
+        this.gitlabToken = gitlabToken;
+        this.requests = Counter.builder("guard.delta.requests").register(meterRegistry);
+        this.syncs = Counter.builder("guard.delta.syncs").register(meterRegistry);
+    }
+
+    private enum DeltaOp {
+        UPDATE,
+        DELETE
+    }
+
+    /**
+     * the queued changes of one repository, guarded by its own monitor
+     */
+    private static final class PendingDelta {
+        //  insertion ordered so the latest operation of a path is the one kept
+        private final Map<String, DeltaOp> paths = new LinkedHashMap<>();
+        //  completed once the sync covering the request has finished, which acknowledges its stream message
+        private final List<CompletableFuture<Void>> waiters = new ArrayList<>();
+        private Integer projectId;
+        private String branch;
+        private int requestCount;
+        private boolean scheduled;
+        private boolean running;
+    }
+
+    /**
+     * queues the changed files of a merge into the default branch on the durable delta-sync stream
+     *
+     * @param projectId
+     * @param repoUrl
+     * @param branch
+     * @param filesToUpdate
+     * @param filesToDelete
+     * @throws JsonProcessingException
+     */
+    public void submit(
+            Integer projectId,
+            String repoUrl,
+            String branch,
+            Set<String> filesToUpdate,
+            Set<String> filesToDelete
+    ) throws JsonProcessingException {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("projectId", String.valueOf(projectId));
+        fields.put("repoUrl", repoUrl);
+        fields.put("branch", branch);
+        fields.put("filesToUpdate", objectMapper.writeValueAsString(filesToUpdate));
+        fields.put("filesToDelete", objectMapper.writeValueAsString(filesToDelete));
+        workQueueService.publish(WorkStream.DELTA_SYNCS, fields);
+    }
+
+    @Override
+    public WorkStream stream() {
+        return WorkStream.DELTA_SYNCS;
+    }
+
+    //  completes once the coalesced sync that includes this request is done, so the message is only acknowledged
+    //  once its files are really synced. the consumer reads on meanwhile, which lets the requests of a window coalesce
+    //  and keeps a slow repository from holding up the others
+    @Override
+    public CompletableFuture<Void> handle(Map<String, String> fields) throws Exception {
+        TypeReference<Set<String>> paths = new TypeReference<>() { };
+        return coalesce(
+                Integer.valueOf(fields.get("projectId")),
+                fields.get("repoUrl"),
+                fields.get("branch"),
+                objectMapper.readValue(fields.get("filesToUpdate"), paths),
+                objectMapper.readValue(fields.get("filesToDelete"), paths)
+        );
+    }
+
+    /**
+     * adds the changed files of a merge to the repository's pending delta
+     *
+     * @param projectId
+     * @param repoUrl
+     * @param branch
+     * @param filesToUpdate
+     * @param filesToDelete
+     * @return completes when the sync covering these files has finished
+     */
+    private CompletableFuture<Void> coalesce(
+            Integer projectId,
+            String repoUrl,
+            String branch,
+            Set<String> filesToUpdate,
+            Set<String> filesToDelete
+    ) {
+        requests.increment();
+        if (filesToUpdate.isEmpty() && filesToDelete.isEmpty()) return CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> synced = new CompletableFuture<>();
+        PendingDelta pending = pendingByRepo.computeIfAbsent(repoUrl, url -> new PendingDelta());
+        synchronized (pending) {
+            //  deletes first, so a rename's new path is never shadowed by its own old path
+            filesToDelete.forEach(path -> put(pending, path, DeltaOp.DELETE));
+            filesToUpdate.forEach(path -> put(pending, path, DeltaOp.UPDATE));
+            pending.projectId = projectId;
+            pending.branch = branch;
+            pending.requestCount++;
+            pending.waiters.add(synced);
+
+            //  a running sync schedules the next window itself once it is done
+            if (!pending.scheduled && !pending.running) schedule(repoUrl, pending);
+        }
+        log.info("Queued delta sync of {} ({} path(s) pending).", repoUrl, pending.paths.size());
+        return synced;
+    }
+
+    private static void put(PendingDelta pending, String path, DeltaOp op) {
+        //  remove first so the path moves to the end, keeping the map in order of the latest operation
+        pending.paths.remove(path);
+        pending.paths.put(path, op);
+    }
+
+    private void schedule(String repoUrl, PendingDelta pending) {
+        pending.scheduled = true;
+        taskScheduler.schedule(() -> flush(repoUrl), Instant.now().plus(coalesceWindow));
+    }
+
+    /**
+     * drains everything queued for the repository into a single delta sync
+     *
+     * @param repoUrl
+     */
+    private void flush(String repoUrl) {
+        PendingDelta pending = pendingByRepo.get(repoUrl);
+        if (pending == null) return;
+
+        Set<String> toUpdate = new LinkedHashSet<>();
+        Set<String> toDelete = new LinkedHashSet<>();
+        List<CompletableFuture<Void>> waiters;
+        Integer projectId;
+        String branch;
+        int coalesced;
+        synchronized (pending) {
+            pending.scheduled = false;
+            if (pending.paths.isEmpty()) {
+                //  requests without any path have nothing to sync
+                pending.waiters.forEach(waiter -> waiter.complete(null));
+                pending.waiters.clear();
+                return;
+            }
+
+            pending.paths.forEach((path, op) -> (op == DeltaOp.UPDATE ? toUpdate : toDelete).add(path));
+            pending.paths.clear();
+            waiters = new ArrayList<>(pending.waiters);
+            pending.waiters.clear();
+            projectId = pending.projectId;
+            branch = pending.branch;
+            coalesced = pending.requestCount;
+            pending.requestCount = 0;
+            pending.running = true;
+        }
+
+        syncs.increment();
+        log.info("Running coalesced delta sync of {} for {} request(s): {} update(s), {} deletion(s).",
+                repoUrl, coalesced, toUpdate.size(), toDelete.size());
+
+        CompletableFuture<Void> sync;
+        try {
+            sync = repoIngestionWorkerService.syncDeltaAsync(projectId, repoUrl, gitlabUrl, gitlabToken, branch, toUpdate, toDelete);
+        } catch (Exception err) {
+            sync = CompletableFuture.failedFuture(err);
+        }
+        sync.whenComplete((result, err) -> {
+            if (err != null) log.error("Delta sync of {} failed", repoUrl, err);
+            onSyncFinished(repoUrl, pending);
+            waiters.forEach(waiter -> {
+                if (err != null) waiter.completeExceptionally(err);
+                else waiter.complete(null);
+            });
+        });
+    }
+
+    /**
+     * starts the next window if more changes were queued while the sync ran, otherwise forgets the repository
+     *
+     * @param repoUrl
+     * @param pending
+     */
+    private void onSyncFinished(String repoUrl, PendingDelta pending) {
+        synchronized (pending) {
+            pending.running = false;
+            if (!pending.paths.isEmpty()) {
+                schedule(repoUrl, pending);
+            } else if (!pending.scheduled) {
+                //  a submit that already holds this instance re-adds it through computeIfAbsent after removal
+                pendingByRepo.remove(repoUrl, pending);
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.repo.guard.service.repo;
+
+import com.repo.guard.dto.RepoIngestionRequestDto;
+import com.repo.guard.model.repo.IngestionJob;
+
+public interface IngestionCoordinatorService {
+    IngestionJob submit(RepoIngestionRequestDto repo);
+}
@@ -0,0 +1,75 @@
+package com.repo.guard.service.repo;
+
+import com.repo.guard.dto.RepoIngestionRequestDto;
+import com.repo.guard.model.repo.IngestionJob;
+import com.repo.guard.service.lock.RedisLock;
+import com.repo.guard.service.lock.RedisLockService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Service;
+
+import java.util.Optional;
+
+/**
+ * single-flight entry point for repository ingestions. the first request for a repository claims it in redis and
+ * starts a job, every request that arrives while that job is queued or running, on any instance, is handed the
+ * same job instead of starting a second clone and embedding run
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class IngestionCoordinatorServiceImpl implements IngestionCoordinatorService {
+    //  a claim can be released between our failed attempt and reading its owner, so retry a few times
+    private static final int MAX_CLAIM_ATTEMPTS = 5;
+
+    private final RepoIngestionWorkerService repoIngestionWorkerService;
+    private final IngestionJobService ingestionJobService;
+    private final RedisLockService redisLockService;
+
+    /**
+     * starts an ingestion of the repository, or returns the job that is already in flight for it
+     *
+     * @param repo
+     * @return
+     */
+    @Override
+    public IngestionJob submit(RepoIngestionRequestDto repo) {
+        String claimKey = RedisLockService.ingestionKey(repo.getRepoUrl());
+
+        for (int attempt = 1; attempt <= MAX_CLAIM_ATTEMPTS; attempt++) {
+            //  the job row exists before its id becomes the claim, so anyone reading the claim can resolve the job
+            IngestionJob job = ingestionJobService.create(repo.getRepoUrl());
+            Optional<RedisLock> claim = redisLockService.tryAcquire(claimKey, job.getId());
+            if (claim.isPresent()) {
+                try {
+                    //  the worker releases the claim once the job has finished
+                    repoIngestionWorkerService.ingestRepositoryAsync(repo, job.getId());
+                } catch (TaskRejectedException e) {
+                    claim.get().close();
+                    ingestionJobService.fail(job.getId(), "Ingestion queue is full");
+                    throw e;
+                }
+                return job;
+            }
+            ingestionJobService.discard(job.getId());
+
+            Optional<IngestionJob> inFlight = redisLockService.ownerOf(claimKey)
+                    .flatMap(ingestionJobService::find)
+                    .filter(candidate -> !candidate.getState().isTerminal());
+            if (inFlight.isPresent()) {
+                log.info("Ingestion of {} already in flight as job {}, attaching to it.", repo.getRepoUrl(), inFlight.get().getId());
+                return inFlight.get();
+            }
+
+            //  the claim was stale or released in the meantime, back off briefly and try to take it over
+            try {
+                Thread.sleep(50L * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        throw new IllegalStateException("Could not claim ingestion of " + repo.getRepoUrl());
+    }
+}
@@ -0,0 +1,24 @@
+package com.repo.guard.service.repo;
+
+import com.repo.guard.model.repo.IngestionJob;
+import com.repo.guard.model.repo.IngestionJobPhase;
+import com.repo.guard.model.repo.IngestionJobState;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+public interface IngestionJobService {
+    IngestionJob create(String repoUrl);
+    void markRunning(String jobId);
+    void updatePhase(String jobId, IngestionJobPhase phase);
+    void updatePlan(String jobId, String mode, String commitSha, long filesTotal);
+    void reportProgress(String jobId, long filesProcessed, long chunksProcessed);
+    void complete(String jobId, long chunksProcessed);
+    void fail(String jobId, String error);
+    IngestionJob get(String jobId);
+    Optional<IngestionJob> find(String jobId);
+    void discard(String jobId);
+    List<IngestionJob> list(String repoUrl, IngestionJobState state, int limit);
+    CompletableFuture<IngestionJob> awaitCompletion(String jobId);
+}
@@ -0,0 +1,317 @@
+package com.repo.guard.service.repo;
+
+import com.repo.guard.exception.IngestionJobNotFoundException;
+import com.repo.guard.model.repo.IngestionJob;
+import com.repo.guard.model.repo.IngestionJobPhase;
+import com.repo.guard.model.repo.IngestionJobRepository;
+import com.repo.guard.model.repo.IngestionJobState;
+import com.repo.guard.service.lock.RedisLockService;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * persistent registry of ingestion jobs. every state change is written to ingestion_jobs so callers can follow a
+ * job through the api, and in-process waiters get their future completed as soon as the job finishes
+ */
+@Slf4j
+@Service
+public class IngestionJobServiceImpl implements IngestionJobService {
+    private static final int MAX_LIST_SIZE = 200;
+    //  pub/sub channel carrying the id of every job that reached a terminal state
+    private static final String JOB_FINISHED_CHANNEL = "guard:ingestion:finished";
+
+    private final IngestionJobRepository ingestionJobRepository;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final RedisLockService redisLockService;
+    //  minimum time between two progress writes of the same job, so large ingestions don't hammer the table
+    private final Duration progressInterval;
+
+    private final Map<String, CompletableFuture<IngestionJob>> waiters = new ConcurrentHashMap<>();
+    private final Map<String, ProgressWindow> progressWindows = new ConcurrentHashMap<>();
+
+    public IngestionJobServiceImpl(
+            IngestionJobRepository ingestionJobRepository,
+            StringRedisTemplate redisTemplate,
+            RedisMessageListenerContainer listenerContainer,
+            RedisLockService redisLockService,
+            @Value("${guard.ingestion.progress-interval:PT2S}") Duration progressInterval
+    ) {
+        this.ingestionJobRepository = ingestionJobRepository;
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.redisLockService = redisLockService;
+        this.progressInterval = progressInterval;
+    }
+
+    /**
+     * when the indexing phase of a job started and when its progress was last written
+     */
+    private static final class ProgressWindow {
+        private final long startedAt = System.currentTimeMillis();
+        private long lastWrittenAt;
+    }
+
+    /**
+     * listens for jobs finished by any instance, so waiters here are released for jobs that ran elsewhere
+     */
+    @PostConstruct
+    void subscribeToJobEvents() {
+        listenerContainer.addMessageListener(
+                (message, pattern) -> onJobFinished(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(JOB_FINISHED_CHANNEL)
+        );
+    }
+
+    /**
+     * jobs left queued or running whose single-flight claim is gone were owned by an instance that died, they can
+     * never finish, so mark them failed on startup. jobs still claimed belong to a live instance and are left alone
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void failOrphanedJobs() {
+        List<IngestionJob> active = ingestionJobRepository.findByStateIn(List.of(IngestionJobState.QUEUED, IngestionJobState.RUNNING));
+        int orphaned = 0;
+        for (IngestionJob job : active) {
+            try {
+                boolean claimed = redisLockService.ownerOf(RedisLockService.ingestionKey(job.getRepoUrl()))
+                        .filter(job.getId()::equals)
+                        .isPresent();
+                if (claimed) continue;
+            } catch (Exception err) {
+                log.warn("Cannot check the claim of ingestion job {}, leaving it as is: {}", job.getId(), err.getMessage());
+                continue;
+            }
+            fail(job.getId(), "Interrupted by an application restart");
+            orphaned++;
+        }
+        if (orphaned > 0) log.warn("Marked {} orphaned ingestion job(s) as failed.", orphaned);
+    }
+
+    /**
+     * registers a new queued job for the repository
+     *
+     * @param repoUrl
+     * @return
+     */
+    @Override
+    public IngestionJob create(String repoUrl) {
+        Instant now = Instant.now();
+        return ingestionJobRepository.save(IngestionJob.builder()
+                .id(UUID.randomUUID().toString())
+                .repoUrl(repoUrl)
+                .state(IngestionJobState.QUEUED)
+                .phase(IngestionJobPhase.QUEUED)
+                .filesProcessed(0L)
+                .chunksProcessed(0L)
+                .createdAt(now)
+                .updatedAt(now)
+                .build());
+    }
+
+    @Override
+    public void markRunning(String jobId) {
+        update(jobId, job -> {
+            job.setState(IngestionJobState.RUNNING);
+            job.setPhase(IngestionJobPhase.WAITING_FOR_LOCK);
+            job.setStartedAt(Instant.now());
+        });
+    }
+
+    @Override
+    public void updatePhase(String jobId, IngestionJobPhase phase) {
+        update(jobId, job -> job.setPhase(phase));
+    }
+
+    /**
+     * records what the job is about to index, which is what the eta is computed against
+     *
+     * @param jobId
+     * @param mode
+     * @param commitSha
+     * @param filesTotal
+     */
+    @Override
+    public void updatePlan(String jobId, String mode, String commitSha, long filesTotal) {
+        progressWindows.put(jobId, new ProgressWindow());
+        update(jobId, job -> {
+            job.setPhase(IngestionJobPhase.INDEXING);
+            job.setMode(mode);
+            job.setCommitSha(commitSha);
+            job.setFilesTotal(filesTotal);
+        });
+    }
+
+    /**
+     * updates the counters, rate and eta of a running job, writing at most once per progress interval
+     *
+     * @param jobId
+     * @param filesProcessed
+     * @param chunksProcessed
+     */
+    @Override
+    public void reportProgress(String jobId, long filesProcessed, long chunksProcessed) {
+        ProgressWindow window = progressWindows.computeIfAbsent(jobId, id -> new ProgressWindow());
+        long now = System.currentTimeMillis();
+        synchronized (window) {
+            if (now - window.lastWrittenAt < progressInterval.toMillis()) return;
+            window.lastWrittenAt = now;
+        }
+
+        double seconds = Math.max(now - window.startedAt, 1) / 1000.0;
+        update(jobId, job -> {
+            job.setFilesProcessed(filesProcessed);
+            job.setChunksProcessed(chunksProcessed);
+            job.setEmbedRate(chunksProcessed / seconds);
+            //  extrapolate from the file rate so far, only possible once the total is known
+            if (job.getFilesTotal() != null && filesProcessed > 0) {
+                long remaining = Math.max(job.getFilesTotal() - filesProcessed, 0);
+                job.setEtaSeconds(Math.round(remaining * seconds / filesProcessed));
+            }
+        });
+    }
+
+    @Override
+    public void complete(String jobId, long chunksProcessed) {
+        finish(jobId, job -> {
+            job.setState(IngestionJobState.COMPLETED);
+            job.setPhase(IngestionJobPhase.DONE);
+            job.setChunksProcessed(chunksProcessed);
+            if (job.getFilesTotal() != null) job.setFilesProcessed(job.getFilesTotal());
+            job.setEtaSeconds(0L);
+        });
+    }
+
+    @Override
+    public void fail(String jobId, String error) {
+        finish(jobId, job -> {
+            job.setState(IngestionJobState.FAILED);
+            job.setError(error);
+            job.setEtaSeconds(null);
+        });
+    }
+
+    @Override
+    public IngestionJob get(String jobId) {
+        return ingestionJobRepository.findById(jobId)
+                .orElseThrow(() -> new IngestionJobNotFoundException("No ingestion job with id " + jobId));
+    }
+
+    @Override
+    public Optional<IngestionJob> find(String jobId) {
+        return ingestionJobRepository.findById(jobId);
+    }
+
+    /**
+     * removes a job that was registered but never started, e.g. because another job was already in flight
+     *
+     * @param jobId
+     */
+    @Override
+    public void discard(String jobId) {
+        ingestionJobRepository.deleteById(jobId);
+    }
+
+    /**
+     * lists the most recent jobs, optionally narrowed down to one repository and/or state
+     *
+     * @param repoUrl
+     * @param state
+     * @param limit
+     * @return
+     */
+    @Override
+    public List<IngestionJob> list(String repoUrl, IngestionJobState state, int limit) {
+        Pageable page = PageRequest.of(0, Math.min(Math.max(limit, 1), MAX_LIST_SIZE));
+        if (repoUrl != null && state != null) return ingestionJobRepository.findByRepoUrlAndStateOrderByCreatedAtDesc(repoUrl, state, page);
+        if (repoUrl != null) return ingestionJobRepository.findByRepoUrlOrderByCreatedAtDesc(repoUrl, page);
+        if (state != null) return ingestionJobRepository.findByStateOrderByCreatedAtDesc(state, page);
+        return ingestionJobRepository.findAllByOrderByCreatedAtDesc(page);
+    }
+
+    /**
+     * returns a future completed with the final job once it has finished, without polling the database. every
+     * caller gets its own copy, so a caller applying a timeout to it can't complete it for the other waiters
+     *
+     * @param jobId
+     * @return
+     */
+    @Override
+    public CompletableFuture<IngestionJob> awaitCompletion(String jobId) {
+        CompletableFuture<IngestionJob> future = waiters.computeIfAbsent(jobId, id -> new CompletableFuture<>());
+
+        //  the job may have finished before the waiter was registered, finish() only completes waiters it can see
+        IngestionJob job = get(jobId);
+        if (job.getState().isTerminal()) {
+            waiters.remove(jobId, future);
+            future.complete(job);
+        }
+        return future.copy();
+    }
+
+    private void finish(String jobId, Consumer<IngestionJob> change) {
+        progressWindows.remove(jobId);
+        IngestionJob job = update(jobId, candidate -> {
+            change.accept(candidate);
+            candidate.setFinishedAt(Instant.now());
+        });
+
+        //  the state is persisted before waiters are released, so they always observe the final row
+        CompletableFuture<IngestionJob> future = waiters.remove(jobId);
+        if (future != null) {
+            if (job != null) future.complete(job);
+            else future.completeExceptionally(new IngestionJobNotFoundException("No ingestion job with id " + jobId));
+        }
+
+        //  let the other instances release their waiters of this job too
+        try {
+            redisTemplate.convertAndSend(JOB_FINISHED_CHANNEL, jobId);
+        } catch (Exception err) {
+            log.warn("Failed to publish completion of ingestion job {}: {}", jobId, err.getMessage());
+        }
+    }
+
+    /**
+     * completes the local waiters of a job another instance has finished
+     *
+     * @param jobId
+     */
+    private void onJobFinished(String jobId) {
+        CompletableFuture<IngestionJob> future = waiters.remove(jobId);
+        if (future == null) return;
+        ingestionJobRepository.findById(jobId).ifPresentOrElse(
+                future::complete,
+                () -> future.completeExceptionally(new IngestionJobNotFoundException("No ingestion job with id " + jobId))
+        );
+    }
+
+    private IngestionJob update(String jobId, Consumer<IngestionJob> change) {
+        return ingestionJobRepository.findById(jobId).map(job -> {
+            change.accept(job);
+            job.setUpdatedAt(Instant.now());
+            return ingestionJobRepository.save(job);
+        }).orElseGet(() -> {
+            log.warn("Ingestion job {} is not registered, skipping status update.", jobId);
+            return null;
+        });
+    }
+}
@@ -0,0 +1,257 @@
+package com.repo.guard.service.repo;
+
+import com.repo.guard.model.repo.CodeChunk;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * staged ingestion pipeline (file walk -> split -> embed -> persist) where every stage runs on its own thread
+ * and hands work to the next one through a bounded queue, so the amount of text, chunks and vectors held on the
+ * heap stays flat no matter how large the repository is
+ */
+@Slf4j
+class IngestionPipeline {
+    //  marker objects pushed down the queues to tell the next stage that its upstream has finished
+    private static final SourceFile END_OF_FILES = new SourceFile(null, null);
+    private static final List<CodeChunk> END_OF_BATCHES = new ArrayList<>(0);
+
+    private final String jobId;
+    private final int flushSize;
+    private final BlockingQueue<SourceFile> fileQueue;
+    private final BlockingQueue<List<CodeChunk>> embedQueue;
+    private final BlockingQueue<List<CodeChunk>> persistQueue;
+
+    //  first error raised by any stage, used to make every other stage stop early instead of blocking forever
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final AtomicLong filesRead = new AtomicLong();
+    private final AtomicLong chunksPersisted = new AtomicLong();
+    private ProgressListener progressListener = (filesRead, chunksPersisted) -> {
+    };
+
+    /**
+     * a single file read by the walk stage, with its path relative to the repository root
+     *
+     * @param path
+     * @param content
+     */
+    record SourceFile(String path, String content) {
+    }
+
+    /**
+     * first stage of the pipeline, pushes every file that should be ingested into the given sink
+     */
+    @FunctionalInterface
+    interface FileSource {
+        void walk(Consumer<SourceFile> sink) throws Exception;
+    }
+
+    /**
+     * notified on the persist thread after every batch that has been written
+     */
+    @FunctionalInterface
+    interface ProgressListener {
+        void onProgress(long filesRead, long chunksPersisted);
+    }
+
+    IngestionPipeline(String jobId, int flushSize, int queueCapacity) {
+        this.jobId = jobId;
+        this.flushSize = Math.max(1, flushSize);
+        this.fileQueue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.embedQueue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.persistQueue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+    }
+
+    IngestionPipeline onProgress(ProgressListener listener) {
+        this.progressListener = listener;
+        return this;
+    }
+
+    /**
+     * runs all stages to completion and returns the number of chunks handed to the persist stage
+     *
+     * @param source    walks the repository and emits files
+     * @param splitter  turns one file into its chunks
+     * @param embedder  fills in the embedding of every chunk in a batch
+     * @param persister writes one embedded batch
+     * @return
+     * @throws Exception
+     */
+    long run(
+            FileSource source,
+            Function<SourceFile, List<CodeChunk>> splitter,
+            Consumer<List<CodeChunk>> embedder,
+            Consumer<List<CodeChunk>> persister
+    ) throws Exception {
+        AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService stages = Executors.newFixedThreadPool(3, runnable -> {
+            Thread thread = new Thread(runnable, "ingest-" + jobId + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<Future<?>> futures = List.of(
+                    stages.submit(() -> guard(this::runSplitStage, splitter)),
+                    stages.submit(() -> guard(this::runEmbedStage, embedder)),
+                    stages.submit(() -> guard(this::runPersistStage, persister))
+            );
+
+            //  the walk stage runs on the calling thread and blocks whenever the split stage falls behind
+            try {
+                source.walk(file -> {
+                    //  stop walking the repository as soon as a downstream stage gave up
+                    if (failure.get() != null) throw new IllegalStateException("Ingestion pipeline aborted");
+                    filesRead.incrementAndGet();
+                    offer(fileQueue, file);
+                });
+            } catch (Throwable err) {
+                fail(err);
+            } finally {
+                offer(fileQueue, END_OF_FILES);
+            }
+
+            for (Future<?> future : futures) future.get();
+        } finally {
+            stages.shutdownNow();
+        }
+
+        //  surface the first failure of any stage to the caller
+        Throwable err = failure.get();
+        if (err instanceof Exception exception) throw exception;
+        if (err != null) throw new IllegalStateException("Ingestion pipeline failed", err);
+
+        log.info("Job {}: pipeline drained {} file(s) into {} chunk(s).", jobId, filesRead.get(), chunksPersisted.get());
+        return chunksPersisted.get();
+    }
+
+    /**
+     * splits every incoming file and groups the resulting chunks into batches of flush size
+     *
+     * @param splitter
+     */
+    private void runSplitStage(Function<SourceFile, List<CodeChunk>> splitter) {
+        List<CodeChunk> batch = new ArrayList<>(flushSize);
+        try {
+            SourceFile file;
+            while ((file = take(fileQueue)) != null && file != END_OF_FILES) {
+                for (CodeChunk chunk : splitter.apply(file)) {
+                    batch.add(chunk);
+                    if (batch.size() >= flushSize) {
+                        offer(embedQueue, batch);
+                        batch = new ArrayList<>(flushSize);
+                    }
+                }
+            }
+            //  flush whatever is left over once the walk stage is done
+            if (!batch.isEmpty()) offer(embedQueue, batch);
+        } finally {
+            offer(embedQueue, END_OF_BATCHES);
+        }
+    }
+
+    /**
+     * embeds one batch at a time and forwards it to the persist stage
+     *
+     * @param embedder
+     */
+    private void runEmbedStage(Consumer<List<CodeChunk>> embedder) {
+        try {
+            List<CodeChunk> batch;
+            while ((batch = take(embedQueue)) != null && batch != END_OF_BATCHES) {
+                embedder.accept(batch);
+                offer(persistQueue, batch);
+            }
+        } finally {
+            offer(persistQueue, END_OF_BATCHES);
+        }
+    }
+
+    /**
+     * writes every embedded batch as soon as it arrives so embedding and db writes overlap
+     *
+     * @param persister
+     */
+    private void runPersistStage(Consumer<List<CodeChunk>> persister) {
+        List<CodeChunk> batch;
+        while ((batch = take(persistQueue)) != null && batch != END_OF_BATCHES) {
+            persister.accept(batch);
+            long total = chunksPersisted.addAndGet(batch.size());
+            log.info("Job {}: persisted {} chunk(s) so far ({} file(s) read).", jobId, total, filesRead.get());
+            progressListener.onProgress(filesRead.get(), total);
+        }
+        //  batches persisted before an upstream failure stay in the staged generation, failing the run here makes the
+        //  caller discard that generation instead of activating or merging it
+        if (failure.get() != null) throw new IllegalStateException("Aborting persist stage after upstream failure", failure.get());
+    }
+
+    /**
+     * runs a stage and records its failure so the remaining stages can stop
+     *
+     * @param stage
+     * @param argument
+     * @param <T>
+     */
+    private <T> void guard(Consumer<T> stage, T argument) {
+        try {
+            stage.accept(argument);
+        } catch (Throwable err) {
+            fail(err);
+        }
+    }
+
+    private void fail(Throwable err) {
+        if (failure.compareAndSet(null, err)) log.error("Job {}: ingestion pipeline stage failed, aborting.", jobId, err);
+    }
+
+    /**
+     * blocks until the queue has room, giving up once another stage has failed
+     *
+     * @param queue
+     * @param item
+     * @param <T>
+     */
+    private <T> void offer(BlockingQueue<T> queue, T item) {
+        try {
+            while (!queue.offer(item, 200, TimeUnit.MILLISECONDS)) {
+                if (failure.get() != null) return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e);
+        }
+    }
+
+    /**
+     * blocks until the queue has an item, returning null once another stage has failed
+     *
+     * @param queue
+     * @param <T>
+     * @return
+     */
+    private <T> T take(BlockingQueue<T> queue) {
+        try {
+            while (true) {
+                T item = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (item != null) return item;
+                if (failure.get() != null) return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e);
+            return null;
+        }
+    }
+}
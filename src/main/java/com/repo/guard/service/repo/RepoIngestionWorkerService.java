@@ -3,10 +3,12 @@ package com.repo.guard.service.repo;
 import com.repo.guard.dto.RepoIngestionRequestDto;
 
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public interface RepoIngestionWorkerService {
     void ingestRepositoryAsync(RepoIngestionRequestDto repo, String jobId);
-    void syncDeltaAsync(
+    boolean isIndexed(String repoUrl);
+    CompletableFuture<Void> syncDeltaAsync(
             Integer projectId,
             String repoUrl,
             String gitlabUrl,
@@ -2,74 +2,292 @@ package com.repo.guard.service.repo;
 
 import com.repo.guard.dto.RepoIngestionRequestDto;
 import com.repo.guard.model.repo.CodeChunk;
-import com.repo.guard.model.repo.CodeChunkRepository;
+import com.repo.guard.model.repo.CodeChunkBulkWriter;
+import com.repo.guard.model.repo.IngestionJobPhase;
+import com.repo.guard.model.repo.RepoModel;
+import com.repo.guard.model.repo.RepoModelRepository;
+import com.repo.guard.service.lock.RedisLock;
+import com.repo.guard.service.lock.RedisLockService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.io.DisabledOutputStream;
 import org.springframework.ai.document.Document;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.support.TransactionTemplate;
-import org.springframework.util.FileSystemUtils;
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Stream;
-import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class RepoIngestionWorkerServiceImpl implements RepoIngestionWorkerService {
     private final GitValidationService gitValidationService;
-    private final CodeChunkRepository codeChunkRepository;
-    private final TransactionTemplate transactionTemplate;
+    private final RepoModelRepository repoModelRepository;
     //  inject our new dedicated embedding facade instead of managing tokens here
     private final VectorEmbeddingService vectorEmbeddingService;
+    //  cached bare mirrors, so jobs only fetch new objects instead of cloning the repo again
+    private final RepoMirrorService repoMirrorService;
+    //  COPY based writer that streams rows into code_chunks without creating managed entities
+    private final CodeChunkBulkWriter codeChunkBulkWriter;
+    //  allocates, flips and purges the generations of a repository's vectors
+    private final ChunkGenerationService chunkGenerationService;
+    //  persisted job status and progress, and the waiters blocked on a job
+    private final IngestionJobService ingestionJobService;
+    //  redis locks that serialize writes per repository across instances
+    private final RedisLockService redisLockService;
+    //  hnsw index on the embeddings, (re)built concurrently after bulk loads
+    private final VectorIndexService vectorIndexService;
+    //  defers jobs whose repository is locked by another writer instead of parking an ingestion thread on the lock
+    private final TaskScheduler taskScheduler;
+    //  our own async proxy, so a deferred job goes back through the bounded ingestion executor
+    private final ObjectProvider<RepoIngestionWorkerService> self;
+
+    //  number of chunks embedded and written together, which bounds how many vectors are in memory per stage
+    @Value("${guard.ingestion.flush-size:256}")
+    private int flushSize;
+
+    //  capacity of each queue between pipeline stages
+    @Value("${guard.ingestion.queue-capacity:8}")
+    private int queueCapacity;
+
+    //  how long an ingestion or delta sync waits for another writer of the same repository to finish
+    @Value("${guard.lock.write-wait-timeout:PT30M}")
+    private Duration writeLockTimeout;
+
+    //  how long one ingestion attempt holds its thread waiting for the write lock before it is deferred
+    @Value("${guard.ingestion.lock-attempt:PT5S}")
+    private Duration writeLockAttempt;
+
+    //  delay before a deferred ingestion tries to take the write lock again
+    @Value("${guard.ingestion.lock-retry-delay:PT15S}")
+    private Duration writeLockRetryDelay;
 
     /**
-     * ingests a repository asynchronously
+     * ingests a repository asynchronously, reporting its state and progress to the job registry
      *
      * @param repo
      * @param jobId
      */
-    @Async
+    @Async("ingestionExecutor")
     @Override
     public void ingestRepositoryAsync(RepoIngestionRequestDto repo, String jobId) {
         log.info("Starting Async Job: {}", jobId);
-        //  validate the repository before proceeding with cloning and ingestion
-        if (!validateRepository(repo, jobId)) return;
-
-        //  create a unique temp directory for this job to clone the repo into
-        File tempDir = new File(System.getProperty("java.io.tmpdir"), "guard-app/" + jobId);
-
+        ingestionJobService.markRunning(jobId);
+        boolean deferred = false;
         try {
-            //  clone the repository to the temp directory
-            cloneRepository(repo, tempDir);
-            //  process the cloned files to extract code chunks
-            List<CodeChunk> chunksToInsert = processFiles(tempDir, repo);
-            //  delegate the heavy lifting of mathematical embeddings to the dedicated service
-            vectorEmbeddingService.generateEmbeddingsForChunks(chunksToInsert);
-            //  perform a batch insert of all the processed chunks with their embeddings into the db
-            saveToDatabase(repo, chunksToInsert);
-
-            //  log completion of the job with the total number of chunks inserted into the database
-            log.info("Job {} COMPLETED. Inserted {} vectors.", jobId, chunksToInsert.size());
+            //  wait briefly for any delta sync of the repo to finish, the lock keeps deltas queued behind this job in turn
+            Optional<RedisLock> writeLock = redisLockService.acquire(RedisLockService.writeKey(repo.getRepoUrl()), jobId, writeLockAttempt);
+            if (writeLock.isEmpty()) {
+                deferred = deferBehindWriter(repo, jobId);
+                return;
+            }
+            try (RedisLock lock = writeLock.get()) {
+                ingestionJobService.updatePhase(jobId, IngestionJobPhase.VALIDATING);
+                long inserted = runIngestion(repo, jobId);
+                ingestionJobService.complete(jobId, inserted);
+            }
         } catch (Exception err) {
-            //  log any exceptions that occur during the cloning or db insertion steps
-            log.error("Job Failed", err);
+            //  log any exceptions that occur during the fetch or db insertion steps
+            log.error("Job {} FAILED", jobId, err);
+            ingestionJobService.fail(jobId, err.getMessage() != null ? err.getMessage() : err.getClass().getSimpleName());
         } finally {
-            //  ensure that the temporary directory used for cloning the repo is deleted after processing
-            FileSystemUtils.deleteRecursively(tempDir);
+            //  release the single-flight claim taken when the job was submitted, the next request starts a new job.
+            //  a deferred job keeps it, so requests arriving in the meantime still attach to this job
+            if (!deferred) redisLockService.release(RedisLockService.ingestionKey(repo.getRepoUrl()), jobId);
+        }
+    }
+
+    /**
+     * schedules the job to try the write lock again later, freeing the ingestion thread in the meantime, until it
+     * has waited the full write-wait-timeout since it was created
+     *
+     * @param repo
+     * @param jobId
+     * @return true once the job is scheduled again
+     */
+    private boolean deferBehindWriter(RepoIngestionRequestDto repo, String jobId) {
+        Instant deadline = ingestionJobService.get(jobId).getCreatedAt().plus(writeLockTimeout);
+        if (Instant.now().plus(writeLockRetryDelay).isAfter(deadline)) {
+            throw new IllegalStateException("Timed out after " + writeLockTimeout + " waiting for the write lock of " + repo.getRepoUrl());
         }
+
+        log.info("Job {}: {} is locked by another writer, retrying in {}.", jobId, repo.getRepoUrl(), writeLockRetryDelay);
+        taskScheduler.schedule(() -> {
+            try {
+                self.getObject().ingestRepositoryAsync(repo, jobId);
+            } catch (TaskRejectedException err) {
+                log.error("Job {} FAILED, ingestion queue is full", jobId);
+                ingestionJobService.fail(jobId, "Ingestion queue is full");
+                redisLockService.release(RedisLockService.ingestionKey(repo.getRepoUrl()), jobId);
+            }
+        }, Instant.now().plus(writeLockRetryDelay));
+        return true;
     }
 
     /**
-     * performs a delta sync by cloning only the target branch, reading the changed files,
+     * waits for the lock that serializes all writes to the repository's vectors
+     *
+     * @param repoUrl
+     * @param token
+     * @return
+     * @throws InterruptedException
+     */
+    private RedisLock acquireWriteLock(String repoUrl, String token) throws InterruptedException {
+        return redisLockService.acquire(RedisLockService.writeKey(repoUrl), token, writeLockTimeout)
+                .orElseThrow(() -> new IllegalStateException("Timed out after " + writeLockTimeout + " waiting for the write lock of " + repoUrl));
+    }
+
+    /**
+     * checks whether the repository has a completed index that searches can read from
+     *
+     * @param repoUrl
+     * @return
+     */
+    @Override
+    public boolean isIndexed(String repoUrl) {
+        return repoModelRepository.findByRepoUrl(repoUrl)
+                .map(RepoModel::getIndexedCommitSha)
+                .isPresent();
+    }
+
+    /**
+     * runs one ingestion job and returns the number of chunks written
+     *
+     * @param repo
+     * @param jobId
+     * @return
+     * @throws Exception
+     */
+    private long runIngestion(RepoIngestionRequestDto repo, String jobId) throws Exception {
+        //  validate the repository before proceeding with cloning and ingestion
+        if (!validateRepository(repo, jobId)) {
+            throw new IllegalStateException("Repository not found or inaccessible: " + repo.getRepoUrl());
+        }
+
+        //  fetch into the cached bare mirror instead of cloning the whole history again, and read the files straight
+        //  from its object database so no working tree is ever checked out
+        ingestionJobService.updatePhase(jobId, IngestionJobPhase.FETCHING);
+        try (RepoMirror mirror = repoMirrorService.open(repo.getRepoUrl(), repo.getRepoUsername(), repo.getRepoAccessToken());
+             RevWalk revWalk = new RevWalk(mirror.getRepository())) {
+            Repository repository = mirror.getRepository();
+            //  resolve the default branch head of the mirror, which becomes the new indexed commit
+            ObjectId head = repository.resolve(Constants.HEAD);
+            if (head == null) {
+                log.warn("Job {} COMPLETED. Repository {} has no commits to ingest.", jobId, repo.getRepoUrl());
+                return 0;
+            }
+            RevCommit headCommit = revWalk.parseCommit(head);
+            Optional<RepoModel> indexedRepo = repoModelRepository.findByRepoUrl(repo.getRepoUrl());
+
+            //  diff against the previously indexed commit unless a full rebuild was explicitly requested
+            ingestionJobService.updatePhase(jobId, IngestionJobPhase.DIFFING);
+            ChangeSet changes = Boolean.TRUE.equals(repo.getFullRebuild()) ? null : indexedRepo
+                    .map(RepoModel::getIndexedCommitSha)
+                    .map(sha -> diffSinceIndexedCommit(repository, sha, headCommit, jobId))
+                    .orElse(null);
+
+            if (changes != null && changes.isEmpty()) {
+                log.info("Job {} COMPLETED. Repository already indexed at {}, nothing changed.", jobId, headCommit.name());
+                return 0;
+            }
+
+            //  warm up the embedding model once before the embed stage starts pulling batches
+            vectorEmbeddingService.warmUpModel();
+            long startedAt = System.currentTimeMillis();
+
+            //  the new vectors are written under a fresh generation that searches can't see yet, each batch
+            //  committed on its own, so the live index keeps serving reviews until the pointer is flipped
+            String repoUrl = repo.getRepoUrl();
+            Integer repoId = chunkGenerationService.ensureRepository(repoUrl, Repository.shortenRefName(repository.getFullBranch())).getId();
+            long generation = chunkGenerationService.allocateGeneration();
+
+            //  stream the files through the bounded walk -> split -> embed -> persist pipeline so only a few
+            //  batches of chunks are ever held in memory, and embedding overlaps with the database writes
+            IngestionPipeline pipeline = new IngestionPipeline(jobId, flushSize, queueCapacity)
+                    .onProgress((filesRead, chunksPersisted) -> ingestionJobService.reportProgress(jobId, filesRead, chunksPersisted));
+            long inserted;
+            try {
+                if (changes == null) {
+                    log.info("Job {}: running full ingestion at commit {} into generation {}.", jobId, headCommit.name(), generation);
+                    ingestionJobService.updatePlan(jobId, "FULL", headCommit.name(), countFiles(repository, headCommit));
+                    inserted = pipeline.run(
+                            sink -> walkFiles(repository, headCommit, sink),
+                            this::splitFile,
+                            vectorEmbeddingService::generateEmbeddingsForChunks,
+                            batch -> persistBatch(batch, repoId, generation)
+                    );
+                } else {
+                    log.info("Job {}: incremental ingestion at commit {}, {} path(s) to update and {} to delete, staged as generation {}.",
+                            jobId, headCommit.name(), changes.toUpdate().size(), changes.toDelete().size(), generation);
+                    ingestionJobService.updatePlan(jobId, "INCREMENTAL", headCommit.name(), changes.toUpdate().size());
+                    inserted = pipeline.run(
+                            sink -> readPaths(repository, headCommit, changes.toUpdate(), sink),
+                            this::splitFile,
+                            vectorEmbeddingService::generateEmbeddingsForChunks,
+                            batch -> persistBatch(batch, repoId, generation)
+                    );
+                }
+            } catch (Exception err) {
+                //  the partial generation was never visible, just clean it up in the background
+                chunkGenerationService.discardGeneration(repoId, generation);
+                throw err;
+            }
+
+            ingestionJobService.updatePhase(jobId, IngestionJobPhase.ACTIVATING);
+            if (changes == null) {
+                //  swap the whole index in one short update, then drop the previous generation in batches
+                if (chunkGenerationService.activate(repoUrl, generation, headCommit, inserted)) {
+                    chunkGenerationService.purgeInactiveGenerations(repoId);
+                    vectorIndexService.ensureIndex();
+                } else {
+                    chunkGenerationService.discardGeneration(repoId, generation);
+                }
+            } else if (chunkGenerationService.mergeStaged(repoUrl, generation, changes.allPaths(), headCommit)) {
+                //  also clears staged generations left behind by earlier runs whose discard never ran
+                chunkGenerationService.purgeInactiveGenerations(repoId);
+            } else {
+                log.warn("Job {}: a newer full ingestion of {} took over, discarding the staged changes.", jobId, repoUrl);
+                chunkGenerationService.discardGeneration(repoId, generation);
+            }
+
+            //  log completion of the job with the total number of chunks inserted into the database and the overall rate
+            double seconds = Math.max(System.currentTimeMillis() - startedAt, 1) / 1000.0;
+            log.info("Job {} COMPLETED. Inserted {} vectors in {}s ({} vectors/s).", jobId, inserted, Math.round(seconds), Math.round(inserted / seconds));
+            return inserted;
+        }
+    }
+
+    /**
+     * performs a delta sync by fetching the target branch into the repository mirror, reading the changed files,
      * generating embeddings, and updating the corresponding vectors in the database
      *
      * @param projectId
@@ -79,9 +297,10 @@ public class RepoIngestionWorkerServiceImpl implements RepoIngestionWorkerServic
      * @param branch
      * @param filesToUpdate
      * @param filesToDelete
+     * @return completes once the sync finished, exceptionally when it failed
      */
-    @Async
-    public void syncDeltaAsync(
+    @Async("deltaSyncExecutor")
+    public CompletableFuture<Void> syncDeltaAsync(
             Integer projectId,
             String repoUrl,
             String gitlabUrl,
@@ -92,97 +311,76 @@ public class RepoIngestionWorkerServiceImpl implements RepoIngestionWorkerServic
     ) {
         log.info("Starting Delta Sync for {} update(s) and {} deletion(s)...", filesToUpdate.size(), filesToDelete.size());
 
-        //  delete old vectors only for the specific modified and deleted files
-        transactionTemplate.execute(status -> {
-            for (String file : filesToDelete) {
-                codeChunkRepository.deleteByRepoUrlAndFilePathStartingWith(repoUrl, file);
-            }
-            for (String file : filesToUpdate) {
-                codeChunkRepository.deleteByRepoUrlAndFilePathStartingWith(repoUrl, file);
-            }
-            return null;
-        });
-
-        if (filesToUpdate.isEmpty()) return;
+        //  serialize behind any ingestion or other delta sync of the same repository, on every instance
+        try (RedisLock writeLock = acquireWriteLock(repoUrl, "delta:" + UUID.randomUUID())) {
+            syncDelta(repoUrl, gitlabToken, branch, filesToUpdate, filesToDelete);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Delta Sync: interrupted while waiting for the write lock of {}", repoUrl);
+            return CompletableFuture.failedFuture(e);
+        } catch (Exception e) {
+            log.error("Delta Sync: failed for {}", repoUrl, e);
+            //  fails the requests the sync covered, so their queue messages are retried
+            return CompletableFuture.failedFuture(e);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
 
-        //  shallow clone the target branch via JGit and read only the changed files
-        File tempDir = new File(System.getProperty("java.io.tmpdir"), "guard-delta/" + System.currentTimeMillis());
+    /**
+     * fetches the branch, embeds the changed files and swaps their vectors, while holding the repo's write lock
+     *
+     * @param repoUrl
+     * @param gitlabToken
+     * @param branch
+     * @param filesToUpdate
+     * @param filesToDelete
+     * @throws Exception when the branch can't be fetched, read, embedded or written, so the sync is retried
+     */
+    private void syncDelta(String repoUrl, String gitlabToken, String branch, Set<String> filesToUpdate, Set<String> filesToDelete) throws Exception {
+        //  the old vectors of every touched file are replaced together with the new ones in a single transaction
+        Set<String> touchedPaths = new LinkedHashSet<>(filesToDelete);
+        touchedPaths.addAll(filesToUpdate);
+
+        if (filesToUpdate.isEmpty()) {
+            replaceInActiveGeneration(repoUrl, touchedPaths, new ArrayList<>());
+            return;
+        }
 
-        try {
-            //  create the credentials provider using the token for JGit authentication
-            UsernamePasswordCredentialsProvider credentialsProvider =
-                    new UsernamePasswordCredentialsProvider("oauth2", gitlabToken);
-
-            //  if the temp directory already exists, delete it first to avoid conflicts
-            if (tempDir.exists()) FileSystemUtils.deleteRecursively(tempDir);
-
-            log.info("Cloning branch '{}' for Delta Sync...", branch);
-
-            //  shallow clone (depth=1) of only the target branch to minimize data transfer
-            Git.cloneRepository()
-                    .setURI(repoUrl)
-                    .setDirectory(tempDir)
-                    .setBranchesToClone(List.of("refs/heads/" + branch))
-                    .setBranch("refs/heads/" + branch)
-                    .setDepth(1)
-                    .setCredentialsProvider(credentialsProvider)
-                    .call()
-                    .close();
+        //  fetch the target branch into the cached mirror and read only the changed files from it
+        try (RepoMirror mirror = repoMirrorService.open(repoUrl, "oauth2", gitlabToken);
+             RevWalk revWalk = new RevWalk(mirror.getRepository())) {
+            Repository repository = mirror.getRepository();
+            ObjectId branchHead = repository.resolve(Constants.R_HEADS + branch);
+            if (branchHead == null) {
+                throw new IllegalStateException("Branch '" + branch + "' not found in mirror of " + repoUrl);
+            }
+            RevCommit commit = revWalk.parseCommit(branchHead);
 
+            //  read and split only the files that were changed in the merge request, the same file types a full or
+            //  incremental ingestion indexes
             List<CodeChunk> newChunks = new ArrayList<>();
+            readPaths(repository, commit, filesToUpdate, file -> newChunks.addAll(splitFile(file)));
 
-            //  read, split, and embed only the files that were changed in the merge request
-            for (String filePath : filesToUpdate) {
-                if (filePath.endsWith(".png") || filePath.endsWith(".jpg") || filePath.endsWith(".jar") || filePath.endsWith(".class")) continue;
-
-                try {
-                    //  resolve the file path within the cloned temp directory
-                    Path localFile = tempDir.toPath().resolve(filePath);
-
-                    //  if the file doesn't exist in the clone skip it but log a warning
-                    if (!Files.exists(localFile)) {
-                        log.warn("Delta Sync: File not found in clone: {}", filePath);
-                        continue;
-                    }
+            //  embed the chunks of every changed file together so they share batched provider requests
+            vectorEmbeddingService.generateEmbeddingsForChunks(newChunks);
 
-                    //  read the file content as a string
-                    String content = Files.readString(localFile);
-                    if (content == null || content.isBlank()) continue;
-
-                    //  delegate the chunking logic to the external embedding service
-                    List<Document> splitDocs = vectorEmbeddingService.splitText(content);
-
-                    //  process each split part and prepare it for db insertion
-                    for (int i = 0; i < splitDocs.size(); i++) {
-                        String displayPath = filePath;
-                        //  append a part indicator to the display path to differentiate them in the database
-                        if (splitDocs.size() > 1) displayPath += " (Part " + (i + 1) + "/" + splitDocs.size() + ")";
-
-                        CodeChunk chunk = CodeChunk.builder()
-                                .repoUrl(repoUrl)
-                                .filePath(displayPath)
-                                .content(splitDocs.get(i).getText())
-                                .build();
-
-                        //  delegate embedding generation to the facade
-                        chunk.setEmbedding(vectorEmbeddingService.generateEmbeddingWithRetry(chunk.getContent(), i, 3));
-                        newChunks.add(chunk);
-                    }
-                } catch (Exception e) {
-                    log.error("Delta Sync: Failed to process file: " + filePath, e);
-                }
-            }
+            //  embed first and only then swap old for new vectors, so the files never disappear from searches
+            replaceInActiveGeneration(repoUrl, touchedPaths, newChunks);
+        }
+    }
 
-            //  save the new vectors for only the changed files to the database
-            if (!newChunks.isEmpty()) {
-                codeChunkRepository.saveAll(newChunks);
-                log.info("Delta Sync complete! Inserted {} new vectors.", newChunks.size());
-            }
-        } catch (Exception e) {
-            log.error("Delta Sync: Failed to clone repository for delta update", e);
-        } finally {
-            //  always clean up the temp directory to free disk space
-            FileSystemUtils.deleteRecursively(tempDir);
+    /**
+     * swaps the vectors of the touched paths in the repository's active generation
+     *
+     * @param repoUrl
+     * @param paths
+     * @param newChunks
+     */
+    private void replaceInActiveGeneration(String repoUrl, Set<String> paths, List<CodeChunk> newChunks) {
+        if (chunkGenerationService.replacePaths(repoUrl, paths, newChunks)) {
+            log.info("Delta Sync complete! Replaced {} path(s) with {} new vectors.", paths.size(), newChunks.size());
+        } else {
+            log.warn("Delta Sync skipped: {} has not been ingested yet.", repoUrl);
         }
     }
 
@@ -208,124 +406,286 @@ public class RepoIngestionWorkerServiceImpl implements RepoIngestionWorkerServic
         }
 
         //  if repo is valid, proceed with cloning and ingestion
-        log.info("Repository found! Proceeding with clone and vector ingestion...");
+        log.info("Repository found! Proceeding with fetch and vector ingestion...");
         return true;
     }
 
     /**
-     * clones the repository into a specified temporary directory using JGit
+     * diffs the tree of the previously indexed commit against the new head, returning null when the old commit
+     * is no longer reachable (e.g. after a force push) so the caller falls back to a full rebuild
      *
-     * @param repo
-     * @param tempDir
-     * @throws Exception
+     * @param repository
+     * @param indexedSha
+     * @param headCommit
+     * @param jobId
+     * @return
      */
-    private void cloneRepository(RepoIngestionRequestDto repo, File tempDir) throws Exception {
-        log.info("Cloning repo to: {}", tempDir.getAbsolutePath());
-
-        //  if the temp directory already exists, delete it first to avoid conflicts
-        if (tempDir.exists()) FileSystemUtils.deleteRecursively(tempDir);
-
-        //  create the credentials provider using the token
-        UsernamePasswordCredentialsProvider credentialsProvider =
-                new UsernamePasswordCredentialsProvider(
-                        repo.getRepoUsername() != null ? repo.getRepoUsername() : "oauth2",
-                        repo.getRepoAccessToken()
-                );
-
-        //  clone the repository using JGit with authentication
-        Git.cloneRepository()
-                .setURI(repo.getRepoUrl())
-                .setDirectory(tempDir)
-                .setCredentialsProvider(credentialsProvider)
-                .call();
+    private ChangeSet diffSinceIndexedCommit(Repository repository, String indexedSha, RevCommit headCommit, String jobId) {
+        try (RevWalk revWalk = new RevWalk(repository);
+             DiffFormatter diffFormatter = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
+            RevCommit oldCommit = revWalk.parseCommit(ObjectId.fromString(indexedSha));
+
+            diffFormatter.setRepository(repository);
+            //  detect renames so a moved file is reported as one delete and one add instead of unrelated changes
+            diffFormatter.setDetectRenames(true);
+
+            Set<String> toUpdate = new LinkedHashSet<>();
+            Set<String> toDelete = new LinkedHashSet<>();
+            for (DiffEntry entry : diffFormatter.scan(oldCommit.getTree(), headCommit.getTree())) {
+                switch (entry.getChangeType()) {
+                    case ADD, COPY, MODIFY -> toUpdate.add(entry.getNewPath());
+                    case DELETE -> toDelete.add(entry.getOldPath());
+                    case RENAME -> {
+                        toDelete.add(entry.getOldPath());
+                        toUpdate.add(entry.getNewPath());
+                    }
+                }
+            }
+
+            //  only files the ingestion actually indexes are worth re-embedding or deleting
+            toUpdate.removeIf(path -> !isSupportedFile(path));
+            toDelete.removeIf(path -> !isSupportedFile(path));
+            return new ChangeSet(toUpdate, toDelete);
+        } catch (Exception err) {
+            log.warn("Job {}: cannot diff against indexed commit {}, falling back to a full rebuild: {}", jobId, indexedSha, err.getMessage());
+            return null;
+        }
     }
 
     /**
-     * processes the cloned repository files by walking through all files in the temp directory
+     * checks whether a file path has one of the extensions that are indexed, shared by the full, incremental and
+     * delta paths so they all index the same files
      *
-     * @param tempDir
-     * @param repo
+     * @param path
      * @return
      */
-    private List<CodeChunk> processFiles(File tempDir, RepoIngestionRequestDto repo) {
-        //  holds all the code chunks that will be saved to the db after processing
-        List<CodeChunk> chunksToInsert = new ArrayList<>();
-
-        //  walk through all files in the cloned repo including subdirectories
-        try (Stream<Path> paths = Files.walk(tempDir.toPath())) {
-            //  filter to only include regular files with specific extensions
-            paths.filter(Files::isRegularFile)
-                    .filter(path -> {
-                        String p = path.toString();
-                        return p.endsWith(".java")
-                                || p.endsWith(".kt")
-                                || p.endsWith(".md")
-                                || p.endsWith(".gradle.kts");
-                    })
-                    //  for each relevant file, process it to extract code chunks
-                    .forEach(path -> processSingleFile(path, tempDir, repo, chunksToInsert));
+    private boolean isSupportedFile(String path) {
+        return path.endsWith(".java")
+                || path.endsWith(".kt")
+                || path.endsWith(".md")
+                || path.endsWith(".gradle.kts");
+    }
+
+    /**
+     * counts the supported files of a commit without reading any blob, used as the total for progress reporting
+     *
+     * @param repository
+     * @param commit
+     * @return
+     * @throws IOException
+     */
+    private long countFiles(Repository repository, RevCommit commit) throws IOException {
+        long count = 0;
+        try (TreeWalk treeWalk = new TreeWalk(repository)) {
+            treeWalk.addTree(commit.getTree());
+            treeWalk.setRecursive(true);
+            while (treeWalk.next()) {
+                if (isSupportedFile(treeWalk.getPathString())) count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * walks the tree of the given commit and pushes every supported file into the pipeline
+     *
+     * @param repository
+     * @param commit
+     * @param sink
+     */
+    private void walkFiles(Repository repository, RevCommit commit, Consumer<IngestionPipeline.SourceFile> sink) {
+        //  walk through all files of the commit including subdirectories
+        try (TreeWalk treeWalk = new TreeWalk(repository)) {
+            treeWalk.addTree(commit.getTree());
+            treeWalk.setRecursive(true);
+            while (treeWalk.next()) {
+                //  filter to only include files with specific extensions, reading each one lazily so only the files
+                //  queued in the pipeline are held in memory
+                if (!isSupportedFile(treeWalk.getPathString())) continue;
+                readBlob(repository, treeWalk, sink);
+            }
         } catch (IOException err) {
-            log.error("Failed to walk through files in the cloned repository.", err);
+            log.error("Failed to walk through files in the repository mirror.", err);
             throw new RuntimeException(err);
         }
-        return chunksToInsert;
     }
 
     /**
-     * processes a single file by reading its content and delegating splitting to the embedding service
+     * reads only the given paths of a commit, silently skipping paths that don't exist in it or aren't indexed
      *
-     * @param path
-     * @param tempDir
-     * @param repo
-     * @param chunksToInsert
+     * @param repository
+     * @param commit
+     * @param paths
+     * @param sink
      */
-    private void processSingleFile(Path path, File tempDir, RepoIngestionRequestDto repo, List<CodeChunk> chunksToInsert) {
-        try {
-            //  read the file content as a string
-            String content = Files.readString(path);
-            if (!content.isBlank()) {
-
-                //  delegate the chunking logic to the external embedding service
-                List<Document> splitDocs = vectorEmbeddingService.splitText(content);
-
-                //  process each split part and prepare it for db insertion
-                for (int i = 0; i < splitDocs.size(); i++) {
-                    Document splitPart = splitDocs.get(i);
-
-                    //  create a display path for the chunk by removing the temp directory prefix
-                    String displayPath = tempDir.toPath().relativize(path).toString().replace("\\", "/");
-                    //  if the original file was split into multiple chunks, append a part indicator to the display path
-                    if (splitDocs.size() > 1) displayPath += " (Part " + (i + 1) + "/" + splitDocs.size() + ")";
-
-                    //  add the chunk to the list of chunks to insert
-                    chunksToInsert.add(CodeChunk.builder()
-                            .repoUrl(repo.getRepoUrl())
-                            .filePath(displayPath)
-                            .content(splitPart.getText())
-                            .build());
+    private void readPaths(Repository repository, RevCommit commit, Collection<String> paths, Consumer<IngestionPipeline.SourceFile> sink) {
+        for (String path : paths) {
+            if (!isSupportedFile(path)) continue;
+            try (TreeWalk treeWalk = TreeWalk.forPath(repository, path, commit.getTree())) {
+                if (treeWalk == null) {
+                    log.warn("File not found at commit {}: {}", commit.name(), path);
+                    continue;
                 }
+                readBlob(repository, treeWalk, sink);
+            } catch (IOException err) {
+                //  show error but continue processing other files
+                log.error("Failed to read file: " + path, err);
             }
-        } catch (IOException err) {
+        }
+    }
+
+    /**
+     * reads the blob the tree walk currently points at and hands it to the split stage
+     *
+     * @param repository
+     * @param treeWalk
+     * @param sink
+     */
+    private void readBlob(Repository repository, TreeWalk treeWalk, Consumer<IngestionPipeline.SourceFile> sink) {
+        String path = treeWalk.getPathString();
+        //  skip symlinks and submodules, only regular file contents are indexed
+        FileMode mode = treeWalk.getFileMode(0);
+        if (mode != FileMode.REGULAR_FILE && mode != FileMode.EXECUTABLE_FILE) return;
+
+        try {
+            ObjectLoader loader = repository.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB);
+            String content = new String(loader.getBytes(), StandardCharsets.UTF_8);
+            if (content.isBlank()) return;
+            sink.accept(new IngestionPipeline.SourceFile(path, content));
+        } catch (IOException | LargeObjectException err) {
             //  show error but continue processing other files
             log.error("Failed to read file: " + path, err);
         }
     }
 
     /**
-     * saves the processed code chunks with their embeddings to the database by performing a bulk insert
+     * splits a single file into code chunks by delegating splitting to the embedding service
      *
-     * @param repo
-     * @param chunksToInsert
+     * @param file
+     * @return
      */
-    private void saveToDatabase(RepoIngestionRequestDto repo, List<CodeChunk> chunksToInsert) {
-        //  perform a batch insert into the database
-        transactionTemplate.execute(status -> {
-            //  before inserting new chunks, delete all existing chunks for this repo to avoid duplicates
-            log.info("Clearing old vectors for repo: {}", repo.getRepoUrl());
-            codeChunkRepository.deleteByRepoUrl(repo.getRepoUrl());
-            //  save all the new chunks with their embeddings to the database
-            codeChunkRepository.saveAll(chunksToInsert);
-            return null;
+    private List<CodeChunk> splitFile(IngestionPipeline.SourceFile file) {
+        //  delegate the chunking logic to the external embedding service
+        List<String> parts = vectorEmbeddingService.splitText(file.content()).stream().map(Document::getText).toList();
+        return toChunks(file.path(), file.content(), parts);
+    }
+
+    /**
+     * turns the parts the splitter cut a file into into code chunks, locating every part in the file to record its
+     * utf-8 byte range
+     *
+     * @param filePath
+     * @param content
+     * @param parts
+     * @return
+     */
+    static List<CodeChunk> toChunks(String filePath, String content, List<String> parts) {
+        List<CodeChunk> chunks = new ArrayList<>(parts.size());
+        String path = CodeChunk.normalizePath(filePath);
+
+        //  the splitter walks the file front to back, so each part is searched for after the end of the previous one
+        int charCursor = 0;
+        int byteCursor = 0;
+
+        //  process each split part and prepare it for db insertion
+        for (int i = 0; i < parts.size(); i++) {
+            String text = parts.get(i);
+            String displayPath = path;
+            //  if the original file was split into multiple chunks, append a part indicator to the display path
+            if (parts.size() > 1) displayPath += " (Part " + (i + 1) + "/" + parts.size() + ")";
+
+            Integer startByte = null;
+            Integer endByte = null;
+            int start = content.indexOf(text, charCursor);
+            if (start >= 0) {
+                startByte = byteCursor + utf8Length(content, charCursor, start);
+                endByte = startByte + utf8Length(content, start, start + text.length());
+                charCursor = start + text.length();
+                byteCursor = endByte;
+            }
+
+            chunks.add(CodeChunk.builder()
+                    .filePath(displayPath)
+                    .path(path)
+                    .partIndex(i + 1)
+                    .partCount(parts.size())
+                    .contentHash(sha256(text))
+                    .startByte(startByte)
+                    .endByte(endByte)
+                    .content(text)
+                    .build());
+        }
+        return chunks;
+    }
+
+    /**
+     * counts the utf-8 bytes of a range of the text without encoding it
+     *
+     * @param text
+     * @param from
+     * @param to
+     * @return
+     */
+    private static int utf8Length(String text, int from, int to) {
+        int bytes = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) bytes += 1;
+            else if (c < 0x800) bytes += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else bytes += 3;
+        }
+        return bytes;
+    }
+
+    /**
+     * hex encoded sha-256 of the text's utf-8 bytes
+     *
+     * @param text
+     * @return
+     */
+    private static String sha256(String text) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * writes one embedded batch under the given generation with a single, separately committed COPY
+     *
+     * @param batch
+     * @param repoId
+     * @param generation
+     */
+    private void persistBatch(List<CodeChunk> batch, Integer repoId, long generation) {
+        batch.forEach(chunk -> {
+            chunk.setRepoId(repoId);
+            chunk.setGeneration(generation);
         });
+        codeChunkBulkWriter.write(batch);
+    }
+
+    /**
+     * paths touched between the indexed commit and the new head
+     *
+     * @param toUpdate paths whose current content must be (re-)embedded
+     * @param toDelete paths whose vectors must be removed
+     */
+    private record ChangeSet(Set<String> toUpdate, Set<String> toDelete) {
+        boolean isEmpty() {
+            return toUpdate.isEmpty() && toDelete.isEmpty();
+        }
+
+        //  modified and renamed files are replaced too, their new content is in the staged generation
+        Set<String> allPaths() {
+            Set<String> paths = new LinkedHashSet<>(toDelete);
+            paths.addAll(toUpdate);
+            return paths;
+        }
     }
 }
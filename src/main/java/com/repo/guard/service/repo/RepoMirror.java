@@ -0,0 +1,30 @@
+package com.repo.guard.service.repo;
+
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * an open, freshly fetched bare mirror of a remote repository. while it is open the mirror is protected from
+ * eviction and gc, so callers must close it as soon as they are done reading
+ */
+public class RepoMirror implements AutoCloseable {
+    private final Repository repository;
+    private final Runnable onClose;
+
+    RepoMirror(Repository repository, Runnable onClose) {
+        this.repository = repository;
+        this.onClose = onClose;
+    }
+
+    public Repository getRepository() {
+        return repository;
+    }
+
+    @Override
+    public void close() {
+        try {
+            repository.close();
+        } finally {
+            onClose.run();
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package com.repo.guard.service.repo;
+
+public interface RepoMirrorService {
+    RepoMirror open(String repoUrl, String username, String token) throws Exception;
+}
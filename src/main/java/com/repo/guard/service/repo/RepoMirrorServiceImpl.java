@@ -0,0 +1,308 @@
+package com.repo.guard.service.repo;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+@Slf4j
+@Service
+public class RepoMirrorServiceImpl implements RepoMirrorService {
+    //  file inside each mirror whose modification time records when the mirror was last used
+    private static final String LAST_ACCESS_MARKER = "guard-last-access";
+    //  only branches are mirrored, gitlab's refs/merge-requests/* and refs/pipelines/* would multiply the fetch size
+    private static final String BRANCHES_REFSPEC = "+refs/heads/*:refs/heads/*";
+
+    private final Path mirrorRoot;
+    private final long maxDiskBytes;
+    private final Map<String, MirrorLock> locks = new ConcurrentHashMap<>();
+    //  disk usage of every mirror as of its last fetch or gc, so checking the budget doesn't walk the whole cache
+    private final Map<String, Long> sizes = new ConcurrentHashMap<>();
+
+    public RepoMirrorServiceImpl(
+            @Value("${guard.mirror.dir:${java.io.tmpdir}/guard-mirrors}") String mirrorDir,
+            @Value("${guard.mirror.max-disk-mb:10240}") long maxDiskMb
+    ) {
+        this.mirrorRoot = Path.of(mirrorDir);
+        this.maxDiskBytes = maxDiskMb * 1024 * 1024;
+    }
+
+    /**
+     * per-mirror locks: readers (open jobs) share the read lock, gc and eviction need the write lock, and fetches
+     * into the same mirror are serialized by their own mutex so they don't block readers
+     */
+    private static final class MirrorLock {
+        private final ReentrantReadWriteLock usage = new ReentrantReadWriteLock();
+        private final ReentrantLock fetch = new ReentrantLock();
+    }
+
+    /**
+     * clones the bare mirror of the repository on first use, otherwise fetches only the new objects,
+     * and returns it opened for reading
+     *
+     * @param repoUrl
+     * @param username
+     * @param token
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public RepoMirror open(String repoUrl, String username, String token) throws Exception {
+        String key = mirrorKey(repoUrl);
+        File mirrorDir = mirrorRoot.resolve(key).toFile();
+
+        UsernamePasswordCredentialsProvider credentialsProvider =
+                new UsernamePasswordCredentialsProvider(username != null ? username : "oauth2", token);
+
+        //  hold the read lock for as long as the caller has the mirror open so it can't be evicted underneath it
+        MirrorLock lock = lockForReading(key);
+        try {
+            lock.fetch.lock();
+            try {
+                if (new File(mirrorDir, "HEAD").exists()) {
+                    log.info("Fetching into cached mirror of {}", repoUrl);
+                    try (Git git = Git.open(mirrorDir)) {
+                        narrowToBranches(git.getRepository());
+                        git.fetch()
+                                .setCredentialsProvider(credentialsProvider)
+                                .setRefSpecs(new RefSpec(BRANCHES_REFSPEC))
+                                .setTagOpt(TagOpt.NO_TAGS)
+                                .setRemoveDeletedRefs(true)
+                                .call();
+                    }
+                } else {
+                    log.info("Creating bare mirror of {} in {}", repoUrl, mirrorDir.getAbsolutePath());
+                    //  remove any half-written mirror left behind by a crash before cloning again
+                    FileSystemUtils.deleteRecursively(mirrorDir);
+                    //  a bare clone of all branches fetches +refs/heads/*:refs/heads/*, unlike --mirror which takes every ref
+                    Git.cloneRepository()
+                            .setURI(repoUrl)
+                            .setDirectory(mirrorDir)
+                            .setBare(true)
+                            .setCloneAllBranches(true)
+                            .setNoTags()
+                            .setCredentialsProvider(credentialsProvider)
+                            .call()
+                            .close();
+                }
+                touch(mirrorDir.toPath());
+                sizes.put(key, sizeOf(mirrorDir.toPath()));
+            } finally {
+                lock.fetch.unlock();
+            }
+
+            Git git = Git.open(mirrorDir);
+            RepoMirror mirror = new RepoMirror(git.getRepository(), () -> lock.usage.readLock().unlock());
+            //  only the sizes recorded after each fetch are summed here, the mirrors are walked again by the gc run
+            if (cachedTotal() > maxDiskBytes) evictOverBudget();
+            return mirror;
+        } catch (Exception err) {
+            lock.usage.readLock().unlock();
+            throw err;
+        }
+    }
+
+    /**
+     * takes the read lock of the mirror, retrying with a fresh lock when the mirror was evicted and its lock dropped
+     * while waiting
+     *
+     * @param key
+     * @return the lock, read-locked
+     */
+    private MirrorLock lockForReading(String key) {
+        while (true) {
+            MirrorLock lock = locks.computeIfAbsent(key, k -> new MirrorLock());
+            lock.usage.readLock().lock();
+            if (locks.get(key) == lock) return lock;
+            lock.usage.readLock().unlock();
+        }
+    }
+
+    /**
+     * takes the write lock of the mirror if nobody is using it
+     *
+     * @param key
+     * @return the lock, write-locked, or null when the mirror is in use or its lock was dropped by an eviction
+     */
+    private MirrorLock tryLockForWriting(String key) {
+        MirrorLock lock = locks.computeIfAbsent(key, k -> new MirrorLock());
+        if (!lock.usage.writeLock().tryLock()) return null;
+        if (locks.get(key) == lock) return lock;
+        lock.usage.writeLock().unlock();
+        return null;
+    }
+
+    /**
+     * rewrites mirrors cloned with --mirror to fetch branches only and drops the non-branch refs they already hold,
+     * so the next gc can discard the objects only those refs kept alive
+     *
+     * @param repository
+     * @throws IOException
+     */
+    private void narrowToBranches(Repository repository) throws IOException {
+        StoredConfig config = repository.getConfig();
+        String[] fetch = config.getStringList("remote", Constants.DEFAULT_REMOTE_NAME, "fetch");
+        if (fetch.length == 1 && BRANCHES_REFSPEC.equals(fetch[0])) return;
+
+        config.setStringList("remote", Constants.DEFAULT_REMOTE_NAME, "fetch", List.of(BRANCHES_REFSPEC));
+        config.unset("remote", Constants.DEFAULT_REMOTE_NAME, "mirror");
+        config.save();
+
+        for (Ref ref : repository.getRefDatabase().getRefs()) {
+            if (ref.isSymbolic() || ref.getName().startsWith(Constants.R_HEADS)) continue;
+            RefUpdate update = repository.updateRef(ref.getName());
+            update.setForceUpdate(true);
+            update.delete();
+        }
+        log.info("Narrowed mirror {} to branches only", repository.getDirectory().getName());
+    }
+
+    /**
+     * records the size of the mirrors already on disk, e.g. left behind by an earlier run of the app
+     */
+    @PostConstruct
+    void loadSizes() {
+        listMirrors().forEach(mirrorDir -> sizes.put(mirrorDir.getFileName().toString(), sizeOf(mirrorDir)));
+    }
+
+    /**
+     * periodically repacks every idle mirror, refreshes the recorded sizes of all mirrors and enforces the disk budget
+     */
+    @Scheduled(fixedDelayString = "${guard.mirror.gc-interval:PT6H}", initialDelayString = "${guard.mirror.gc-interval:PT6H}")
+    public void collectGarbage() {
+        List<Path> mirrors = listMirrors();
+        for (Path mirrorDir : mirrors) {
+            //  skip mirrors that are being read right now, they will be picked up by the next run
+            MirrorLock lock = tryLockForWriting(mirrorDir.getFileName().toString());
+            if (lock == null) continue;
+            try (Git git = Git.open(mirrorDir.toFile())) {
+                git.gc().call();
+                log.info("Garbage collected mirror {}", mirrorDir.getFileName());
+            } catch (Exception err) {
+                log.warn("Failed to gc mirror {}: {}", mirrorDir.getFileName(), err.getMessage());
+            } finally {
+                lock.usage.writeLock().unlock();
+            }
+        }
+
+        //  resync the recorded sizes with the disk, gc shrinks the mirrors it repacked
+        mirrors.forEach(mirrorDir -> sizes.put(mirrorDir.getFileName().toString(), sizeOf(mirrorDir)));
+        sizes.keySet().retainAll(mirrors.stream().map(mirrorDir -> mirrorDir.getFileName().toString()).toList());
+        evictOverBudget();
+    }
+
+    private long cachedTotal() {
+        return sizes.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * deletes the least recently used idle mirrors until the recorded sizes fit in the disk budget
+     */
+    private synchronized void evictOverBudget() {
+        long total = cachedTotal();
+        if (total <= maxDiskBytes) return;
+
+        List<Path> mirrors = new ArrayList<>(listMirrors());
+        mirrors.sort(Comparator.comparing(this::lastAccess));
+        for (Path mirrorDir : mirrors) {
+            if (total <= maxDiskBytes) break;
+
+            String key = mirrorDir.getFileName().toString();
+            //  never evict a mirror that is open or being fetched
+            MirrorLock lock = tryLockForWriting(key);
+            if (lock == null) continue;
+            try {
+                Long recorded = sizes.get(key);
+                long size = recorded != null ? recorded : sizeOf(mirrorDir);
+                FileSystemUtils.deleteRecursively(mirrorDir);
+                sizes.remove(key);
+                //  readers still waiting on this lock notice it is gone and take a fresh one
+                locks.remove(key, lock);
+                total -= size;
+                log.info("Evicted mirror {} ({} MB) to stay within the disk budget", mirrorDir.getFileName(), size / (1024 * 1024));
+            } catch (IOException err) {
+                log.warn("Failed to evict mirror {}: {}", mirrorDir.getFileName(), err.getMessage());
+            } finally {
+                lock.usage.writeLock().unlock();
+            }
+        }
+    }
+
+    private List<Path> listMirrors() {
+        if (!Files.isDirectory(mirrorRoot)) return List.of();
+        try (Stream<Path> dirs = Files.list(mirrorRoot)) {
+            return dirs.filter(Files::isDirectory).toList();
+        } catch (IOException err) {
+            log.warn("Failed to list mirrors in {}: {}", mirrorRoot, err.getMessage());
+            return List.of();
+        }
+    }
+
+    private long sizeOf(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        } catch (IOException err) {
+            return 0;
+        }
+    }
+
+    private Instant lastAccess(Path mirrorDir) {
+        try {
+            return Files.getLastModifiedTime(mirrorDir.resolve(LAST_ACCESS_MARKER)).toInstant();
+        } catch (IOException err) {
+            return Instant.EPOCH;
+        }
+    }
+
+    private void touch(Path mirrorDir) throws IOException {
+        Path marker = mirrorDir.resolve(LAST_ACCESS_MARKER);
+        if (!Files.exists(marker)) Files.createFile(marker);
+        Files.setLastModifiedTime(marker, FileTime.from(Instant.now()));
+    }
+
+    /**
+     * derives a stable directory name for the repository url
+     *
+     * @param repoUrl
+     * @return
+     */
+    private static String mirrorKey(String repoUrl) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(repoUrl.trim().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16) + ".git";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -1,22 +1,79 @@
 package com.repo.guard.service.repo;
 
 import com.repo.guard.model.repo.CodeChunk;
+import com.repo.guard.service.cache.EmbeddingCacheService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.document.Document;
 import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
 import org.springframework.ai.transformer.splitter.TokenTextSplitter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class VectorEmbeddingService {
     private final EmbeddingModel embeddingModel;
+    //  content-addressed cache checked before any text is sent to the provider
+    private final EmbeddingCacheService embeddingCacheService;
     //  splitter that guarantees chunks are <= 512 tokens, with 300 token overlap, and a max of 10 splits per file
     private final TokenTextSplitter textSplitter = new TokenTextSplitter(512, 300, 10, 50, true);
+    //  estimates how many tokens a text costs so batches stay under the provider's per-request budget
+    private final TokenCountEstimator tokenCountEstimator = new JTokkitTokenCountEstimator();
+
+    //  maximum number of texts the provider accepts in a single embedding request
+    @Value("${guard.embedding.batch.max-items:100}")
+    private int maxBatchItems;
+
+    //  maximum number of estimated tokens sent in a single embedding request
+    @Value("${guard.embedding.batch.max-tokens:16000}")
+    private int maxBatchTokens;
+
+    //  how many times a single text is retried once its batch has been split down to one item
+    @Value("${guard.embedding.max-retries:3}")
+    private int maxRetries;
+
+    //  upper bound and starting point of the adaptive number of embedding requests in flight
+    @Value("${guard.embedding.concurrency.max-in-flight:8}")
+    private int maxInFlight;
+
+    @Value("${guard.embedding.concurrency.initial-in-flight:2}")
+    private int initialInFlight;
+
+    //  responses slower than this stop the limiter from ramping up further
+    @Value("${guard.embedding.concurrency.latency-target-ms:5000}")
+    private long latencyTargetMs;
+
+    //  every batch request runs on its own virtual thread, the limiter decides how many actually hit the provider
+    private final ExecutorService embeddingExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private AdaptiveConcurrencyLimiter limiter;
+
+    @PostConstruct
+    void initLimiter() {
+        limiter = new AdaptiveConcurrencyLimiter("Embedding", initialInFlight, maxInFlight, latencyTargetMs);
+    }
+
+    @PreDestroy
+    void shutdownExecutor() {
+        embeddingExecutor.shutdownNow();
+    }
 
     /**
      * splits raw text into smaller document segments using intelligent token boundaries
@@ -30,36 +87,170 @@ public class VectorEmbeddingService {
     }
 
     /**
-     * generates embeddings for a list of chunks sequentially with optimistic execution
-     *
-     * @param chunksToInsert
+     * warms up the model with a test embedding to ensure it is fully loaded before a large ingestion run, failing
+     * the run right away when the provider is unreachable instead of after every batch has been retried
      */
-    public void generateEmbeddingsForChunks(List<CodeChunk> chunksToInsert) {
-        log.info("Parsed {} chunks. Generating embeddings...", chunksToInsert.size());
-
-        //  warm up the model with a test embedding to ensure it is fully loaded into unified memory
+    public void warmUpModel() {
         try {
             log.info("Warming up embedding model...");
             embeddingModel.embed("model warmup test");
             log.info("Model warmup complete");
         } catch (Exception e) {
-            log.warn("Model warmup failed, continuing anyway", e);
+            throw new IllegalStateException("Embedding model warmup failed", e);
         }
+    }
 
-        int batchSize = 10;
+    /**
+     * generates embeddings for a list of chunks using batched requests. throws when any chunk could not be embedded,
+     * since a generation, merge or path replacement written without it would silently lose that code from the index
+     *
+     * @param chunksToInsert
+     */
+    public void generateEmbeddingsForChunks(List<CodeChunk> chunksToInsert) {
+        log.info("Generating embeddings for a batch of {} chunks...", chunksToInsert.size());
 
-        //  process chunks optimistically running as fast as possible and only delaying if the model fails
+        List<float[]> vectors = embedAll(chunksToInsert.stream().map(CodeChunk::getContent).toList());
         for (int i = 0; i < chunksToInsert.size(); i++) {
-            CodeChunk chunk = chunksToInsert.get(i);
+            chunksToInsert.get(i).setEmbedding(vectors.get(i));
+        }
 
-            //  generate embedding vector with our safety net
-            float[] vector = generateEmbeddingWithRetry(chunk.getContent(), i, 3);
-            chunk.setEmbedding(vector);
+        long missing = vectors.stream().filter(Objects::isNull).count();
+        if (missing > 0) {
+            throw new IllegalStateException("Failed to embed " + missing + " of " + chunksToInsert.size() + " chunk(s)");
+        }
+    }
 
-            //  log progress every batchSize chunks to provide visibility into the embedding generation process
-            if (i > 0 && i % batchSize == 0) {
-                log.info("Processed {}/{} chunks...", i, chunksToInsert.size());
+    /**
+     * embeds a single text through the cached, rate limited path
+     *
+     * @param text
+     * @return
+     */
+    public float[] embed(String text) {
+        float[] vector = embedAll(List.of(text)).get(0);
+        if (vector == null) throw new IllegalStateException("Failed to generate embedding");
+        return vector;
+    }
+
+    /**
+     * embeds every text, serving repeated content from the embedding cache and sending only the distinct misses to
+     * the provider. vectors are returned in input order with null for any text that could not be embedded
+     *
+     * @param texts
+     * @return
+     */
+    public List<float[]> embedAll(List<String> texts) {
+        float[][] results = embeddingCacheService.getAll(texts).toArray(new float[0][]);
+
+        //  group the misses by text so boilerplate repeated across files is only embedded once
+        Map<String, List<Integer>> missing = new LinkedHashMap<>();
+        for (int i = 0; i < texts.size(); i++) {
+            if (results[i] == null) missing.computeIfAbsent(texts.get(i), text -> new ArrayList<>()).add(i);
+        }
+        if (missing.isEmpty()) return Arrays.asList(results);
+
+        List<String> toEmbed = new ArrayList<>(missing.keySet());
+        List<float[]> fresh = embedWithProvider(toEmbed);
+        embeddingCacheService.putAll(toEmbed, fresh);
+
+        for (int i = 0; i < toEmbed.size(); i++) {
+            for (int index : missing.get(toEmbed.get(i))) results[index] = fresh.get(i);
+        }
+        log.debug("Embedded {} text(s): {} served from cache, {} sent to the provider.", texts.size(), texts.size() - countOf(missing), toEmbed.size());
+        return Arrays.asList(results);
+    }
+
+    private static int countOf(Map<String, List<Integer>> missing) {
+        return missing.values().stream().mapToInt(List::size).sum();
+    }
+
+    /**
+     * embeds every text using as few provider requests as possible, running the requests concurrently under the
+     * adaptive in-flight limit. vectors are returned in input order with null for any text that failed even after
+     * its batch was split down to a single item
+     *
+     * @param texts
+     * @return
+     */
+    private List<float[]> embedWithProvider(List<String> texts) {
+        float[][] results = new float[texts.size()][];
+
+        //  each range writes only its own slots of the result array, so completion order doesn't matter
+        List<Future<?>> pending = new ArrayList<>();
+        for (int[] range : partitionByBudget(texts)) {
+            pending.add(embeddingExecutor.submit(() -> embedRange(texts, range[0], range[1], results)));
+        }
+
+        try {
+            for (Future<?> future : pending) future.get();
+        } catch (InterruptedException e) {
+            pending.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for embeddings", e);
+        } catch (ExecutionException e) {
+            pending.forEach(future -> future.cancel(true));
+            throw new IllegalStateException("Embedding request failed", e.getCause());
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * groups consecutive texts into [from, to) ranges that respect both the item and token limits of one request
+     *
+     * @param texts
+     * @return
+     */
+    List<int[]> partitionByBudget(List<String> texts) {
+        List<int[]> ranges = new ArrayList<>();
+        int start = 0;
+        int tokens = 0;
+
+        for (int i = 0; i < texts.size(); i++) {
+            int cost = tokenCountEstimator.estimate(texts.get(i));
+            //  close the current batch when adding this text would exceed either limit
+            boolean full = i - start >= maxBatchItems || (i > start && tokens + cost > maxBatchTokens);
+            if (full) {
+                ranges.add(new int[]{start, i});
+                start = i;
+                tokens = 0;
             }
+            tokens += cost;
+        }
+        if (start < texts.size()) ranges.add(new int[]{start, texts.size()});
+        return ranges;
+    }
+
+    /**
+     * embeds texts[from, to) in one request; if the request fails the range is split in half and each half is
+     * retried on its own, down to single texts which fall back to the exponential backoff retry
+     *
+     * @param texts
+     * @param from
+     * @param to
+     * @param results
+     */
+    private void embedRange(List<String> texts, int from, int to, float[][] results) {
+        if (to - from == 1) {
+            try {
+                results[from] = generateEmbeddingWithRetry(texts.get(from), from, maxRetries);
+            } catch (Exception err) {
+                log.error("Giving up on embedding for chunk {}", from, err);
+            }
+            return;
+        }
+
+        try {
+            List<float[]> vectors = callProvider(() -> embeddingModel.embed(texts.subList(from, to)));
+            //  a short response can't be mapped back onto its chunks, so treat it like a failed request
+            if (vectors.size() != to - from) {
+                throw new IllegalStateException("Expected " + (to - from) + " embeddings but received " + vectors.size());
+            }
+            for (int i = 0; i < vectors.size(); i++) results[from + i] = vectors.get(i);
+        } catch (Exception err) {
+            int mid = from + (to - from) / 2;
+            log.warn("Batch embedding of chunks [{}, {}) failed, splitting and retrying: {}", from, to, err.getMessage());
+            embedRange(texts, from, mid, results);
+            embedRange(texts, mid, to, results);
         }
     }
 
@@ -79,7 +270,7 @@ public class VectorEmbeddingService {
         while (attempt < maxRetries) {
             try {
                 //  attempt to generate the embedding using the model
-                return embeddingModel.embed(content);
+                return callProvider(() -> embeddingModel.embed(content));
             } catch (Exception err) {
                 lastException = err;
                 attempt++;
@@ -102,4 +293,31 @@ public class VectorEmbeddingService {
         //  if all retries fail, throw an exception with the last encountered error
         throw new RuntimeException("Failed to generate embedding after " + maxRetries + " attempts", lastException);
     }
+
+    /**
+     * runs a single provider request inside a slot of the adaptive limiter and reports its outcome back to it
+     *
+     * @param request
+     * @param <T>
+     * @return
+     */
+    private <T> T callProvider(Supplier<T> request) {
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for an embedding slot", e);
+        }
+
+        long start = System.currentTimeMillis();
+        Throwable error = null;
+        try {
+            return request.get();
+        } catch (RuntimeException err) {
+            error = err;
+            throw err;
+        } finally {
+            limiter.release(System.currentTimeMillis() - start, error);
+        }
+    }
 }
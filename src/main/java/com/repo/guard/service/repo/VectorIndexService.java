@@ -0,0 +1,462 @@
+package com.repo.guard.service.repo;
+
+import com.repo.guard.dto.VectorIndexStatusDto;
+import com.repo.guard.service.lock.RedisLock;
+import com.repo.guard.service.lock.RedisLockService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * creates and maintains the hnsw index on code_chunks.embedding. code_chunks is partitioned per repository, so the
+ * index is a partitioned index with one hnsw graph per partition: the parent is created ON ONLY code_chunks and each
+ * partition's index is built CONCURRENTLY and then attached, so reviews and ingestions keep reading and writing
+ * while graphs are built. partitions created later inherit the index automatically. the index is checked on startup
+ * and after every full ingestion, only one instance builds at a time, and changing m / ef_construction builds a
+ * replacement with the new settings next to it, which takes over once complete.
+ * the index is kept in the configured storage format, plus any extra formats kept for comparison. after switching
+ * formats, searches keep using the previous index until the new one is complete, which is then the only one kept
+ */
+@Slf4j
+@Service
+public class VectorIndexService {
+    private static final String BUILD_LOCK_KEY = "guard:lock:vector-index";
+    //  appended to the name of an index built to replace an outdated one, until it is swapped in
+    private static final String REPLACEMENT_SUFFIX = "_next";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final RedisLockService redisLockService;
+    private final boolean enabled;
+    private final VectorStorage storage;
+    private final Set<VectorStorage> extraFormats;
+    private final int m;
+    private final int efConstruction;
+    private final int efSearch;
+    private final String maintenanceWorkMem;
+    private final Duration swapLockTimeout;
+
+    //  build state of this instance, reported by the admin endpoint
+    private final AtomicBoolean building = new AtomicBoolean();
+    private volatile Instant lastBuildStartedAt;
+    private volatile Instant lastBuildFinishedAt;
+    private volatile String lastError;
+
+    //  format searches read from, the configured one once its index is complete
+    private volatile VectorStorage servingStorage;
+
+    public VectorIndexService(
+            JdbcTemplate jdbcTemplate,
+            RedisLockService redisLockService,
+            @Value("${guard.vector-index.enabled:true}") boolean enabled,
+            @Value("${guard.vector-index.storage:full}") String storage,
+            @Value("${guard.vector-index.extra-formats:}") String extraFormats,
+            @Value("${guard.vector-index.m:16}") int m,
+            @Value("${guard.vector-index.ef-construction:64}") int efConstruction,
+            @Value("${guard.vector-index.ef-search:40}") int efSearch,
+            @Value("${guard.vector-index.maintenance-work-mem:512MB}") String maintenanceWorkMem,
+            @Value("${guard.vector-index.swap-lock-timeout:PT10S}") Duration swapLockTimeout
+    ) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.redisLockService = redisLockService;
+        this.enabled = enabled;
+        this.storage = parseStorage(storage);
+        this.extraFormats = EnumSet.noneOf(VectorStorage.class);
+        Arrays.stream(extraFormats.split(",")).filter(format -> !format.isBlank()).map(VectorIndexService::parseStorage).forEach(this.extraFormats::add);
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.maintenanceWorkMem = maintenanceWorkMem;
+        this.swapLockTimeout = swapLockTimeout;
+        this.servingStorage = this.storage;
+    }
+
+    private static VectorStorage parseStorage(String value) {
+        return VectorStorage.valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * the format similarity searches should read from right now
+     *
+     * @return
+     */
+    public VectorStorage servingStorage() {
+        return servingStorage;
+    }
+
+    /**
+     * whether the index of the given format exists and every partition has its graph attached
+     *
+     * @param format
+     * @return
+     */
+    public boolean isValid(VectorStorage format) {
+        return describe(format.getIndexName()).map(IndexInfo::valid).orElse(false);
+    }
+
+    /**
+     * total size of the graphs of the given format across all partitions
+     *
+     * @param format
+     * @return
+     */
+    public long indexSize(VectorStorage format) {
+        return partitionIndexes(format).stream().mapToLong(PartitionIndex::sizeBytes).sum();
+    }
+
+    /**
+     * current state of the configured index, its size and the progress of a running build
+     *
+     * @return
+     */
+    public VectorIndexStatusDto status() {
+        Optional<IndexInfo> index = describe(storage.getIndexName());
+        List<PartitionIndex> partitions = partitionIndexes(storage);
+        long sizeBytes = partitions.stream().mapToLong(PartitionIndex::sizeBytes).sum();
+
+        VectorIndexStatusDto.VectorIndexStatusDtoBuilder status = VectorIndexStatusDto.builder()
+                .name(storage.getIndexName())
+                .storage(storage.name())
+                .servingStorage(servingStorage.name())
+                .extraFormats(extraFormats.stream().map(Enum::name).toList())
+                .exists(index.isPresent())
+                //  a partitioned index only becomes valid once every partition has its index attached
+                .valid(index.map(IndexInfo::valid).orElse(false))
+                .partitions(partitions.size())
+                .indexedPartitions((int) partitions.stream().filter(PartitionIndex::isIndexed).count())
+                .sizeBytes(index.isPresent() ? sizeBytes : null)
+                .size(index.isPresent() ? prettySize(sizeBytes) : null)
+                .definition(index.map(IndexInfo::definition).orElse(null))
+                .m(m)
+                .efConstruction(efConstruction)
+                .efSearch(efSearch)
+                .buildState(building.get() ? "BUILDING" : lastError != null ? "FAILED" : "IDLE")
+                .lastBuildStartedAt(lastBuildStartedAt)
+                .lastBuildFinishedAt(lastBuildFinishedAt)
+                .lastError(lastError);
+
+        //  progress of a build running anywhere, not only on this instance
+        List<Map<String, Object>> progress = jdbcTemplate.queryForList("""
+                SELECT phase, blocks_done, blocks_total, tuples_done, tuples_total
+                FROM pg_stat_progress_create_index
+                WHERE relid = 'code_chunks'::regclass OR relid IN (SELECT inhrelid FROM pg_inherits WHERE inhparent = 'code_chunks'::regclass)
+                """);
+        if (!progress.isEmpty()) {
+            Map<String, Object> row = progress.getFirst();
+            status.buildPhase((String) row.get("phase"))
+                    .blocksDone(toLong(row.get("blocks_done")))
+                    .blocksTotal(toLong(row.get("blocks_total")))
+                    .tuplesDone(toLong(row.get("tuples_done")))
+                    .tuplesTotal(toLong(row.get("tuples_total")));
+        }
+        return status.build();
+    }
+
+    /**
+     * makes sure the index exists once the application is up, without delaying startup
+     */
+    @Async("vectorIndexExecutor")
+    @EventListener(ApplicationReadyEvent.class)
+    public void ensureIndexOnStartup() {
+        build(false);
+    }
+
+    /**
+     * builds the index if it is missing, invalid or outdated, called after bulk loads such as full ingestions
+     */
+    @Async("vectorIndexExecutor")
+    public void ensureIndex() {
+        build(false);
+    }
+
+    /**
+     * rebuilds every partition's graph concurrently, e.g. after large deletes left it with many dead entries
+     */
+    @Async("vectorIndexExecutor")
+    public void rebuild() {
+        build(true);
+    }
+
+    private void build(boolean force) {
+        if (!enabled) return;
+        refreshServingStorage();
+        if (!building.compareAndSet(false, true)) {
+            log.info("Vector index build already running on this instance, skipping.");
+            return;
+        }
+        //  CREATE INDEX CONCURRENTLY of the same index from two instances would just leave an invalid one behind
+        Optional<RedisLock> lock = redisLockService.tryAcquire(BUILD_LOCK_KEY, "index:" + UUID.randomUUID());
+        if (lock.isEmpty()) {
+            building.set(false);
+            refreshServingStorage();
+            log.info("Vector index is being built by another instance, skipping.");
+            return;
+        }
+
+        try (RedisLock ignored = lock.get()) {
+            Set<VectorStorage> maintained = EnumSet.of(storage);
+            maintained.addAll(extraFormats);
+            for (VectorStorage format : maintained) {
+                buildFormat(format, force);
+            }
+
+            //  once the configured index is complete, indexes of formats nobody reads from any more are dropped
+            if (isValid(storage)) {
+                for (VectorStorage format : EnumSet.complementOf(EnumSet.copyOf(maintained))) {
+                    if (describe(format.getIndexName()).isEmpty()) continue;
+                    log.info("Dropping vector index {}, the {} format is no longer used.", format.getIndexName(), format);
+                    execute("DROP INDEX IF EXISTS " + format.getIndexName());
+                }
+            }
+        } catch (Exception err) {
+            lastError = err.getMessage();
+            log.error("Failed to build vector index {}", storage.getIndexName(), err);
+        } finally {
+            refreshServingStorage();
+            building.set(false);
+        }
+    }
+
+    /**
+     * brings the partitioned index of one format up to date
+     *
+     * @param format
+     * @param force
+     */
+    private void buildFormat(VectorStorage format, boolean force) {
+        String parentName = format.getIndexName();
+        Optional<IndexInfo> parent = describe(parentName);
+        boolean outdated = parent.isPresent() && !parent.get().matches(m, efConstruction);
+        boolean upToDate = parent.isPresent() && !outdated && partitionIndexes(parentName).stream().allMatch(PartitionIndex::isIndexed);
+        if (upToDate && !force) return;
+
+        lastBuildStartedAt = Instant.now();
+        lastError = null;
+        long start = System.currentTimeMillis();
+
+        int partitions;
+        if (outdated) {
+            //  the old index keeps serving searches while its replacement is built next to it under another name
+            String replacement = parentName + REPLACEMENT_SUFFIX;
+            log.info("Vector index {} was built with other parameters, building {} to replace it (m={}, ef_construction={}).", parentName, replacement, m, efConstruction);
+            //  a replacement left behind by an interrupted build is resumed, unless the parameters changed again since
+            if (describe(replacement).filter(index -> !index.matches(m, efConstruction)).isPresent()) {
+                execute("DROP INDEX IF EXISTS " + replacement);
+            }
+            partitions = buildPartitioned(format, replacement, REPLACEMENT_SUFFIX, false);
+            swapIn(format, replacement);
+        } else {
+            partitions = buildPartitioned(format, parentName, "", force);
+        }
+
+        lastBuildFinishedAt = Instant.now();
+        log.info("Vector index {} built for {} partition(s) in {}s.", parentName, partitions, (System.currentTimeMillis() - start) / 1000);
+    }
+
+    /**
+     * creates the parent index if needed, then builds and attaches the graph of every partition that lacks one
+     *
+     * @param format
+     * @param parentName
+     * @param suffix appended to the partition index names
+     * @param force whether graphs that already exist are rebuilt too
+     * @return the number of partitions
+     */
+    private int buildPartitioned(VectorStorage format, String parentName, String suffix, boolean force) {
+        //  ON ONLY creates just the parent, it stays invalid until an index is attached for every partition
+        execute("CREATE INDEX IF NOT EXISTS " + parentName + " ON ONLY code_chunks USING hnsw (" + format.getIndexExpression() + ")"
+                + " WITH (m = " + m + ", ef_construction = " + efConstruction + ")");
+
+        List<PartitionIndex> partitions = partitionIndexes(parentName);
+        for (PartitionIndex partition : partitions) {
+            if (partition.isIndexed()) {
+                if (force) {
+                    log.info("Rebuilding vector index {} of {}.", partition.indexName(), partition.partition());
+                    execute("REINDEX INDEX CONCURRENTLY " + partition.indexName());
+                }
+                continue;
+            }
+            String indexName = format.partitionIndexName(partition.partition()) + suffix;
+            //  a failed concurrent build leaves an invalid index that is still maintained on every write
+            execute("DROP INDEX CONCURRENTLY IF EXISTS " + indexName);
+            log.info("Building vector index {} of {} (m={}, ef_construction={}).", indexName, partition.partition(), m, efConstruction);
+            createIndex(indexName, partition.partition(), format);
+            execute("ALTER INDEX " + parentName + " ATTACH PARTITION " + indexName);
+        }
+        return partitions.size();
+    }
+
+    /**
+     * drops the outdated index and renames its completed replacement (and the graphs built for it) to the usual
+     * names in one transaction, so searches never see the format without an index. partitioned indexes can't be
+     * dropped concurrently, the drop briefly locks code_chunks and gives up after swap-lock-timeout instead of
+     * queueing every query behind it, the next build then retries the swap
+     *
+     * @param format
+     * @param replacement
+     */
+    private void swapIn(VectorStorage format, String replacement) {
+        if (!describe(replacement).map(IndexInfo::valid).orElse(false)) {
+            throw new IllegalStateException("Replacement index " + replacement + " is not complete, keeping " + format.getIndexName());
+        }
+        List<PartitionIndex> partitions = partitionIndexes(replacement);
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("SET LOCAL lock_timeout = '" + swapLockTimeout.toMillis() + "ms'");
+                statement.execute("DROP INDEX IF EXISTS " + format.getIndexName());
+                statement.execute("ALTER INDEX " + replacement + " RENAME TO " + format.getIndexName());
+                for (PartitionIndex partition : partitions) {
+                    String indexName = format.partitionIndexName(partition.partition());
+                    //  graphs postgres created itself for partitions added during the build keep their generated names
+                    if ((indexName + REPLACEMENT_SUFFIX).equals(partition.indexName())) {
+                        statement.execute("ALTER INDEX " + partition.indexName() + " RENAME TO " + indexName);
+                    }
+                }
+                connection.commit();
+            } catch (SQLException err) {
+                connection.rollback();
+                throw err;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            return null;
+        });
+        log.info("Replaced vector index {} with {}.", format.getIndexName(), replacement);
+    }
+
+    /**
+     * serves the configured format once its index is complete, until then keeps reading from a format that is
+     */
+    private void refreshServingStorage() {
+        VectorStorage serving = storage;
+        if (!isValid(storage)) {
+            serving = Arrays.stream(VectorStorage.values()).filter(this::isValid).findFirst().orElse(storage);
+        }
+        if (serving != servingStorage) log.info("Similarity searches now read from the {} vector index.", serving);
+        servingStorage = serving;
+    }
+
+    /**
+     * builds the index of one partition on a single connection, with more maintenance memory so the graph fits in
+     * memory while it is built. runs outside of any transaction, which CREATE INDEX CONCURRENTLY requires
+     *
+     * @param name
+     * @param partition
+     * @param format
+     */
+    private void createIndex(String name, String partition, VectorStorage format) {
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("SET maintenance_work_mem = '" + maintenanceWorkMem.replace("'", "") + "'");
+                try {
+                    statement.execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + name
+                            + " ON " + partition + " USING hnsw (" + format.getIndexExpression() + ")"
+                            + " WITH (m = " + m + ", ef_construction = " + efConstruction + ")");
+                } finally {
+                    statement.execute("RESET maintenance_work_mem");
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * every partition of code_chunks with its index attached to the parent index of the format, if any
+     *
+     * @param format
+     * @return
+     */
+    private List<PartitionIndex> partitionIndexes(VectorStorage format) {
+        return partitionIndexes(format.getIndexName());
+    }
+
+    private List<PartitionIndex> partitionIndexes(String parentName) {
+        return jdbcTemplate.query("""
+                SELECT p.relname AS partition, ci.relname AS index_name, pg_relation_size(ci.oid) AS size_bytes
+                FROM pg_inherits pi
+                JOIN pg_class p ON p.oid = pi.inhrelid
+                LEFT JOIN pg_index ix ON ix.indrelid = p.oid
+                    AND ix.indexrelid IN (SELECT inhrelid FROM pg_inherits WHERE inhparent = to_regclass(?))
+                LEFT JOIN pg_class ci ON ci.oid = ix.indexrelid
+                WHERE pi.inhparent = 'code_chunks'::regclass
+                ORDER BY p.relname
+                """, (rs, rowNum) -> new PartitionIndex(
+                rs.getString("partition"),
+                rs.getString("index_name"),
+                rs.getLong("size_bytes")
+        ), parentName);
+    }
+
+    private void execute(String sql) {
+        jdbcTemplate.execute(sql);
+    }
+
+    private Optional<IndexInfo> describe(String name) {
+        List<IndexInfo> found = jdbcTemplate.query("""
+                SELECT i.indisvalid AS valid, pg_get_indexdef(c.oid) AS definition, array_to_string(c.reloptions, ',') AS options
+                FROM pg_class c
+                JOIN pg_index i ON i.indexrelid = c.oid
+                WHERE c.relname = ? AND c.relnamespace = current_schema()::regnamespace
+                """, (rs, rowNum) -> new IndexInfo(
+                rs.getBoolean("valid"),
+                rs.getString("definition"),
+                rs.getString("options")
+        ), name);
+        return found.stream().findFirst();
+    }
+
+    String prettySize(long bytes) {
+        return jdbcTemplate.queryForObject("SELECT pg_size_pretty(?::bigint)", String.class, bytes);
+    }
+
+    private static Long toLong(Object value) {
+        return value instanceof Number number ? number.longValue() : null;
+    }
+
+    /**
+     * catalog entry of an index
+     *
+     * @param valid false while a concurrent build is running or after it failed
+     * @param definition
+     * @param options storage parameters the index was built with, e.g. m=16,ef_construction=64
+     */
+    private record IndexInfo(boolean valid, String definition, String options) {
+        boolean matches(int m, int efConstruction) {
+            List<String> parameters = options != null ? List.of(options.split(",")) : List.of();
+            return parameters.contains("m=" + m) && parameters.contains("ef_construction=" + efConstruction);
+        }
+    }
+
+    /**
+     * a partition of code_chunks and its attached hnsw index
+     *
+     * @param partition
+     * @param indexName null when the partition has no index attached to the parent yet
+     * @param sizeBytes
+     */
+    private record PartitionIndex(String partition, String indexName, long sizeBytes) {
+        boolean isIndexed() {
+            return indexName != null;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.repo.guard.service.repo;
+
+import com.repo.guard.model.repo.ChunkMatch;
+import com.repo.guard.model.repo.CodeChunkRepository;
+import com.repo.guard.model.repo.RepoModelRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * runs the similarity searches over code_chunks with the hnsw search parameters applied to just that query. the
+ * settings are set with SET LOCAL semantics inside a short read-only transaction, so they never leak into other
+ * work done on the pooled connection. results are lean projections carrying their cosine distance, optionally cut
+ * off at a maximum distance
+ */
+@Service
+public class VectorSearchService {
+    private final CodeChunkRepository codeChunkRepository;
+    private final RepoModelRepository repoModelRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate readOnlyTransaction;
+    //  tells which index format searches read from
+    private final VectorIndexService vectorIndexService;
+
+    //  size of the candidate list hnsw keeps while searching, higher is more accurate but slower
+    private final int efSearch;
+
+    //  pgvector 0.8+ keeps scanning when filters drop candidates (strict_order / relaxed_order), blank leaves it off
+    private final String iterativeScan;
+
+    //  candidates fetched from a quantized index per requested result, before re-ranking by exact distance
+    private final int rerankFactor;
+
+    //  cosine distance never exceeds 2, so this is used when no cutoff is requested
+    private static final double NO_CUTOFF = 2.0;
+
+    public VectorSearchService(
+            CodeChunkRepository codeChunkRepository,
+            RepoModelRepository repoModelRepository,
+            JdbcTemplate jdbcTemplate,
+            PlatformTransactionManager transactionManager,
+            VectorIndexService vectorIndexService,
+            @Value("${guard.vector-index.ef-search:40}") int efSearch,
+            @Value("${guard.vector-index.iterative-scan:}") String iterativeScan,
+            @Value("${guard.vector-index.rerank-factor:4}") int rerankFactor
+    ) {
+        this.codeChunkRepository = codeChunkRepository;
+        this.repoModelRepository = repoModelRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.vectorIndexService = vectorIndexService;
+        this.efSearch = efSearch;
+        this.iterativeScan = iterativeScan;
+        this.rerankFactor = Math.max(1, rerankFactor);
+    }
+
+    /**
+     * finds the chunks closest to the embedding across every repository's active generation
+     *
+     * @param embedding
+     * @param limit
+     * @return
+     */
+    public List<ChunkMatch> findSimilarChunks(float[] embedding, int limit) {
+        return findSimilarChunks(embedding, limit, null);
+    }
+
+    /**
+     * finds the chunks closest to the embedding across every repository's active generation, dropping the ones
+     * further away than the cutoff
+     *
+     * @param embedding
+     * @param limit
+     * @param maxDistance largest cosine distance to return, null for no cutoff
+     * @return
+     */
+    public List<ChunkMatch> findSimilarChunks(float[] embedding, int limit, Double maxDistance) {
+        int candidates = limit * rerankFactor;
+        double cutoff = cutoff(maxDistance);
+        return switch (vectorIndexService.servingStorage()) {
+            case FULL -> search(limit, () -> codeChunkRepository.findSimilarChunks(embedding, limit, cutoff));
+            case HALFVEC -> search(candidates, () -> codeChunkRepository.findSimilarChunksHalfvec(embedding, limit, candidates, cutoff));
+            case BINARY -> search(candidates, () -> codeChunkRepository.findSimilarChunksBinary(embedding, limit, candidates, cutoff));
+        };
+    }
+
+    /**
+     * finds the chunks closest to the embedding within one repository's active generation
+     *
+     * @param embedding
+     * @param limit
+     * @param repoUrl
+     * @return
+     */
+    public List<ChunkMatch> findSimilarChunksByRepo(float[] embedding, int limit, String repoUrl) {
+        return findSimilarChunksByRepo(embedding, limit, repoUrl, null);
+    }
+
+    /**
+     * finds the chunks closest to the embedding within one repository's active generation, dropping the ones
+     * further away than the cutoff
+     *
+     * @param embedding
+     * @param limit
+     * @param repoUrl
+     * @param maxDistance largest cosine distance to return, null for no cutoff
+     * @return
+     */
+    public List<ChunkMatch> findSimilarChunksByRepo(float[] embedding, int limit, String repoUrl, Double maxDistance) {
+        //  resolved up front so the query carries the partition key and is planned against one partition
+        Optional<Integer> repoId = repoModelRepository.findIdByRepoUrl(repoUrl);
+        if (repoId.isEmpty()) return List.of();
+        return findSimilarChunksByRepo(embedding, limit, repoId.get(), vectorIndexService.servingStorage(), maxDistance);
+    }
+
+    /**
+     * finds the chunks closest to the embedding within one repository's active generation through the index of the
+     * given format, re-ranking by exact distance when the format is quantized
+     *
+     * @param embedding
+     * @param limit
+     * @param repoId
+     * @param storage
+     * @param maxDistance largest cosine distance to return, null for no cutoff
+     * @return
+     */
+    public List<ChunkMatch> findSimilarChunksByRepo(float[] embedding, int limit, int repoId, VectorStorage storage, Double maxDistance) {
+        int candidates = limit * rerankFactor;
+        double cutoff = cutoff(maxDistance);
+        return switch (storage) {
+            case FULL -> search(limit, () -> codeChunkRepository.findSimilarChunksByRepo(embedding, limit, repoId, cutoff));
+            case HALFVEC -> search(candidates, () -> codeChunkRepository.findSimilarChunksByRepoHalfvec(embedding, limit, repoId, candidates, cutoff));
+            case BINARY -> search(candidates, () -> codeChunkRepository.findSimilarChunksByRepoBinary(embedding, limit, repoId, candidates, cutoff));
+        };
+    }
+
+    /**
+     * finds the chunks closest to any of the embeddings within one repository's active generation in a single
+     * statement, taking the top results of every embedding and returning each chunk once with its closest distance
+     *
+     * @param embeddings
+     * @param limit results per embedding
+     * @param repoUrl
+     * @param maxDistance largest cosine distance to return, null for no cutoff
+     * @return the distinct matches, closest first
+     */
+    public List<ChunkMatch> findSimilarChunksByRepo(List<float[]> embeddings, int limit, String repoUrl, Double maxDistance) {
+        if (embeddings.isEmpty()) return List.of();
+        Optional<Integer> repoId = repoModelRepository.findIdByRepoUrl(repoUrl);
+        if (repoId.isEmpty()) return List.of();
+
+        String vectors = toVectorArray(embeddings);
+        int candidates = limit * rerankFactor;
+        double cutoff = cutoff(maxDistance);
+        return switch (vectorIndexService.servingStorage()) {
+            case FULL -> search(limit, () -> codeChunkRepository.findSimilarChunksByRepoBatch(vectors, limit, repoId.get(), cutoff));
+            case HALFVEC -> search(candidates, () -> codeChunkRepository.findSimilarChunksByRepoBatchHalfvec(vectors, limit, repoId.get(), cutoff, candidates));
+            case BINARY -> search(candidates, () -> codeChunkRepository.findSimilarChunksByRepoBatchBinary(vectors, limit, repoId.get(), cutoff, candidates));
+        };
+    }
+
+    /**
+     * encodes the embeddings as a postgres array literal of pgvector values, e.g. {"[0.1,0.2]","[0.3,0.4]"}
+     *
+     * @param embeddings
+     * @return
+     */
+    private static String toVectorArray(List<float[]> embeddings) {
+        StringBuilder literal = new StringBuilder(embeddings.size() * embeddings.get(0).length * 12);
+        literal.append('{');
+        for (int i = 0; i < embeddings.size(); i++) {
+            if (i > 0) literal.append(',');
+            float[] embedding = embeddings.get(i);
+            literal.append("\"[");
+            for (int j = 0; j < embedding.length; j++) {
+                if (j > 0) literal.append(',');
+                literal.append(embedding[j]);
+            }
+            literal.append("]\"");
+        }
+        return literal.append('}').toString();
+    }
+
+    private static double cutoff(Double maxDistance) {
+        return maxDistance != null ? maxDistance : NO_CUTOFF;
+    }
+
+    private <T> T search(int rows, Supplier<T> query) {
+        return readOnlyTransaction.execute(status -> {
+            //  hnsw never returns more rows than ef_search, so it is raised to the rows read from the index when needed
+            applySetting("hnsw.ef_search", String.valueOf(Math.max(efSearch, rows)));
+            if (!iterativeScan.isBlank()) applySetting("hnsw.iterative_scan", iterativeScan);
+            return query.get();
+        });
+    }
+
+    //  set_config with is_local = true behaves like SET LOCAL and is reset when the transaction ends
+    private void applySetting(String name, String value) {
+        jdbcTemplate.queryForObject("SELECT set_config(?, ?, true)", String.class, name, value);
+    }
+}
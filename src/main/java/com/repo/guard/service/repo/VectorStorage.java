@@ -0,0 +1,39 @@
+package com.repo.guard.service.repo;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * the formats the hnsw index can keep the embeddings in. code_chunks always stores the full precision vector, the
+ * quantized formats are expression indexes over it, so switching formats never rewrites rows and candidates found
+ * through a compact index are re-ranked by their exact cosine distance
+ */
+@Getter
+@RequiredArgsConstructor
+public enum VectorStorage {
+    //  vector(768), 4 bytes per dimension
+    FULL("idx_code_chunks_embedding_hnsw", "embedding vector_cosine_ops"),
+    //  halfvec(768), 2 bytes per dimension, about half the index size with nearly the same ordering
+    HALFVEC("idx_code_chunks_embedding_hnsw_halfvec", "(embedding::halfvec(768)) halfvec_cosine_ops"),
+    //  one bit per dimension compared by hamming distance, about 1/32 of the index size but coarse, relies on re-ranking
+    BINARY("idx_code_chunks_embedding_hnsw_binary", "(binary_quantize(embedding)::bit(768)) bit_hamming_ops");
+
+    //  name of the partitioned parent index
+    private final String indexName;
+    //  indexed expression and operator class
+    private final String indexExpression;
+
+    /**
+     * name of the index of one partition, e.g. code_chunks_r7_embedding_hnsw_halfvec
+     *
+     * @param partition
+     * @return
+     */
+    public String partitionIndexName(String partition) {
+        return indexName.replace("idx_code_chunks_", partition + "_");
+    }
+
+    public boolean isQuantized() {
+        return this != FULL;
+    }
+}
@@ -0,0 +1,150 @@
+package com.repo.guard.service.repo;
+
+import com.repo.guard.dto.VectorStorageComparisonDto;
+import com.repo.guard.exception.RepositoryNotFoundException;
+import com.repo.guard.model.repo.ChunkMatch;
+import com.repo.guard.model.repo.RepoModel;
+import com.repo.guard.model.repo.RepoModelRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+
+/**
+ * compares the index formats on one repository: vectors sampled from its active generation are used as queries,
+ * the exact top results come from a sequential scan, and every format with a complete index is measured for
+ * recall against them, p50 / p95 latency and the size of its graphs
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class VectorStorageComparisonService {
+    private static final int MAX_SAMPLES = 500;
+
+    private final RepoModelRepository repoModelRepository;
+    private final VectorSearchService vectorSearchService;
+    private final VectorIndexService vectorIndexService;
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * runs the comparison for the repository
+     *
+     * @param repoUrl
+     * @param samples
+     * @param limit
+     * @return
+     */
+    public VectorStorageComparisonDto compare(String repoUrl, int samples, int limit) {
+        RepoModel repo = repoModelRepository.findByRepoUrl(repoUrl)
+                .orElseThrow(() -> new RepositoryNotFoundException("Repository not found: " + repoUrl));
+        int repoId = repo.getId();
+        long generation = repo.getActiveGeneration();
+
+        //  pgvector's text format, which is what the queries below bind
+        List<String> queries = jdbcTemplate.queryForList("""
+                SELECT embedding::text FROM code_chunks
+                WHERE repo_id = ? AND generation = ?
+                ORDER BY random()
+                LIMIT ?
+                """, String.class, repoId, generation, Math.min(Math.max(samples, 1), MAX_SAMPLES));
+
+        //  the OFFSET 0 fence keeps the planner from answering the ORDER BY through an index, so this is exact
+        List<Set<UUID>> exact = new ArrayList<>(queries.size());
+        VectorStorageComparisonDto.Result baseline = measure("EXACT", queries, query -> {
+            List<UUID> ids = jdbcTemplate.queryForList("""
+                    SELECT id FROM (
+                        SELECT id, embedding <=> cast(? as vector) AS distance FROM code_chunks
+                        WHERE repo_id = ? AND generation = ?
+                        OFFSET 0
+                    ) scanned
+                    ORDER BY distance
+                    LIMIT ?
+                    """, UUID.class, query, repoId, generation, limit);
+            exact.add(new HashSet<>(ids));
+            return ids;
+        }, null);
+        baseline.setIndexed(false);
+
+        List<VectorStorageComparisonDto.Result> results = new ArrayList<>();
+        results.add(baseline);
+        for (VectorStorage format : VectorStorage.values()) {
+            long sizeBytes = vectorIndexService.indexSize(format);
+            if (!vectorIndexService.isValid(format)) {
+                results.add(VectorStorageComparisonDto.Result.builder().format(format.name()).indexed(false).build());
+                continue;
+            }
+            VectorStorageComparisonDto.Result result = measure(format.name(), queries, query -> vectorSearchService
+                    .findSimilarChunksByRepo(parseVector(query), limit, repoId, format, null)
+                    .stream()
+                    .map(ChunkMatch::getId)
+                    .toList(), exact);
+            result.setIndexed(true);
+            result.setIndexSizeBytes(sizeBytes);
+            result.setIndexSize(vectorIndexService.prettySize(sizeBytes));
+            results.add(result);
+        }
+
+        log.info("Compared vector index formats on {} with {} sample(s).", repoUrl, queries.size());
+        return VectorStorageComparisonDto.builder()
+                .repoUrl(repoUrl)
+                .samples(queries.size())
+                .limit(limit)
+                .results(results)
+                .build();
+    }
+
+    /**
+     * runs every query through the search, timing each one and scoring it against the exact results when given
+     *
+     * @param format
+     * @param queries
+     * @param search
+     * @param exact
+     * @return
+     */
+    private VectorStorageComparisonDto.Result measure(String format, List<String> queries, Function<String, List<UUID>> search, List<Set<UUID>> exact) {
+        double[] millis = new double[queries.size()];
+        double recallSum = 0;
+        for (int i = 0; i < queries.size(); i++) {
+            long start = System.nanoTime();
+            List<UUID> found = search.apply(queries.get(i));
+            millis[i] = (System.nanoTime() - start) / 1_000_000.0;
+
+            if (exact != null && !exact.get(i).isEmpty()) {
+                Set<UUID> expected = exact.get(i);
+                recallSum += found.stream().filter(expected::contains).count() / (double) expected.size();
+            }
+        }
+        Arrays.sort(millis);
+        return VectorStorageComparisonDto.Result.builder()
+                .format(format)
+                .recall(exact != null && !queries.isEmpty() ? recallSum / queries.size() : null)
+                .p50Millis(percentile(millis, 0.50))
+                .p95Millis(percentile(millis, 0.95))
+                .build();
+    }
+
+    private static Double percentile(double[] sorted, double p) {
+        if (sorted.length == 0) return null;
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    //  parses pgvector's text format, e.g. [0.1,0.2,0.3]
+    private static float[] parseVector(String text) {
+        String[] parts = text.substring(1, text.length() - 1).split(",");
+        float[] vector = new float[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            vector[i] = Float.parseFloat(parts[i]);
+        }
+        return vector;
+    }
+}
@@ -1,2 +1,82 @@
+-- Statements end with ;; (spring.sql.init.separator) so the DO blocks below can contain plain semicolons
+
 -- Enable the pgvector extension if it's not already on
-CREATE EXTENSION IF NOT EXISTS vector;
\ No newline at end of file
+CREATE EXTENSION IF NOT EXISTS vector;;
+-- Generations of code_chunks: every full ingestion writes a new generation and flips repositories.active_generation
+CREATE SEQUENCE IF NOT EXISTS code_chunk_generation_seq START WITH 1;;
+
+-- Chunks used to repeat their repository's url. Register every repository they reference (chunks written before
+-- generations existed belong to generation 0, which is what those repositories point at), switch the chunks over
+-- to the integer key and drop the url column, which also drops the indexes that were built on it
+DO $$
+BEGIN
+    IF EXISTS (
+        SELECT 1 FROM information_schema.columns
+        WHERE table_schema = current_schema() AND table_name = 'code_chunks' AND column_name = 'repo_url'
+    ) THEN
+        UPDATE code_chunks SET generation = 0 WHERE generation IS NULL;
+        INSERT INTO repositories (repo_url, active_generation)
+        SELECT DISTINCT repo_url, 0 FROM code_chunks WHERE repo_url IS NOT NULL
+        ON CONFLICT (repo_url) DO NOTHING;
+        UPDATE code_chunks c SET repo_id = r.id FROM repositories r WHERE r.repo_url = c.repo_url AND c.repo_id IS NULL;
+        DELETE FROM code_chunks WHERE repo_id IS NULL;
+        ALTER TABLE code_chunks DROP COLUMN repo_url;
+    END IF;
+END $$;;
+
+-- code_chunks is list partitioned by repo_id, one partition per repository, so repo scoped searches only walk that
+-- repository's own vector index and wiping a repository is a partition drop. hibernate creates the table as a plain
+-- one on first start (and it was one before partitioning), so it's converted here: the plain table is renamed, the
+-- partitioned table is created with the same columns, a partition per repository, and the rows are copied over
+DO $$
+DECLARE
+    repo RECORD;
+BEGIN
+    IF EXISTS (SELECT 1 FROM pg_class WHERE oid = to_regclass('code_chunks') AND relkind = 'r') THEN
+        ALTER TABLE code_chunks RENAME TO code_chunks_unpartitioned;
+        CREATE TABLE code_chunks (LIKE code_chunks_unpartitioned INCLUDING DEFAULTS) PARTITION BY LIST (repo_id);
+        ALTER TABLE code_chunks ADD CONSTRAINT code_chunks_id_repo_pkey PRIMARY KEY (id, repo_id);
+        FOR repo IN SELECT id FROM repositories LOOP
+            EXECUTE format('CREATE TABLE code_chunks_r%s PARTITION OF code_chunks FOR VALUES IN (%s)', repo.id, repo.id);
+        END LOOP;
+        INSERT INTO code_chunks SELECT * FROM code_chunks_unpartitioned WHERE repo_id IN (SELECT id FROM repositories);
+        DROP TABLE code_chunks_unpartitioned;
+    END IF;
+END $$;;
+
+-- Every repository has its partition, the application creates them on first ingestion as well
+DO $$
+DECLARE
+    repo RECORD;
+BEGIN
+    FOR repo IN SELECT id FROM repositories WHERE to_regclass('code_chunks_r' || id) IS NULL LOOP
+        EXECUTE format('CREATE TABLE IF NOT EXISTS code_chunks_r%s PARTITION OF code_chunks FOR VALUES IN (%s)', repo.id, repo.id);
+    END LOOP;
+END $$;;
+
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'fk_code_chunks_repository') THEN
+        ALTER TABLE code_chunks ADD CONSTRAINT fk_code_chunks_repository
+            FOREIGN KEY (repo_id) REFERENCES repositories (id) ON DELETE CASCADE;
+    END IF;
+END $$;;
+
+UPDATE repositories SET active_generation = 0 WHERE active_generation IS NULL;;
+UPDATE repositories r
+SET chunk_count = (SELECT count(*) FROM code_chunks c WHERE c.repo_id = r.id AND c.generation = r.active_generation)
+WHERE r.chunk_count IS NULL;;
+UPDATE repositories
+SET created_at = COALESCE(indexed_at, now()), updated_at = COALESCE(indexed_at, now())
+WHERE created_at IS NULL;;
+
+-- Structured chunk identity: backfill rows written while it was only encoded in file_path as "path (Part i/n)"
+UPDATE code_chunks
+SET path = regexp_replace(file_path, ' \(Part [0-9]+/[0-9]+\)$', ''),
+    part_index = COALESCE(substring(file_path from ' \(Part ([0-9]+)/[0-9]+\)$')::int, 1),
+    part_count = COALESCE(substring(file_path from ' \(Part [0-9]+/([0-9]+)\)$')::int, 1),
+    content_hash = encode(sha256(convert_to(content, 'UTF8')), 'hex')
+WHERE path IS NULL AND file_path IS NOT NULL;;
+
+CREATE INDEX IF NOT EXISTS idx_code_chunks_repo_generation ON code_chunks (repo_id, generation);;
+CREATE INDEX IF NOT EXISTS idx_code_chunks_repo_path ON code_chunks (repo_id, path);;
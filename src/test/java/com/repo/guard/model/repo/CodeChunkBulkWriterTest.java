@@ -0,0 +1,57 @@
+package com.repo.guard.model.repo;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CodeChunkBulkWriterTest {
+    private static final UUID ID = UUID.fromString("00000000-0000-0000-0000-000000000001");
+
+    private static String rowOf(CodeChunk chunk) {
+        StringBuilder buffer = new StringBuilder();
+        CodeChunkBulkWriter.appendRow(buffer, chunk);
+        return buffer.toString();
+    }
+
+    @Test
+    void writesEveryColumnInCopyOrder() {
+        CodeChunk chunk = CodeChunk.builder()
+                .id(ID)
+                .repoId(3)
+                .filePath("src/A.java (Part 1/2)")
+                .path("src/A.java")
+                .partIndex(1)
+                .partCount(2)
+                .contentHash("abc")
+                .startByte(0)
+                .endByte(10)
+                .content("class A {}")
+                .embedding(new float[]{0.5f, -1f})
+                .generation(7L)
+                .build();
+
+        assertEquals(ID + "\t3\tsrc/A.java (Part 1/2)\tsrc/A.java\t1\t2\tabc\t0\t10\tclass A {}\t[0.5,-1.0]\t7\n", rowOf(chunk));
+    }
+
+    @Test
+    void escapesTheCharactersCopyTreatsAsSpecial() {
+        CodeChunk chunk = CodeChunk.builder()
+                .id(ID)
+                .content("a\tb\nc\\d\re\0f")
+                .build();
+
+        String content = rowOf(chunk).split("\t", -1)[9];
+
+        //  backslash, tab and line breaks are escaped, NUL can't be stored in a text column and is dropped
+        assertEquals("a\\tb\\nc\\\\d\\ref", content);
+    }
+
+    @Test
+    void writesMissingValuesAsTheNullMarker() {
+        CodeChunk chunk = CodeChunk.builder().id(ID).build();
+
+        assertEquals(ID + "\t\\N\t\\N\t\\N\t\\N\t\\N\t\\N\t\\N\t\\N\t\\N\t\\N\t\\N\n", rowOf(chunk));
+    }
+}
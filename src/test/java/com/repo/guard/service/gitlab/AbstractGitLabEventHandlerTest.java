@@ -0,0 +1,63 @@
+package com.repo.guard.service.gitlab;
+
+import org.gitlab4j.api.models.Diff;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AbstractGitLabEventHandlerTest {
+
+    private static Diff diff(String path) {
+        Diff diff = new Diff();
+        diff.setOldPath(path);
+        diff.setNewPath(path);
+        return diff;
+    }
+
+    private static List<List<String>> group(Map<String, Integer> tokens, int budget, String... paths) {
+        List<Diff> diffs = List.of(paths).stream().map(AbstractGitLabEventHandlerTest::diff).toList();
+        return AbstractGitLabEventHandler.groupByTokens(diffs, budget, diff -> tokens.get(diff.getNewPath())).stream()
+                .map(group -> group.stream().map(Diff::getNewPath).toList())
+                .toList();
+    }
+
+    @Test
+    void packsConsecutiveDiffsUnderTheBudget() {
+        Map<String, Integer> tokens = Map.of("a", 4, "b", 5, "c", 3, "d", 8);
+
+        assertEquals(List.of(List.of("a", "b"), List.of("c"), List.of("d")), group(tokens, 10, "a", "b", "c", "d"));
+    }
+
+    @Test
+    void fillsAGroupUpToExactlyTheBudget() {
+        Map<String, Integer> tokens = Map.of("a", 5, "b", 5, "c", 1);
+
+        assertEquals(List.of(List.of("a", "b"), List.of("c")), group(tokens, 10, "a", "b", "c"));
+    }
+
+    @Test
+    void givesADiffAboveTheBudgetAGroupOfItsOwn() {
+        Map<String, Integer> tokens = Map.of("a", 2, "huge", 40, "b", 2);
+
+        assertEquals(List.of(List.of("a"), List.of("huge"), List.of("b")), group(tokens, 10, "a", "huge", "b"));
+    }
+
+    @Test
+    void keepsEveryDiffInOrder() {
+        Map<String, Integer> tokens = Map.of("a", 3, "b", 3, "c", 3, "d", 3, "e", 3);
+
+        List<List<String>> groups = group(tokens, 7, "a", "b", "c", "d", "e");
+
+        assertEquals(List.of("a", "b", "c", "d", "e"), groups.stream().flatMap(List::stream).toList());
+        assertTrue(groups.stream().allMatch(group -> group.size() <= 2));
+    }
+
+    @Test
+    void makesNoGroupsOfNoDiffs() {
+        assertTrue(group(Map.of(), 10).isEmpty());
+    }
+}
@@ -0,0 +1,130 @@
+package com.repo.guard.service.gitlab;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+class MergeRequestEventDebouncerTest {
+    private static final Duration WINDOW = Duration.ofSeconds(20);
+    private static final String KEY = ReviewCancellationRegistry.key(7, 42L);
+    private static final String QUIET_KEY = "guard:review:quiet:" + KEY;
+
+    private final StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+    @SuppressWarnings("unchecked")
+    private final ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+    private final ReviewCancellationRegistry reviewCancellationRegistry = mock(ReviewCancellationRegistry.class);
+    private final TaskScheduler taskScheduler = mock(TaskScheduler.class);
+    private MergeRequestEventDebouncer debouncer;
+
+    @BeforeEach
+    void setUp() {
+        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+        debouncer = new MergeRequestEventDebouncer(redisTemplate, reviewCancellationRegistry, taskScheduler, new SimpleMeterRegistry(), WINDOW);
+    }
+
+    private static JsonNode event(String action, String headSha) throws Exception {
+        return new ObjectMapper().readTree("""
+                {"object_kind": "merge_request", "project": {"id": 7},
+                 "object_attributes": {"iid": 42, "action": "%s", "last_commit": {"id": "%s"}}}
+                """.formatted(action, headSha));
+    }
+
+    //  runs the re-check the debouncer scheduled last
+    private void runScheduledCheck() {
+        ArgumentCaptor<Runnable> check = ArgumentCaptor.forClass(Runnable.class);
+        verify(taskScheduler, atLeastOnce()).schedule(check.capture(), any(Instant.class));
+        check.getValue().run();
+    }
+
+    @Test
+    void recordsTheHeadAndRestartsTheWindowOfAnUpdate() throws Exception {
+        debouncer.record(event("update", "abc"));
+
+        verify(reviewCancellationRegistry).recordHead(KEY, "abc");
+        verify(valueOperations).set(QUIET_KEY, "update", WINDOW);
+    }
+
+    @Test
+    void recordsAMergeAsClosedWithoutAWindow() throws Exception {
+        debouncer.record(event("merge", "abc"));
+
+        verify(reviewCancellationRegistry).recordClosed(KEY);
+        verify(valueOperations, never()).set(anyString(), anyString(), any(Duration.class));
+    }
+
+    @Test
+    void reviewsRightAwayOnceTheWindowHasPassed() {
+        when(reviewCancellationRegistry.isLatest(KEY, "abc")).thenReturn(true);
+        when(redisTemplate.getExpire(QUIET_KEY, TimeUnit.MILLISECONDS)).thenReturn(-2L);
+
+        CompletableFuture<Boolean> quiet = debouncer.whenQuiet(7, 42L, "abc");
+
+        assertTrue(quiet.isDone());
+        assertTrue(quiet.join());
+        verifyNoInteractions(taskScheduler);
+    }
+
+    @Test
+    void skipsAHeadThatIsNoLongerTheLatest() {
+        when(reviewCancellationRegistry.isLatest(KEY, "abc")).thenReturn(false);
+
+        CompletableFuture<Boolean> quiet = debouncer.whenQuiet(7, 42L, "abc");
+
+        assertTrue(quiet.isDone());
+        assertFalse(quiet.join());
+    }
+
+    @Test
+    void checksAgainWhenTheWindowEndsInsteadOfWaiting() {
+        when(reviewCancellationRegistry.isLatest(KEY, "abc")).thenReturn(true);
+        when(redisTemplate.getExpire(QUIET_KEY, TimeUnit.MILLISECONDS)).thenReturn(5000L, -2L);
+
+        CompletableFuture<Boolean> quiet = debouncer.whenQuiet(7, 42L, "abc");
+        assertFalse(quiet.isDone());
+
+        runScheduledCheck();
+        assertTrue(quiet.join());
+    }
+
+    @Test
+    void dropsAHeadSupersededWhileWaiting() {
+        when(reviewCancellationRegistry.isLatest(KEY, "abc")).thenReturn(true, false);
+        when(redisTemplate.getExpire(QUIET_KEY, TimeUnit.MILLISECONDS)).thenReturn(5000L);
+
+        CompletableFuture<Boolean> quiet = debouncer.whenQuiet(7, 42L, "abc");
+        runScheduledCheck();
+
+        assertFalse(quiet.join());
+    }
+
+    @Test
+    void failsWhenTheWindowCantBeRead() {
+        when(reviewCancellationRegistry.isLatest(KEY, "abc")).thenReturn(true);
+        when(redisTemplate.getExpire(QUIET_KEY, TimeUnit.MILLISECONDS)).thenThrow(new QueryTimeoutException("redis is down"));
+
+        assertTrue(debouncer.whenQuiet(7, 42L, "abc").isCompletedExceptionally());
+    }
+}
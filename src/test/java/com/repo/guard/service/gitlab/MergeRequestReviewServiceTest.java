@@ -0,0 +1,72 @@
+package com.repo.guard.service.gitlab;
+
+import org.gitlab4j.api.models.Diff;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MergeRequestReviewServiceTest {
+
+    private static Diff diff(String path, String text) {
+        Diff diff = new Diff();
+        diff.setOldPath(path);
+        diff.setNewPath(path);
+        diff.setDiff(text);
+        return diff;
+    }
+
+    private static List<String> pathsOf(List<Diff> diffs) {
+        return diffs.stream().map(MergeRequestReviewService::pathOf).toList();
+    }
+
+    @Test
+    void picksOnlyFilesWhoseDiffChangedSinceTheLastReview() {
+        Map<String, String> reviewed = MergeRequestReviewService.hashDiffs(List.of(diff("A.java", "+a"), diff("B.java", "+b")));
+
+        List<Diff> changed = MergeRequestReviewService.changedSince(
+                List.of(diff("A.java", "+a"), diff("B.java", "+b\n+b2"), diff("C.java", "+c")), reviewed);
+
+        //  B's diff moved on and C is new to the merge request, A still looks exactly as reviewed
+        assertEquals(List.of("B.java", "C.java"), pathsOf(changed));
+    }
+
+    @Test
+    void picksNothingWhenOnlyTheHeadMoved() {
+        List<Diff> diffs = List.of(diff("A.java", "+a"), diff("B.java", "+b"));
+
+        assertTrue(MergeRequestReviewService.changedSince(diffs, MergeRequestReviewService.hashDiffs(diffs)).isEmpty());
+    }
+
+    @Test
+    void picksEveryFileWithoutARecordedReview() {
+        List<Diff> diffs = List.of(diff("A.java", "+a"), diff("B.java", "+b"));
+
+        assertEquals(List.of("A.java", "B.java"), pathsOf(MergeRequestReviewService.changedSince(diffs, Map.of())));
+    }
+
+    @Test
+    void hashesTheRenameAndDeletionOfAFileToo() {
+        Diff edited = diff("A.java", "-a");
+        Diff deleted = diff("A.java", "-a");
+        deleted.setDeletedFile(true);
+        Diff renamed = diff("B.java", "-a");
+        renamed.setOldPath("A.java");
+
+        String editedHash = MergeRequestReviewService.hashDiffs(List.of(edited)).get("A.java");
+        assertNotEquals(editedHash, MergeRequestReviewService.hashDiffs(List.of(deleted)).get("A.java"));
+        assertNotEquals(editedHash, MergeRequestReviewService.hashDiffs(List.of(renamed)).get("B.java"));
+    }
+
+    @Test
+    void tracksADiffWithoutNewPathUnderItsOldPath() {
+        Diff deleted = diff("A.java", "-a");
+        deleted.setNewPath(null);
+
+        assertEquals("A.java", MergeRequestReviewService.pathOf(deleted));
+    }
+}
@@ -0,0 +1,132 @@
+package com.repo.guard.service.gitlab;
+
+import com.repo.guard.service.lock.RedisLock;
+import com.repo.guard.service.lock.RedisLockService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ReviewCancellationRegistryTest {
+    private static final Duration HEAD_TTL = Duration.ofDays(14);
+    private static final String KEY = ReviewCancellationRegistry.key(7, 42L);
+    private static final String HEAD_KEY = "guard:review:head:" + KEY;
+
+    private final StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+    @SuppressWarnings("unchecked")
+    private final ValueOperations<String, String> valueOperations = mock(ValueOperations.class);
+    private final RedisLockService redisLockService = mock(RedisLockService.class);
+    private final RedisLock reviewLock = mock(RedisLock.class);
+    private ReviewCancellationRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        when(redisTemplate.opsForValue()).thenReturn(valueOperations);
+        when(redisLockService.tryAcquire(anyString(), anyString())).thenReturn(Optional.of(reviewLock));
+        registry = new ReviewCancellationRegistry(redisTemplate, redisLockService, new SimpleMeterRegistry(), HEAD_TTL);
+    }
+
+    @Test
+    void treatsOnlyTheRecordedHeadAsLatest() {
+        when(valueOperations.get(HEAD_KEY)).thenReturn("abc");
+
+        assertTrue(registry.isLatest(KEY, "abc"));
+        assertFalse(registry.isLatest(KEY, "def"));
+    }
+
+    @Test
+    void neverSupersedesWhenTheLatestHeadIsUnknown() {
+        when(valueOperations.get(HEAD_KEY)).thenReturn(null);
+        assertTrue(registry.isLatest(KEY, "abc"));
+
+        when(valueOperations.get(HEAD_KEY)).thenThrow(new QueryTimeoutException("redis is down"));
+        assertTrue(registry.isLatest(KEY, "abc"));
+    }
+
+    @Test
+    void supersedesEveryHeadOfAClosedMergeRequest() {
+        when(valueOperations.get(HEAD_KEY)).thenReturn("closed");
+
+        assertFalse(registry.isLatest(KEY, "abc"));
+    }
+
+    @Test
+    void doesNotStartAReviewOfASupersededHead() {
+        when(valueOperations.get(HEAD_KEY)).thenReturn("def");
+
+        assertTrue(registry.start(KEY, "abc").isEmpty());
+        verify(redisLockService, never()).tryAcquire(anyString(), anyString());
+    }
+
+    @Test
+    void doesNotStartAReviewOfAHeadAlreadyUnderReview() {
+        when(valueOperations.get(HEAD_KEY)).thenReturn("abc");
+        when(redisLockService.tryAcquire(anyString(), anyString())).thenReturn(Optional.empty());
+
+        assertTrue(registry.start(KEY, "abc").isEmpty());
+    }
+
+    @Test
+    void cancelsTheRunningReviewWhenANewerHeadArrives() {
+        when(valueOperations.get(HEAD_KEY)).thenReturn("abc");
+        ReviewCancellation running = registry.start(KEY, "abc").orElseThrow();
+
+        registry.recordHead(KEY, "def");
+
+        verify(valueOperations).set(HEAD_KEY, "def", HEAD_TTL);
+        assertTrue(running.isCancelled());
+    }
+
+    @Test
+    void keepsTheRunningReviewWhenTheSameHeadArrivesAgain() {
+        when(valueOperations.get(HEAD_KEY)).thenReturn("abc");
+        ReviewCancellation running = registry.start(KEY, "abc").orElseThrow();
+
+        registry.recordHead(KEY, "abc");
+
+        assertFalse(running.isCancelled());
+    }
+
+    @Test
+    void cancelsTheRunningReviewOnceTheMergeRequestIsClosed() {
+        when(valueOperations.get(HEAD_KEY)).thenReturn("abc");
+        ReviewCancellation running = registry.start(KEY, "abc").orElseThrow();
+
+        registry.recordClosed(KEY);
+
+        assertTrue(running.isCancelled());
+    }
+
+    @Test
+    void cancelsAReviewSupersededOnAnotherInstance() {
+        when(valueOperations.get(HEAD_KEY)).thenReturn("abc");
+        ReviewCancellation running = registry.start(KEY, "abc").orElseThrow();
+
+        when(valueOperations.get(HEAD_KEY)).thenReturn("def");
+        registry.cancelSupersededElsewhere();
+
+        assertTrue(running.isCancelled());
+    }
+
+    @Test
+    void releasesTheReviewLockOnceTheReviewIsDone() {
+        when(valueOperations.get(HEAD_KEY)).thenReturn("abc");
+
+        registry.start(KEY, "abc").orElseThrow().done();
+
+        verify(reviewLock).close();
+    }
+}
@@ -0,0 +1,77 @@
+package com.repo.guard.service.repo;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdaptiveConcurrencyLimiterTest {
+
+    private static void complete(AdaptiveConcurrencyLimiter limiter, long latencyMs, Throwable error) throws InterruptedException {
+        limiter.acquire();
+        limiter.release(latencyMs, error);
+    }
+
+    @Test
+    void growsWhileRequestsAreFastAndSuccessful() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 1, 4, 1000);
+
+        for (int i = 0; i < 50; i++) complete(limiter, 10, null);
+
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void halvesOnOverloadOncePerCooldown() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 8, 8, 1000);
+
+        complete(limiter, 10, new HttpClientErrorException(HttpStatus.TOO_MANY_REQUESTS));
+        assertEquals(4, limiter.getLimit());
+
+        //  a burst of failures from the same window only backs off once
+        complete(limiter, 10, new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE));
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    void easesOffOnSlowResponses() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 8, 8, 1000);
+
+        complete(limiter, 5000, null);
+
+        assertEquals(7, limiter.getLimit());
+    }
+
+    @Test
+    void keepsTheLimitOnOtherFailures() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test", 8, 8, 1000);
+
+        complete(limiter, 10, new IllegalArgumentException("input exceeds 512 tokens"));
+
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    void classifiesOverloadByStatus() {
+        assertTrue(AdaptiveConcurrencyLimiter.isOverloaded(new HttpClientErrorException(HttpStatus.TOO_MANY_REQUESTS)));
+        assertTrue(AdaptiveConcurrencyLimiter.isOverloaded(new RuntimeException("wrapped", new HttpServerErrorException(HttpStatus.BAD_GATEWAY))));
+        assertTrue(AdaptiveConcurrencyLimiter.isOverloaded(new RuntimeException("HTTP 503 Service Unavailable")));
+        assertTrue(AdaptiveConcurrencyLimiter.isOverloaded(new RuntimeException("request failed with status code: 429")));
+        assertTrue(AdaptiveConcurrencyLimiter.isOverloaded(new RuntimeException("{\"code\": 500, \"message\": \"internal\"}")));
+        assertTrue(AdaptiveConcurrencyLimiter.isOverloaded(new RuntimeException("RESOURCE_EXHAUSTED: quota exceeded")));
+    }
+
+    @Test
+    void ignoresNumbersOutsideOfAStatus() {
+        assertFalse(AdaptiveConcurrencyLimiter.isOverloaded(new RuntimeException("input exceeds 512 tokens")));
+        assertFalse(AdaptiveConcurrencyLimiter.isOverloaded(new RuntimeException("invalid argument on line 500")));
+        assertFalse(AdaptiveConcurrencyLimiter.isOverloaded(new RuntimeException("the model is unavailable in this region")));
+        //  a typed client error is not an overload, whatever its message says
+        assertFalse(AdaptiveConcurrencyLimiter.isOverloaded(new HttpClientErrorException(HttpStatus.BAD_REQUEST, "status 503")));
+    }
+}
@@ -0,0 +1,92 @@
+package com.repo.guard.service.repo;
+
+import com.repo.guard.model.repo.CodeChunk;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class IngestionPipelineTest {
+    private final List<CodeChunk> persisted = new CopyOnWriteArrayList<>();
+
+    private static List<CodeChunk> chunksOf(IngestionPipeline.SourceFile file) {
+        return List.of(CodeChunk.builder().path(file.path()).content(file.content()).build());
+    }
+
+    private static IngestionPipeline.FileSource files(int count) {
+        return sink -> {
+            for (int i = 0; i < count; i++) sink.accept(new IngestionPipeline.SourceFile("src/File" + i + ".java", "class File" + i + " {}"));
+        };
+    }
+
+    @Test
+    void persistsEveryChunkWhenAllStagesSucceed() throws Exception {
+        long inserted = new IngestionPipeline("job", 2, 1).run(
+                files(5),
+                IngestionPipelineTest::chunksOf,
+                batch -> batch.forEach(chunk -> chunk.setEmbedding(new float[]{1f})),
+                persisted::addAll
+        );
+
+        assertEquals(5, inserted);
+        assertEquals(5, persisted.size());
+    }
+
+    @Test
+    void embedFailureFailsTheRunAndPersistsNothingAfterIt() {
+        IllegalStateException failure = new IllegalStateException("Failed to embed 1 of 2 chunk(s)");
+        AtomicInteger batches = new AtomicInteger();
+
+        Exception thrown = assertThrows(Exception.class, () -> new IngestionPipeline("job", 2, 1).run(
+                files(100),
+                IngestionPipelineTest::chunksOf,
+                batch -> {
+                    if (batches.incrementAndGet() == 2) throw failure;
+                },
+                persisted::addAll
+        ));
+
+        assertSame(failure, thrown);
+        //  only the batch embedded before the failure reached the persist stage
+        assertEquals(2, persisted.size());
+    }
+
+    @Test
+    void persistFailureFailsTheRun() {
+        IllegalStateException failure = new IllegalStateException("COPY failed");
+
+        Exception thrown = assertThrows(Exception.class, () -> new IngestionPipeline("job", 2, 1).run(
+                files(10),
+                IngestionPipelineTest::chunksOf,
+                batch -> { },
+                batch -> {
+                    throw failure;
+                }
+        ));
+
+        assertSame(failure, thrown);
+    }
+
+    @Test
+    void walkFailureFailsTheRun() {
+        IOException failure = new IOException("mirror is gone");
+
+        Exception thrown = assertThrows(Exception.class, () -> new IngestionPipeline("job", 2, 1).run(
+                sink -> {
+                    sink.accept(new IngestionPipeline.SourceFile("src/A.java", "class A {}"));
+                    throw failure;
+                },
+                IngestionPipelineTest::chunksOf,
+                batch -> { },
+                persisted::addAll
+        ));
+
+        assertSame(failure, thrown);
+    }
+}
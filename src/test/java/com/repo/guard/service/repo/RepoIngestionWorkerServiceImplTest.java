@@ -0,0 +1,80 @@
+package com.repo.guard.service.repo;
+
+import com.repo.guard.model.repo.CodeChunk;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RepoIngestionWorkerServiceImplTest {
+
+    private static String sha256(String text) throws Exception {
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void recordsIdentityAndUtf8ByteRangesOfEveryPart() throws Exception {
+        String content = "héllo world\nsecond part";
+
+        List<CodeChunk> chunks = RepoIngestionWorkerServiceImpl.toChunks("./src\\Main.java", content, List.of("héllo world", "second part"));
+
+        assertEquals(2, chunks.size());
+        CodeChunk first = chunks.get(0);
+        assertEquals("src/Main.java", first.getPath());
+        assertEquals("src/Main.java (Part 1/2)", first.getFilePath());
+        assertEquals(1, first.getPartIndex());
+        assertEquals(2, first.getPartCount());
+        assertEquals(sha256("héllo world"), first.getContentHash());
+        //  the é takes two bytes
+        assertEquals(0, first.getStartByte());
+        assertEquals(12, first.getEndByte());
+
+        CodeChunk second = chunks.get(1);
+        assertEquals("src/Main.java (Part 2/2)", second.getFilePath());
+        assertEquals(2, second.getPartIndex());
+        assertEquals(13, second.getStartByte());
+        assertEquals(24, second.getEndByte());
+        assertEquals(content.getBytes(StandardCharsets.UTF_8).length, second.getEndByte());
+    }
+
+    @Test
+    void countsSurrogatePairsAsFourBytes() {
+        List<CodeChunk> chunks = RepoIngestionWorkerServiceImpl.toChunks("a.md", "😀 x", List.of("😀 x"));
+
+        assertEquals("a.md", chunks.get(0).getFilePath());
+        assertEquals(0, chunks.get(0).getStartByte());
+        assertEquals(6, chunks.get(0).getEndByte());
+    }
+
+    @Test
+    void leavesTheRangeOfARewrittenPartEmptyAndStillLocatesTheNextOne() {
+        String content = "alpha\nbeta\ngamma";
+
+        List<CodeChunk> chunks = RepoIngestionWorkerServiceImpl.toChunks("A.java", content, List.of("alpha", "BETA", "gamma"));
+
+        assertNull(chunks.get(1).getStartByte());
+        assertNull(chunks.get(1).getEndByte());
+        assertEquals(11, chunks.get(2).getStartByte());
+        assertEquals(16, chunks.get(2).getEndByte());
+    }
+
+    @Test
+    void locatesRepeatedPartsFrontToBack() throws Exception {
+        String content = "same\nsame";
+
+        List<CodeChunk> chunks = RepoIngestionWorkerServiceImpl.toChunks("A.java", content, List.of("same", "same"));
+
+        assertEquals(0, chunks.get(0).getStartByte());
+        assertEquals(5, chunks.get(1).getStartByte());
+        //  equal content shares the hash, the part index keeps the chunks apart
+        assertEquals(chunks.get(0).getContentHash(), chunks.get(1).getContentHash());
+        assertNotEquals(chunks.get(0).getPartIndex(), chunks.get(1).getPartIndex());
+        assertEquals(sha256("same"), chunks.get(0).getContentHash());
+    }
+}
@@ -0,0 +1,163 @@
+package com.repo.guard.service.repo;
+
+import com.repo.guard.model.repo.CodeChunk;
+import com.repo.guard.service.cache.EmbeddingCacheService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class VectorEmbeddingServiceTest {
+    private final EmbeddingModel embeddingModel = mock(EmbeddingModel.class);
+    private final EmbeddingCacheService embeddingCacheService = mock(EmbeddingCacheService.class);
+    private VectorEmbeddingService service;
+
+    @BeforeEach
+    void setUp() {
+        service = new VectorEmbeddingService(embeddingModel, embeddingCacheService);
+        ReflectionTestUtils.setField(service, "maxBatchItems", 4);
+        ReflectionTestUtils.setField(service, "maxBatchTokens", 100_000);
+        //  a single attempt per text, so a failing text doesn't wait for the retry backoff
+        ReflectionTestUtils.setField(service, "maxRetries", 1);
+        ReflectionTestUtils.setField(service, "maxInFlight", 4);
+        ReflectionTestUtils.setField(service, "initialInFlight", 4);
+        ReflectionTestUtils.setField(service, "latencyTargetMs", 5000L);
+        service.initLimiter();
+
+        //  nothing is cached
+        when(embeddingCacheService.getAll(anyList()))
+                .thenAnswer(invocation -> Arrays.asList(new float[invocation.<List<String>>getArgument(0).size()][]));
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdownExecutor();
+    }
+
+    private static float[] vectorOf(String text) {
+        return new float[]{text.length()};
+    }
+
+    //  the provider fails every request that contains a text starting with "bad"
+    private void failTextsStartingWithBad() {
+        when(embeddingModel.embed(anyList())).thenAnswer(invocation -> {
+            List<String> texts = invocation.getArgument(0);
+            if (texts.stream().anyMatch(text -> text.startsWith("bad"))) throw new IllegalArgumentException("rejected");
+            return texts.stream().map(VectorEmbeddingServiceTest::vectorOf).toList();
+        });
+        when(embeddingModel.embed(anyString())).thenAnswer(invocation -> {
+            String text = invocation.getArgument(0);
+            if (text.startsWith("bad")) throw new IllegalArgumentException("rejected");
+            return vectorOf(text);
+        });
+    }
+
+    private static List<CodeChunk> chunksOf(String... contents) {
+        return new ArrayList<>(Arrays.stream(contents).map(content -> CodeChunk.builder().content(content).build()).toList());
+    }
+
+    @Test
+    void partitionsByItemLimit() {
+        List<String> texts = IntStream.range(0, 10).mapToObj(i -> "text " + i).toList();
+
+        List<int[]> ranges = service.partitionByBudget(texts);
+
+        assertEquals(3, ranges.size());
+        assertArrayEquals(new int[]{0, 4}, ranges.get(0));
+        assertArrayEquals(new int[]{4, 8}, ranges.get(1));
+        assertArrayEquals(new int[]{8, 10}, ranges.get(2));
+    }
+
+    @Test
+    void partitionsByTokenLimit() {
+        String text = "public void method() { return; }";
+        int cost = new JTokkitTokenCountEstimator().estimate(text);
+        ReflectionTestUtils.setField(service, "maxBatchItems", 100);
+        ReflectionTestUtils.setField(service, "maxBatchTokens", cost * 2);
+
+        List<int[]> ranges = service.partitionByBudget(List.of(text, text, text, text, text));
+
+        assertEquals(3, ranges.size());
+        assertArrayEquals(new int[]{0, 2}, ranges.get(0));
+        assertArrayEquals(new int[]{2, 4}, ranges.get(1));
+        assertArrayEquals(new int[]{4, 5}, ranges.get(2));
+    }
+
+    @Test
+    void keepsATextAboveTheTokenLimitInARangeOfItsOwn() {
+        ReflectionTestUtils.setField(service, "maxBatchTokens", 5);
+
+        List<int[]> ranges = service.partitionByBudget(List.of("a", "b ".repeat(50), "c"));
+
+        assertEquals(3, ranges.size());
+        assertArrayEquals(new int[]{1, 2}, ranges.get(1));
+    }
+
+    @Test
+    void splitsAFailedBatchAndEmbedsEverythingElse() {
+        failTextsStartingWithBad();
+
+        List<float[]> vectors = service.embedAll(List.of("one", "two", "bad three", "four"));
+
+        assertArrayEquals(vectorOf("one"), vectors.get(0));
+        assertArrayEquals(vectorOf("two"), vectors.get(1));
+        assertNull(vectors.get(2));
+        assertArrayEquals(vectorOf("four"), vectors.get(3));
+    }
+
+    @Test
+    void failsTheBatchOfChunksWhenAnyChunkCouldNotBeEmbedded() {
+        failTextsStartingWithBad();
+        List<CodeChunk> chunks = chunksOf("one", "two", "bad three", "four");
+
+        IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> service.generateEmbeddingsForChunks(chunks));
+
+        assertTrue(thrown.getMessage().contains("1 of 4"), thrown.getMessage());
+        //  nothing is dropped, the caller discards the whole batch
+        assertEquals(4, chunks.size());
+    }
+
+    @Test
+    void failsTheBatchOfChunksWhenTheProviderIsDown() {
+        when(embeddingModel.embed(anyList())).thenThrow(new IllegalStateException("HTTP 503 Service Unavailable"));
+        when(embeddingModel.embed(anyString())).thenThrow(new IllegalStateException("HTTP 503 Service Unavailable"));
+
+        assertTrue(service.embedAll(List.of("one", "two", "three")).stream().allMatch(vector -> vector == null));
+        IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> service.generateEmbeddingsForChunks(chunksOf("one", "two", "three")));
+        assertTrue(thrown.getMessage().contains("3 of 3"), thrown.getMessage());
+    }
+
+    @Test
+    void embedsEveryChunkOfAHealthyBatch() {
+        failTextsStartingWithBad();
+        List<CodeChunk> chunks = chunksOf("one", "two", "three", "four", "five");
+
+        service.generateEmbeddingsForChunks(chunks);
+
+        chunks.forEach(chunk -> assertArrayEquals(vectorOf(chunk.getContent()), chunk.getEmbedding()));
+    }
+
+    @Test
+    void failsTheWarmupWhenTheModelIsUnavailable() {
+        when(embeddingModel.embed(anyString())).thenThrow(new IllegalStateException("connection refused"));
+
+        assertThrows(IllegalStateException.class, () -> service.warmUpModel());
+    }
+}